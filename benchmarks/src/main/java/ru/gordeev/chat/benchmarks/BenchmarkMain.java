@@ -0,0 +1,27 @@
+package ru.gordeev.chat.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry point of benchmarks.jar. Runs JMH with the given arguments and,
+ * unless a result format is given explicitly, writes the results as JSON
+ * to jmh-result-{version}.json so runs of different releases can be diffed.
+ */
+public final class BenchmarkMain {
+
+    private BenchmarkMain() {}
+
+    public static void main(String[] args) throws Exception {
+        List<String> jmhArgs = new ArrayList<>(Arrays.asList(args));
+        if (!jmhArgs.contains("-rf") && !jmhArgs.contains("-h") && !jmhArgs.contains("-l")) {
+            String version = BenchmarkMain.class.getPackage().getImplementationVersion();
+            jmhArgs.add("-rf");
+            jmhArgs.add("json");
+            jmhArgs.add("-rff");
+            jmhArgs.add("jmh-result-" + (version != null ? version : "dev") + ".json");
+        }
+        org.openjdk.jmh.Main.main(jmhArgs.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,51 @@
+package ru.gordeev.chat.benchmarks;
+
+import ru.gordeev.chat.Server;
+import ru.gordeev.chat.database.PostgresMessageStore;
+import ru.gordeev.chat.handlers.ClientHandler;
+import ru.gordeev.chat.network.ClientConnection;
+import ru.gordeev.chat.network.TransportMode;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Servers and logged in clients for benchmarks that don't need a database.
+ */
+final class BenchmarkServers {
+
+    private static final long LOGIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private BenchmarkServers() {}
+
+    /**
+     * A server that is never started. Its message writer isn't running, so
+     * the message store is not touched. Rate limits are off unless set
+     * explicitly: benchmark clients send far more than any user may, all
+     * from the same address. RateLimitBenchmark measures the limits.
+     */
+    static Server newServer() {
+        if (System.getProperty("chat.rateLimit.enabled") == null) {
+            System.setProperty("chat.rateLimit.enabled", "false");
+        }
+        return new Server(0, TransportMode.BLOCKING, new StubUserService(), new PostgresMessageStore(),
+                new StubRoomService());
+    }
+
+    /**
+     * Logs a client in and waits until the credentials check, which runs on
+     * the server's AuthenticationService, has completed.
+     */
+    static ClientHandler login(Server server, ClientConnection connection, String login) {
+        ClientHandler client = new ClientHandler(server, connection);
+        client.onMessage("/auth " + login + " password");
+        long deadline = System.nanoTime() + LOGIN_TIMEOUT_NANOS;
+        while (!server.isUserBusy(login)) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("User " + login + " has not logged in");
+            }
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        return client;
+    }
+}
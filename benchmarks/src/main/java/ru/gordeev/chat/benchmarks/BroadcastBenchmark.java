@@ -0,0 +1,67 @@
+package ru.gordeev.chat.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.gordeev.chat.Server;
+import ru.gordeev.chat.handlers.ClientHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server.broadcastMessage fan-out to N in-memory clients. Compares
+ * formatting and encoding the frame for every recipient (the old
+ * sendMessage-per-client loop) with encoding it once in
+ * Server.broadcastMessage and copying the same bytes to every recipient.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    private static final String MESSAGE = "User42: Привет! Has anyone seen the release notes for today's build?";
+
+    @Param({"10", "1000", "5000", "10000"})
+    public int recipients;
+
+    @Param({"false", "true"})
+    public boolean directBuffers;
+
+    private Server server;
+    private List<ClientHandler> clients;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        server = BenchmarkServers.newServer();
+        clients = new ArrayList<>(recipients);
+        for (int i = 0; i < recipients; i++) {
+            clients.add(BenchmarkServers.login(server, new InMemoryConnection(directBuffers), "user" + i));
+        }
+    }
+
+    @Benchmark
+    public void encodePerRecipient() {
+        for (ClientHandler client : clients) {
+            client.sendMessage(MESSAGE);
+        }
+    }
+
+    @Benchmark
+    public void encodeOnce() {
+        server.broadcastMessage(MESSAGE);
+    }
+}
@@ -0,0 +1,67 @@
+package ru.gordeev.chat.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.gordeev.chat.Server;
+import ru.gordeev.chat.handlers.ClientHandler;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of handling one incoming line of an authenticated user, from
+ * ClientHandler.onMessage through command parsing to the server action.
+ * The room has only two members, so fan-out doesn't dominate. An unknown
+ * command is answered to its sender only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandDispatchBenchmark {
+
+    @Param({"chat", "private", "activelist", "help", "unknown"})
+    public String command;
+
+    private ClientHandler sender;
+    private String line;
+
+    @Setup
+    public void setUp() {
+        Server server = BenchmarkServers.newServer();
+        sender = BenchmarkServers.login(server, new InMemoryConnection(false), "user0");
+        BenchmarkServers.login(server, new InMemoryConnection(false), "user1");
+
+        switch (command) {
+            case "chat":
+                line = "hello everyone, how is it going?";
+                break;
+            case "private":
+                line = "/w user1 hello there, how is it going?";
+                break;
+            case "activelist":
+                line = "/activelist";
+                break;
+            case "help":
+                line = "/help";
+                break;
+            default:
+                line = "/banxyz";
+        }
+    }
+
+    @Benchmark
+    public boolean dispatch() {
+        return sender.onMessage(line);
+    }
+}
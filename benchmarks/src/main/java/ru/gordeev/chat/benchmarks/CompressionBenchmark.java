@@ -0,0 +1,132 @@
+package ru.gordeev.chat.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.gordeev.chat.handlers.ClientHandler;
+import ru.gordeev.chat.network.CompressionSettings;
+import ru.gordeev.chat.network.Frame;
+import ru.gordeev.chat.network.FrameCompressor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bytes and CPU time needed to send a scrollback replay (20 or 100 chat
+ * messages) or an /activelist of 1000 users: as writeUTF frames, as binary
+ * frames, and as binary frames through a FrameCompressor. The compressor
+ * keeps its window between operations, like a connection does between
+ * batches; operations cycle through different payloads, so no payload is
+ * still in the window when it is sent again. Bytes per operation are printed
+ * at the end of each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+    private static final String[] WORDS = {
+            "hello", "the", "build", "is", "green", "again", "who", "broke", "tests", "on", "main", "lunch",
+            "anyone", "deploy", "at", "five", "review", "my", "PR", "please", "thanks", "works", "for", "me"
+    };
+
+    @Param({"scrollback20", "scrollback100", "activelist1000"})
+    public String payload;
+
+    @Param({"legacy", "binary", "deflate"})
+    public String encoding;
+
+    private static final int VARIANTS = 64;
+
+    private final List<List<Frame>> variants = new ArrayList<>();
+    private final ByteBuffer sink = ByteBuffer.allocate(1024 * 1024);
+    private FrameCompressor compressor;
+    private long operations;
+    private long bytes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < VARIANTS; i++) {
+            List<Frame> frames = payload.startsWith("scrollback")
+                    ? scrollback(random, Integer.parseInt(payload.substring("scrollback".length())))
+                    : activeList(random, 1000);
+            if (!"legacy".equals(encoding)) {
+                frames.replaceAll(Frame::forBinary);
+            }
+            variants.add(frames);
+        }
+        if ("deflate".equals(encoding)) {
+            compressor = new FrameCompressor(new CompressionSettings(true, 512, 1));
+        }
+    }
+
+    private static List<Frame> scrollback(Random random, int count) {
+        List<Frame> frames = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int word = 0, words = 3 + random.nextInt(10); word < words; word++) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            frames.add(ClientHandler.encodeChatMessage("general", "user" + random.nextInt(50), text.toString().trim()));
+        }
+        return frames;
+    }
+
+    private static List<Frame> activeList(Random random, int users) {
+        StringBuilder list = new StringBuilder("Users are online now:\n");
+        for (int i = 0; i < users; i++) {
+            list.append("- user").append(random.nextInt(1_000_000)).append('\n');
+        }
+        List<Frame> frames = new ArrayList<>();
+        frames.add(ClientHandler.encodeMessage(list.toString()));
+        return frames;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.printf("%n%s/%s: %d bytes per operation%n", payload, encoding, operations == 0 ? 0 : bytes / operations);
+        if (compressor != null) {
+            compressor.close();
+        }
+    }
+
+    @Benchmark
+    public int send() throws IOException {
+        sink.clear();
+        List<Frame> frames = variants.get((int) (operations % VARIANTS));
+        if (compressor == null) {
+            for (Frame frame : frames) {
+                frame.writeTo(sink);
+            }
+        } else {
+            for (Frame frame : frames) {
+                compressor.add(frame);
+                if (compressor.isFull()) {
+                    compressor.writeTo(sink);
+                }
+            }
+            compressor.writeTo(sink);
+        }
+        operations++;
+        bytes += sink.position();
+        return sink.position();
+    }
+}
@@ -0,0 +1,141 @@
+package ru.gordeev.chat.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.gordeev.chat.handlers.TimingWheel;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one second of idle checking with the default settings: a tick of
+ * the TimingWheel, which only touches the connections due in that second
+ * and schedules them for their next deadline the way IdleMonitor.check
+ * does, against a scan working out the deadlines of every connection.
+ * Every user sends a message about once a minute, and the given share of
+ * the connections asked for heartbeats, which are answered right away.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IdleCheckBenchmark {
+
+    private static final long TICK_MILLIS = 1000;
+    private static final long IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(20);
+    private static final long HEARTBEAT_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(15);
+    private static final long MESSAGE_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    @Param({"10000", "100000"})
+    public int connections;
+
+    @Param({"0", "50"})
+    public int heartbeatPercent;
+
+    private TimingWheel<Connection> wheel;
+    private Connection[] all;
+    private long now;
+    private long checked;
+
+    @Setup
+    public void setUp() {
+        wheel = new TimingWheel<>(TICK_MILLIS, 512, 0);
+        all = new Connection[connections];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < connections; i++) {
+            Connection connection = new Connection(random.nextInt(100) < heartbeatPercent,
+                    -random.nextLong(MESSAGE_INTERVAL_MILLIS));
+            all[i] = connection;
+            wheel.schedule(connection, deadline(connection));
+        }
+        now = 0;
+    }
+
+    @Benchmark
+    public long wheelTick() {
+        now += TICK_MILLIS;
+        sendMessages();
+        wheel.advance(now, connection -> wheel.schedule(connection, check(connection, now)));
+        return checked;
+    }
+
+    @Benchmark
+    public long fullScan() {
+        now += TICK_MILLIS;
+        sendMessages();
+        Connection[] connections = all;
+        for (int i = 0; i < connections.length; i++) {
+            Connection connection = connections[i];
+            if (now >= deadline(connection)) {
+                check(connection, now);
+            }
+        }
+        return checked;
+    }
+
+    /**
+     * The messages of one second, which only move the activity time.
+     */
+    private void sendMessages() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int messages = (int) (connections * TICK_MILLIS / MESSAGE_INTERVAL_MILLIS);
+        for (int i = 0; i < messages; i++) {
+            Connection connection = all[random.nextInt(connections)];
+            connection.lastActivity = now;
+            connection.lastRead = now;
+        }
+    }
+
+    /**
+     * What IdleMonitor.check does when a deadline comes up: a connection
+     * with heartbeats is pinged, and answers at once, and a connection past
+     * its idle deadline is replaced by a new one.
+     *
+     * @return the next deadline of the connection
+     */
+    private long check(Connection connection, long now) {
+        checked++;
+        if (now >= connection.lastActivity + IDLE_TIMEOUT_MILLIS) {
+            connection.lastActivity = now;
+            connection.lastRead = now;
+        } else if (connection.heartbeat && now - connection.lastRead >= HEARTBEAT_INTERVAL_MILLIS) {
+            connection.lastRead = now;
+        }
+        return deadline(connection);
+    }
+
+    /**
+     * The earliest of the idle deadline and, if the connection asked for
+     * heartbeats, the time of its next ping.
+     */
+    private static long deadline(Connection connection) {
+        long deadline = connection.lastActivity + IDLE_TIMEOUT_MILLIS;
+        if (connection.heartbeat) {
+            deadline = Math.min(deadline, connection.lastRead + HEARTBEAT_INTERVAL_MILLIS);
+        }
+        return deadline;
+    }
+
+    private static final class Connection {
+        final boolean heartbeat;
+        long lastActivity;
+        long lastRead;
+
+        Connection(boolean heartbeat, long lastActivity) {
+            this.heartbeat = heartbeat;
+            this.lastActivity = lastActivity;
+            this.lastRead = lastActivity;
+        }
+    }
+}
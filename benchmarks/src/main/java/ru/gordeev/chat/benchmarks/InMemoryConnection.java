@@ -0,0 +1,70 @@
+package ru.gordeev.chat.benchmarks;
+
+import ru.gordeev.chat.network.ClientConnection;
+import ru.gordeev.chat.network.Frame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A ClientConnection that copies every frame into an in-memory buffer,
+ * the same work a real writer does when it moves frames into its socket
+ * buffer. The buffer is recycled when it fills up. A binary connection
+ * takes the binary protocol encoding of each frame.
+ */
+public class InMemoryConnection implements ClientConnection {
+
+    private final ByteBuffer sink;
+    private final boolean binary;
+    private long framesReceived;
+    private volatile boolean closed;
+
+    public InMemoryConnection(boolean direct) {
+        this(direct, false);
+    }
+
+    public InMemoryConnection(boolean direct, boolean binary) {
+        this.sink = direct ? ByteBuffer.allocateDirect(128 * 1024) : ByteBuffer.allocate(128 * 1024);
+        this.binary = binary;
+    }
+
+    @Override
+    public void send(Frame frame) {
+        if (binary) {
+            frame = frame.forBinary();
+        }
+        if (sink.remaining() < frame.length()) {
+            sink.clear();
+        }
+        frame.writeTo(sink);
+        framesReceived++;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    public void abort() {
+        closed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return "in-memory";
+    }
+
+    @Override
+    public String getRemoteHost() {
+        return "in-memory";
+    }
+
+    public long getFramesReceived() {
+        return framesReceived;
+    }
+}
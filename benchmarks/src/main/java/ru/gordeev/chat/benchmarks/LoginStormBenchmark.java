@@ -0,0 +1,119 @@
+package ru.gordeev.chat.benchmarks;
+
+import org.mindrot.jbcrypt.BCrypt;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.gordeev.chat.database.PasswordHashing;
+import ru.gordeev.chat.database.PostgresUserService;
+import ru.gordeev.chat.handlers.AuthenticationService;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A reconnect storm: all clients send their credentials at once, as after
+ * a server restart, and the AuthenticationService has to work through them.
+ *
+ * With DATABASE hashing every check is a round trip that includes the
+ * simulated cost of crypt() in Postgres; with JVM hashing the database
+ * only returns the stored hash and jBCrypt verifies it on the
+ * authentication threads. The accepted and rejected counters show how
+ * many logins the admission queue let through.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoginStormBenchmark {
+
+    private static final String PASSWORD = "pass1";
+
+    @Param({"1000"})
+    public int clients;
+
+    @Param({"DATABASE", "JVM"})
+    public PasswordHashing hashing;
+
+    @Param({"4", "16"})
+    public int authThreads;
+
+    @Param({"100", "10000"})
+    public int queueCapacity;
+
+    /**
+     * Round trip of a plain lookup.
+     */
+    @Param({"200"})
+    public long dbLatencyMicros;
+
+    /**
+     * Extra database time of a crypt() call with a bcrypt hash.
+     */
+    @Param({"3000"})
+    public long dbCryptMicros;
+
+    private AuthenticationService authenticationService;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Outcome {
+        public long accepted;
+        public long rejected;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            accepted = 0;
+            rejected = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        Map<String, Object> row = Map.of(
+                "login", "user1",
+                "username", "User1",
+                "role", "USER",
+                "is_banned", false,
+                "password", BCrypt.hashpw(PASSWORD, BCrypt.gensalt(6)));
+        long latencyMicros = hashing == PasswordHashing.DATABASE ? dbLatencyMicros + dbCryptMicros : dbLatencyMicros;
+        PostgresUserService userService = new PostgresUserService(
+                StubDataSource.create(row, TimeUnit.MICROSECONDS.toNanos(latencyMicros)), hashing);
+        authenticationService = new AuthenticationService(userService, authThreads, queueCapacity);
+    }
+
+    @TearDown
+    public void tearDown() {
+        authenticationService.shutdown();
+    }
+
+    @Benchmark
+    public void reconnectStorm(Outcome outcome) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(clients);
+        for (int i = 0; i < clients; i++) {
+            try {
+                authenticationService.authenticate("user1", PASSWORD).whenComplete((profile, error) -> done.countDown());
+                outcome.accepted++;
+            } catch (RejectedExecutionException e) {
+                outcome.rejected++;
+                done.countDown();
+            }
+        }
+        done.await();
+    }
+}
@@ -0,0 +1,87 @@
+package ru.gordeev.chat.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.gordeev.chat.handlers.ClientHandler;
+import ru.gordeev.chat.helpers.TimestampCache;
+import ru.gordeev.chat.network.Frame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formatting and encoding of a single outgoing message: the timestamp
+ * prefix and modified UTF-8 encoding done by ClientHandler.sendMessage,
+ * compared with formatting the timestamp on every call and with a bare
+ * DataOutputStream.writeUTF.
+ *
+ * Run with "-prof gc" to see the allocation per call (gc.alloc.rate.norm):
+ * with the cached prefix only the frame array itself should be allocated.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageEncodingBenchmark {
+
+    @Param({"ascii", "cyrillic"})
+    public String text;
+
+    private String message;
+    private ClientHandler client;
+    private ByteArrayOutputStream bytes;
+    private DataOutputStream out;
+
+    @Setup
+    public void setUp() {
+        message = "ascii".equals(text)
+                ? "User42: has anyone seen the release notes for today's build?"
+                : "User42: кто-нибудь видел заметки к сегодняшней сборке?";
+        client = new ClientHandler(BenchmarkServers.newServer(), new InMemoryConnection(false));
+        bytes = new ByteArrayOutputStream(64 * 1024);
+        out = new DataOutputStream(bytes);
+    }
+
+    @Benchmark
+    public Frame encodeMessage() {
+        return ClientHandler.encodeMessage(message);
+    }
+
+    @Benchmark
+    public Frame encodeMessageFormattingEachTime() throws IOException {
+        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+        return Frame.of("[" + timestamp + "] " + message);
+    }
+
+    @Benchmark
+    public byte[] timestampPrefix() {
+        return TimestampCache.shared().prefix();
+    }
+
+    @Benchmark
+    public void sendMessage() {
+        client.sendMessage(message);
+    }
+
+    @Benchmark
+    public int writeUtf() throws IOException {
+        bytes.reset();
+        out.writeUTF(message);
+        return bytes.size();
+    }
+}
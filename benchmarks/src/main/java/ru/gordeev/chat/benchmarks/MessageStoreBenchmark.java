@@ -0,0 +1,97 @@
+package ru.gordeev.chat.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.gordeev.chat.database.BatchingMessageWriter;
+import ru.gordeev.chat.database.ChatMessage;
+import ru.gordeev.chat.database.PostgresMessageStore;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message history writes against a stubbed DataSource with a simulated
+ * round trip per statement.
+ *
+ * saveAll shows how the batch size changes the number of messages stored
+ * per second (the "messages" counter). write measures what storing the
+ * history adds to the delivery path: queueing a message for the
+ * background writer.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageStoreBenchmark {
+
+    @Param({"1", "50", "500"})
+    public int batchSize;
+
+    @Param({"500"})
+    public long dbLatencyMicros;
+
+    private PostgresMessageStore store;
+    private List<ChatMessage> batch;
+    private BatchingMessageWriter writer;
+    private ChatMessage message;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Stored {
+        public long messages;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            messages = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        store = new PostgresMessageStore(StubDataSource.create(Map.of(), TimeUnit.MICROSECONDS.toNanos(dbLatencyMicros)));
+        message = new ChatMessage(LocalDateTime.now(), "general", "User1", null, "has anyone seen the release notes for today's build?");
+        batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(message);
+        }
+        writer = new BatchingMessageWriter(store, batchSize, 200, 50_000);
+        writer.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        writer.close(5, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void saveAll(Stored stored) {
+        store.saveAll(batch);
+        stored.messages += batch.size();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Threads(4)
+    public boolean write() {
+        return writer.write(message);
+    }
+}
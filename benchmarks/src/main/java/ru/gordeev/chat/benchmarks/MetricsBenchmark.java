@@ -0,0 +1,78 @@
+package ru.gordeev.chat.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.gordeev.chat.metrics.Counter;
+import ru.gordeev.chat.metrics.Histogram;
+import ru.gordeev.chat.metrics.MetricsRegistry;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the instruments on the send and receive paths: a counter
+ * increment and a histogram record, alone and with four threads updating
+ * the same instrument. "scrape" renders a registry of 50 histograms in
+ * the text format, as the metrics endpoint does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Instruments {
+        final Counter counter = new Counter();
+        final Histogram histogram = new Histogram();
+        final MetricsRegistry registry = new MetricsRegistry();
+
+        public Instruments() {
+            for (int i = 0; i < 50; i++) {
+                Histogram statement = registry.histogram("bench_statement_micros", "Statement latency",
+                        "sql", "SELECT " + i + " FROM bench WHERE id = ?");
+                for (int j = 0; j < 1000; j++) {
+                    statement.record(ThreadLocalRandom.current().nextLong(10_000));
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void counter(Instruments instruments) {
+        instruments.counter.increment();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void counterShared(Instruments instruments) {
+        instruments.counter.increment();
+    }
+
+    @Benchmark
+    public void histogram(Instruments instruments) {
+        instruments.histogram.record(ThreadLocalRandom.current().nextLong(10_000));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void histogramShared(Instruments instruments) {
+        instruments.histogram.record(ThreadLocalRandom.current().nextLong(10_000));
+    }
+
+    @Benchmark
+    public int scrape(Instruments instruments) {
+        StringBuilder text = new StringBuilder(8192);
+        instruments.registry.writeText(text);
+        return text.length();
+    }
+}
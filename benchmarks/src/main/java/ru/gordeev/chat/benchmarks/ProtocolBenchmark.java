@@ -0,0 +1,83 @@
+package ru.gordeev.chat.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.gordeev.chat.Server;
+import ru.gordeev.chat.handlers.ClientHandler;
+import ru.gordeev.chat.network.Frame;
+import ru.gordeev.chat.network.FrameCodec;
+import ru.gordeev.chat.network.InboundFrame;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Legacy writeUTF protocol against the binary one for a chat message:
+ * decoding and dispatching an incoming message (room of two members), and
+ * encoding an outgoing one. The frame sizes of both protocols are printed
+ * at setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtocolBenchmark {
+
+    private static final String TEXT = "hello everyone, how is it going?";
+
+    @Param({"legacy", "binary"})
+    public String protocol;
+
+    private ClientHandler sender;
+    private boolean binary;
+    private byte[] inbound;
+
+    @Setup
+    public void setUp() throws IOException {
+        binary = "binary".equals(protocol);
+        Server server = BenchmarkServers.newServer();
+        sender = BenchmarkServers.login(server, new InMemoryConnection(false, binary), "user0");
+        BenchmarkServers.login(server, new InMemoryConnection(false, binary), "user1");
+
+        if (binary) {
+            // type CHAT, one string field; both lengths fit into a single varint byte
+            byte[] text = TEXT.getBytes(StandardCharsets.UTF_8);
+            inbound = new byte[2 + text.length];
+            inbound[0] = 0x03;
+            inbound[1] = (byte) text.length;
+            System.arraycopy(text, 0, inbound, 2, text.length);
+        } else {
+            inbound = FrameCodec.encode(TEXT);
+        }
+
+        Frame outbound = ClientHandler.encodeChatMessage("general", "user0", TEXT);
+        System.out.printf("%nChat frame: legacy %d bytes, binary %d bytes%n",
+                outbound.length(), outbound.forBinary().length());
+    }
+
+    @Benchmark
+    public boolean receiveChat() throws IOException {
+        if (binary) {
+            return sender.onFrame(InboundFrame.decode(inbound, 0, inbound.length));
+        }
+        return sender.onMessage(FrameCodec.decode(inbound, FrameCodec.HEADER_LENGTH, inbound.length - FrameCodec.HEADER_LENGTH));
+    }
+
+    @Benchmark
+    public Frame encodeChat() {
+        Frame frame = ClientHandler.encodeChatMessage("general", "user0", TEXT);
+        return binary ? frame.forBinary() : frame;
+    }
+}
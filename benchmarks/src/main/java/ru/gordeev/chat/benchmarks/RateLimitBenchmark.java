@@ -0,0 +1,72 @@
+package ru.gordeev.chat.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.gordeev.chat.handlers.RateLimitAction;
+import ru.gordeev.chat.handlers.RateLimitSettings;
+import ru.gordeev.chat.handlers.RateLimiter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cost of charging a chat message to the rate limits of its sender: a CAS
+ * on the user bucket and one on the address bucket. In "sharedAddress"
+ * four readers with their own user buckets contend on the bucket of one
+ * address, as clients behind the same NAT do.
+ *
+ * The budgets are large enough for most messages to be accepted, so the
+ * accepting path is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RateLimitBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Limiter {
+        final RateLimiter rateLimiter = new RateLimiter(
+                new RateLimitSettings(true, 1, RateLimitAction.DROP, 1, 1)
+                        .withBudget(RateLimiter.Kind.CHAT, Integer.MAX_VALUE, 1_000_000)
+                        .withBudget(RateLimiter.Kind.PRIVATE, Integer.MAX_VALUE, 1_000_000)
+                        .withBudget(RateLimiter.Kind.AUTH, Integer.MAX_VALUE, 1_000_000));
+        final AtomicInteger users = new AtomicInteger();
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        RateLimiter.Quota ownAddress;
+        RateLimiter.Quota sharedAddress;
+
+        @Setup
+        public void setUp(Limiter limiter) {
+            int user = limiter.users.getAndIncrement();
+            ownAddress = limiter.rateLimiter.newQuota("10.0.0." + user);
+            ownAddress.bindUser("own" + user);
+            sharedAddress = limiter.rateLimiter.newQuota("10.0.1.1");
+            sharedAddress.bindUser("shared" + user);
+        }
+    }
+
+    @Benchmark
+    public boolean ownAddress(Client client) {
+        return client.ownAddress.tryAcquire(RateLimiter.Kind.CHAT);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean sharedAddress(Client client) {
+        return client.sharedAddress.tryAcquire(RateLimiter.Kind.CHAT);
+    }
+}
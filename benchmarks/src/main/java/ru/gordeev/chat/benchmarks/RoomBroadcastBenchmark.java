@@ -0,0 +1,59 @@
+package ru.gordeev.chat.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.gordeev.chat.Server;
+import ru.gordeev.chat.handlers.ClientHandler;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A chat message sent to one room while the online users are spread over
+ * several rooms. Delivery only touches the members of the sender's room,
+ * so the cost follows the room size rather than the number of users online.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoomBroadcastBenchmark {
+
+    private static final String MESSAGE = "Привет! Has anyone seen the release notes for today's build?";
+
+    @Param({"10000"})
+    public int online;
+
+    @Param({"1", "10", "100"})
+    public int rooms;
+
+    private ClientHandler sender;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Server server = BenchmarkServers.newServer();
+        for (int i = 0; i < online; i++) {
+            ClientHandler client = BenchmarkServers.login(server, new InMemoryConnection(false), "user" + i);
+            client.onMessage("/join room" + (i % rooms));
+            if (i == 0) {
+                sender = client;
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean sendToRoom() {
+        return sender.onMessage(MESSAGE);
+    }
+}
@@ -0,0 +1,100 @@
+package ru.gordeev.chat.benchmarks;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A DataSource whose statements always return the same single row and
+ * report one updated row. An optional delay per statement stands in for
+ * the database round trip, which makes lock contention in the DAO visible.
+ */
+public final class StubDataSource {
+
+    private StubDataSource() {}
+
+    /**
+     * @param row          column values returned by every query
+     * @param latencyNanos time every executeQuery / executeUpdate takes
+     */
+    public static DataSource create(Map<String, Object> row, long latencyNanos) {
+        Connection connection = proxy(Connection.class, (p, method, args) -> {
+            switch (method.getName()) {
+                case "prepareStatement":
+                    return statement(row, latencyNanos);
+                case "isClosed":
+                case "isReadOnly":
+                    return false;
+                case "getAutoCommit":
+                    return true;
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        });
+        return proxy(DataSource.class, (p, method, args) ->
+                "getConnection".equals(method.getName()) ? connection : defaultValue(method.getReturnType()));
+    }
+
+    private static PreparedStatement statement(Map<String, Object> row, long latencyNanos) {
+        return proxy(PreparedStatement.class, (p, method, args) -> {
+            switch (method.getName()) {
+                case "executeQuery":
+                    simulateLatency(latencyNanos);
+                    return resultSet(row);
+                case "executeUpdate":
+                    simulateLatency(latencyNanos);
+                    return 1;
+                case "executeBatch":
+                    simulateLatency(latencyNanos);
+                    return new int[0];
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private static ResultSet resultSet(Map<String, Object> row) {
+        boolean[] consumed = new boolean[1];
+        return proxy(ResultSet.class, (p, method, args) -> {
+            if ("next".equals(method.getName())) {
+                boolean hasRow = !consumed[0];
+                consumed[0] = true;
+                return hasRow;
+            }
+            if (method.getName().startsWith("get") && args != null && args.length == 1 && args[0] instanceof String) {
+                Object value = row.get((String) args[0]);
+                return value != null ? value : defaultValue(method.getReturnType());
+            }
+            return defaultValue(method.getReturnType());
+        });
+    }
+
+    private static void simulateLatency(long latencyNanos) {
+        if (latencyNanos > 0) {
+            LockSupport.parkNanos(latencyNanos);
+        }
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(StubDataSource.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+}
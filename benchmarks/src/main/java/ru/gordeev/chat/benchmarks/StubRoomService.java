@@ -0,0 +1,26 @@
+package ru.gordeev.chat.benchmarks;
+
+import ru.gordeev.chat.database.RoomService;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A RoomService that doesn't remember anything, so benchmarks can join
+ * rooms without a database.
+ */
+public class StubRoomService implements RoomService {
+
+    @Override
+    public List<String> getRooms(String login) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void joinRoom(String login, String room) {
+    }
+
+    @Override
+    public void leaveRoom(String login, String room) {
+    }
+}
@@ -0,0 +1,84 @@
+package ru.gordeev.chat.benchmarks;
+
+import ru.gordeev.chat.database.UserProfile;
+import ru.gordeev.chat.database.UserService;
+import ru.gordeev.chat.handlers.UserRole;
+
+import java.util.List;
+
+/**
+ * A UserService that accepts every login and uses the login as the
+ * username, so benchmarks can authenticate clients without a database.
+ */
+public class StubUserService implements UserService {
+
+    @Override
+    public String getUsernameByLoginAndPassword(String login, String password) {
+        return login;
+    }
+
+    @Override
+    public UserProfile authenticate(String login, String password) {
+        return getUserProfile(login);
+    }
+
+    @Override
+    public boolean isUserAlreadyRegistered(String login, String username) {
+        return false;
+    }
+
+    @Override
+    public boolean registerUser(String login, String password, String username) {
+        return true;
+    }
+
+    @Override
+    public boolean changeUsername(String login, String newUsername) {
+        return true;
+    }
+
+    @Override
+    public UserRole getUserRole(String username) {
+        return username.startsWith("admin") ? UserRole.ADMIN : UserRole.USER;
+    }
+
+    @Override
+    public String getUserLogin(String username) {
+        return username;
+    }
+
+    @Override
+    public boolean setBan(String username, Integer durationMinutes) {
+        return true;
+    }
+
+    @Override
+    public boolean setBan(String username) {
+        return true;
+    }
+
+    @Override
+    public boolean unsetBan(String username) {
+        return true;
+    }
+
+    @Override
+    public boolean isBanned(String username) {
+        return false;
+    }
+
+    @Override
+    public List<UserProfile> getBannedUsers() {
+        return List.of();
+    }
+
+    @Override
+    public int liftExpiredBans(List<String> usernames) {
+        return 0;
+    }
+
+    @Override
+    public UserProfile getUserProfile(String username) {
+        return new UserProfile(username, username, getUserRole(username), false, null);
+    }
+}
@@ -0,0 +1,111 @@
+package ru.gordeev.chat.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.gordeev.chat.database.CachingUserService;
+import ru.gordeev.chat.database.PostgresUserService;
+import ru.gordeev.chat.database.UserProfile;
+import ru.gordeev.chat.database.UserService;
+import ru.gordeev.chat.helpers.UserNotFoundException;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PostgresUserService lookups against a stubbed DataSource. With
+ * dbLatencyMicros = 0 this measures the DAO and JDBC plumbing overhead;
+ * with a simulated round trip and several threads it shows how well
+ * concurrent logins overlap their database calls. The cached variant
+ * puts CachingUserService in front of the DAO, as the server does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserServiceBenchmark {
+
+    @Param({"0", "200"})
+    public long dbLatencyMicros;
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    private UserService userService;
+
+    @Setup
+    public void setUp() {
+        Map<String, Object> row = Map.of(
+                "id", 1,
+                "login", "user1",
+                "username", "User1",
+                "role", "USER",
+                "is_banned", false);
+        UserService dao = new PostgresUserService(
+                StubDataSource.create(row, TimeUnit.MICROSECONDS.toNanos(dbLatencyMicros)));
+        userService = cached ? new CachingUserService(dao) : dao;
+    }
+
+    @Benchmark
+    public String usernameByLoginAndPassword() {
+        return userService.getUsernameByLoginAndPassword("user1", "pass1");
+    }
+
+    @Benchmark
+    public Object userRole() {
+        return userService.getUserRole("User1");
+    }
+
+    @Benchmark
+    public boolean isBanned() throws UserNotFoundException {
+        return userService.isBanned("User1");
+    }
+
+    /**
+     * The four lookups ClientHandler.tryToAuthenticate used to make for one
+     * login, kept as the baseline for authenticate().
+     */
+    @Benchmark
+    public void loginSequence(Blackhole blackhole) throws UserNotFoundException {
+        loginOnce(blackhole);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void loginSequenceConcurrent(Blackhole blackhole) throws UserNotFoundException {
+        loginOnce(blackhole);
+    }
+
+    /**
+     * The single query a login makes now.
+     */
+    @Benchmark
+    public UserProfile authenticate() {
+        return userService.authenticate("user1", "pass1");
+    }
+
+    @Benchmark
+    @Threads(8)
+    public UserProfile authenticateConcurrent() {
+        return userService.authenticate("user1", "pass1");
+    }
+
+    private void loginOnce(Blackhole blackhole) throws UserNotFoundException {
+        String username = userService.getUsernameByLoginAndPassword("user1", "pass1");
+        blackhole.consume(userService.isBanned(username));
+        blackhole.consume(userService.getUserLogin(username));
+        blackhole.consume(userService.getUserRole(username));
+    }
+}
@@ -0,0 +1,175 @@
+package ru.gordeev.chat.benchmarks;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.gordeev.chat.database.PostgresUserService;
+import ru.gordeev.chat.database.UserProfile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logins and registrations against a users table of a million rows, with
+ * and without the unique indexes of the V9 migration.
+ *
+ * Unlike the other benchmarks this one needs a running PostgreSQL with
+ * pgcrypto: the URL is taken from -Dbench.jdbcUrl (the local database by
+ * default), the credentials from the same environment variables as the
+ * server. The table is created and seeded in a scratch schema, which is
+ * dropped afterwards. Without the indexes register runs the check and the
+ * INSERT the server used to make; with them it is the single INSERT ...
+ * ON CONFLICT the server makes now.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class UserTableBenchmark {
+
+    private static final String PASSWORD = "pass";
+    private static final String MIGRATION = "/db/migration/V9__unique_users_login_and_username.sql";
+
+    @Param({"1000000"})
+    public int users;
+
+    @Param({"false", "true"})
+    public boolean indexed;
+
+    private final AtomicLong registered = new AtomicLong();
+    private HikariDataSource dataSource;
+    private PostgresUserService userService;
+    private String schema;
+
+    @Setup
+    public void setUp() throws SQLException, IOException {
+        schema = indexed ? "bench_users_indexed" : "bench_users_plain";
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(System.getProperty("bench.jdbcUrl", "jdbc:postgresql://localhost:5432/postgres"));
+        config.setUsername(System.getenv("database.user"));
+        config.setPassword(System.getenv("database.password"));
+        config.addDataSourceProperty("currentSchema", schema + ",public");
+        dataSource = new HikariDataSource(config);
+
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("DROP SCHEMA IF EXISTS " + schema + " CASCADE");
+            statement.execute("CREATE SCHEMA " + schema);
+            statement.execute("""
+                    CREATE TABLE users
+                    (
+                        id             SERIAL PRIMARY KEY,
+                        login          VARCHAR(255) NOT NULL,
+                        password       TEXT         NOT NULL,
+                        username       VARCHAR(255) NOT NULL,
+                        role           VARCHAR(16)  NOT NULL DEFAULT 'USER',
+                        is_banned      BOOLEAN      DEFAULT FALSE,
+                        ban_expiration TIMESTAMP
+                    )""");
+            seed(connection);
+            if (indexed) {
+                for (String sql : readMigration().split(";")) {
+                    if (!sql.isBlank()) {
+                        statement.execute(sql);
+                    }
+                }
+            }
+            statement.execute("ANALYZE users");
+        }
+        userService = new PostgresUserService(dataSource);
+    }
+
+    /**
+     * Inserts the users with one INSERT ... SELECT. They share a single
+     * bcrypt hash, computing a million of them would take hours.
+     */
+    private void seed(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("""
+                WITH hash AS (SELECT crypt(?, gen_salt('bf')) AS password)
+                INSERT INTO users (login, password, username, role)
+                SELECT 'user' || i, hash.password, 'User' || i, 'USER'
+                FROM generate_series(1, ?) AS i, hash""")) {
+            statement.setString(1, PASSWORD);
+            statement.setInt(2, users);
+            statement.executeUpdate();
+        }
+    }
+
+    private static String readMigration() throws IOException {
+        try (InputStream in = UserTableBenchmark.class.getResourceAsStream(MIGRATION)) {
+            if (in == null) {
+                throw new IOException("Migration not found on the classpath: " + MIGRATION);
+            }
+            // Drop the comments, the statements are split on ';'
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8).replaceAll("(?m)^--.*$", "");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("DROP SCHEMA IF EXISTS " + schema + " CASCADE");
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    @Benchmark
+    public UserProfile authenticate() {
+        return userService.authenticate("user" + randomUser(), PASSWORD);
+    }
+
+    @Benchmark
+    public UserProfile profileByUsername() {
+        return userService.getUserProfile("User" + randomUser());
+    }
+
+    @Benchmark
+    public boolean register() {
+        long n = registered.incrementAndGet();
+        return register("new" + n, "New" + n);
+    }
+
+    /**
+     * Registration with a login that is already taken.
+     */
+    @Benchmark
+    public boolean registerTaken() {
+        int n = randomUser();
+        return register("user" + n, "Other" + n);
+    }
+
+    private boolean register(String login, String username) {
+        if (indexed) {
+            return userService.registerUser(login, PASSWORD, username);
+        }
+        // Without the unique indexes nothing stops a duplicate, the server had to look first
+        return !userService.isUserAlreadyRegistered(login, username) && userService.registerUser(login, PASSWORD, username);
+    }
+
+    private int randomUser() {
+        return ThreadLocalRandom.current().nextInt(1, users + 1);
+    }
+}
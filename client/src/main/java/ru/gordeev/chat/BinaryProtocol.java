@@ -0,0 +1,243 @@
+package ru.gordeev.chat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Client side of the binary chat protocol: the handshake and the frame
+ * format, a varint length followed by the type code and the fields.
+ * Strings are a varint byte length followed by UTF-8. When compression
+ * has been agreed on, the server may send COMPRESSED frames holding other
+ * frames, deflated with one stream for the whole connection.
+ */
+final class BinaryProtocol {
+
+    static final int VERSION = 2;
+    static final int FLAG_DEFLATE = 0x01;
+    static final int FLAG_HEARTBEAT = 0x02;
+
+    static final int AUTH = 0x01;
+    static final int REGISTER = 0x02;
+    static final int CHAT = 0x03;
+    static final int PRIVATE = 0x04;
+    static final int COMMAND = 0x05;
+    static final int PONG = 0x06;
+
+    static final int SYSTEM = 0x10;
+    static final int ROOM_CHAT = 0x11;
+    static final int PRIVATE_CHAT = 0x12;
+    static final int CONTROL = 0x13;
+    static final int USER = 0x14;
+    static final int ROOM = 0x15;
+    static final int COMPRESSED = 0x16;
+    static final int PING = 0x17;
+
+    private static final byte[] MAGIC = {(byte) 0xC3, 'C', 'H', 'T'};
+    private static final int MAX_FRAME_LENGTH = 1024 * 1024;
+
+    private BinaryProtocol() {}
+
+    static void writeHandshake(DataOutputStream out, int flags) throws IOException {
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(flags);
+        out.flush();
+    }
+
+    /**
+     * Reads up to the server's answer to the handshake. The stream must
+     * support mark/reset.
+     *
+     * @param legacyMessages receives the messages the server sent before the answer
+     * @return the version picked by the server, 0 if it supports none of ours;
+     *         since version 2 the accepted flags follow, see {@link #readFlags}
+     */
+    static int readAcknowledgement(DataInputStream in, Consumer<String> legacyMessages) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        while (true) {
+            in.mark(magic.length);
+            in.readFully(magic);
+            if (Arrays.equals(magic, MAGIC)) {
+                return in.readUnsignedByte();
+            }
+            in.reset();
+            legacyMessages.accept(in.readUTF());
+        }
+    }
+
+    static int readFlags(DataInputStream in, int version) throws IOException {
+        return version >= 2 ? in.readUnsignedByte() : 0;
+    }
+
+    static void writeFrame(DataOutputStream out, int type, String... fields) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(type);
+        for (String field : fields) {
+            byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+            writeVarint(body, bytes.length);
+            body.write(bytes);
+        }
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(body.size() + 3);
+        writeVarint(frame, body.size());
+        body.writeTo(frame);
+        frame.writeTo(out);
+        out.flush();
+    }
+
+    static Frame readFrame(DataInputStream in) throws IOException {
+        long length = readVarint(in);
+        if (length < 1 || length > MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Invalid frame length: " + length);
+        }
+        byte[] body = new byte[(int) length];
+        in.readFully(body);
+        return new Frame(body);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Malformed varint");
+    }
+
+    /**
+     * A received frame; its fields are read in order.
+     */
+    static final class Frame {
+
+        private final byte[] body;
+        private int position = 1;
+
+        private Frame(byte[] body) {
+            this.body = body;
+        }
+
+        int getType() {
+            return body[0] & 0xFF;
+        }
+
+        long readVarint() throws ProtocolException {
+            long value = 0;
+            for (int shift = 0; shift < 64 && position < body.length; shift += 7) {
+                byte b = body[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new ProtocolException("Malformed varint");
+        }
+
+        String readString() throws ProtocolException {
+            long length = readVarint();
+            if (length > body.length - position) {
+                throw new ProtocolException("Malformed string");
+            }
+            String value = new String(body, position, (int) length, StandardCharsets.UTF_8);
+            position += (int) length;
+            return value;
+        }
+    }
+
+    /**
+     * Reads the frames of the server, taking the ones packed into COMPRESSED
+     * frames out in order.
+     */
+    static final class FrameReader {
+
+        private final DataInputStream in;
+        private final Inflater inflater;
+        private byte[] inflated = new byte[4096];
+        private int inflatedPosition;
+        private int inflatedLength;
+
+        FrameReader(DataInputStream in, boolean compressed) {
+            this.in = in;
+            this.inflater = compressed ? new Inflater(true) : null;
+        }
+
+        Frame read() throws IOException {
+            while (true) {
+                if (inflatedPosition < inflatedLength) {
+                    return nextInflatedFrame();
+                }
+                Frame frame = readFrame(in);
+                if (frame.getType() != COMPRESSED) {
+                    return frame;
+                }
+                if (inflater == null) {
+                    throw new ProtocolException("Compressed frame without compression");
+                }
+                inflate(frame.body);
+            }
+        }
+
+        void close() {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+
+        private void inflate(byte[] body) throws ProtocolException {
+            inflater.setInput(body, 1, body.length - 1);
+            inflatedPosition = 0;
+            inflatedLength = 0;
+            try {
+                while (true) {
+                    if (inflatedLength == inflated.length) {
+                        inflated = Arrays.copyOf(inflated, inflated.length * 2);
+                    }
+                    int count = inflater.inflate(inflated, inflatedLength, inflated.length - inflatedLength);
+                    inflatedLength += count;
+                    if (count == 0 && inflatedLength < inflated.length) {
+                        return;
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new ProtocolException("Malformed compressed frame");
+            }
+        }
+
+        private Frame nextInflatedFrame() throws ProtocolException {
+            long length = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (inflatedPosition >= inflatedLength || shift > 28) {
+                    throw new ProtocolException("Malformed compressed frame");
+                }
+                byte b = inflated[inflatedPosition++];
+                length |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            if (length < 1 || length > inflatedLength - inflatedPosition) {
+                throw new ProtocolException("Malformed compressed frame");
+            }
+            byte[] body = Arrays.copyOfRange(inflated, inflatedPosition, inflatedPosition + (int) length);
+            inflatedPosition += (int) length;
+            return new Frame(body);
+        }
+    }
+}
@@ -3,38 +3,80 @@ package ru.gordeev.chat;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
 
 /**
  * Represents the chat client that connects to the server,
  * listens for incoming messages, and sends commands
  * or chat messages based on user input.
+ * In binary mode the client speaks the binary protocol: input lines are
+ * sent as typed frames and the end of the session arrives as a control
+ * frame rather than a text command. It also asks the server to compress
+ * what it sends.
+ * In both modes the client asks for heartbeats and answers them, so the
+ * server can tell it is still there while the user is reading.
  */
 public class Client {
 
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final String DEFAULT_ROOM = "general";
+    private static final String HEARTBEAT_OPT_IN = "/heartbeat";
+    private static final String HEARTBEAT_REQUEST = "/ping";
+    private static final String HEARTBEAT_REPLY = "/pong";
+
     private final Logger logger;
-    private boolean isOnline;
+    private final String host;
+    private final int port;
+    private final boolean binary;
+    private volatile boolean isOnline;
 
     public Client() {
+        this("localhost", 8089, false);
+    }
+
+    public Client(String host, int port) {
+        this(host, port, false);
+    }
+
+    public Client(String host, int port, boolean binary) {
         this.logger = LogManager.getLogger(Client.class);
+        this.host = host;
+        this.port = port;
+        this.binary = binary;
     }
 
     public void start() {
         try (
-                Socket socket = new Socket("localhost", 8089);
-                DataInputStream in = new DataInputStream(socket.getInputStream());
+                Socket socket = new Socket(host, port);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
                 DataOutputStream out = new DataOutputStream(socket.getOutputStream())
         ) {
             logger.info("Successful connection to server");
             isOnline = true;
+            if (binary) {
+                BinaryProtocol.writeHandshake(out, BinaryProtocol.FLAG_DEFLATE | BinaryProtocol.FLAG_HEARTBEAT);
+            } else {
+                send(out, HEARTBEAT_OPT_IN);
+            }
             Scanner scanner = new Scanner(System.in);
             Thread readThread  = new Thread(() -> {
                 try {
-                    readMessagesFromServer(in);
+                    if (binary) {
+                        readBinaryMessagesFromServer(in, out);
+                    } else {
+                        readMessagesFromServer(in, out);
+                    }
                 } catch (IOException e) {
                     logger.warn(e);
                 }
@@ -50,17 +92,52 @@ public class Client {
         while (true) {
             String message = scanner.nextLine();
             if (message.equals("/exit") || !isOnline) {
-                out.writeUTF("/exit");
+                send(out, "/exit");
                 readThread.interrupt();
                 break;
             }
+            send(out, message);
+        }
+    }
+
+    /**
+     * Sends a line typed by the user. Also called by the reading thread to
+     * answer heartbeats, hence synchronized on the stream.
+     */
+    private void send(DataOutputStream out, String message) throws IOException {
+        synchronized (out) {
+            sendUnsynchronized(out, message);
+        }
+    }
+
+    private void sendUnsynchronized(DataOutputStream out, String message) throws IOException {
+        if (!binary) {
             out.writeUTF(message);
+            return;
+        }
+        String[] parts = message.split(" ");
+        String[] privateParts = message.split(" ", 3);
+        if (message.startsWith("/auth ") && parts.length == 3) {
+            BinaryProtocol.writeFrame(out, BinaryProtocol.AUTH, parts[1], parts[2]);
+        } else if (message.startsWith("/register ") && parts.length == 4) {
+            BinaryProtocol.writeFrame(out, BinaryProtocol.REGISTER, parts[1], parts[2], parts[3]);
+        } else if (message.startsWith("/w ") && privateParts.length == 3) {
+            BinaryProtocol.writeFrame(out, BinaryProtocol.PRIVATE, privateParts[1], privateParts[2]);
+        } else if (message.startsWith("/")) {
+            // Other commands, and malformed ones the server answers with their format
+            BinaryProtocol.writeFrame(out, BinaryProtocol.COMMAND, message);
+        } else {
+            BinaryProtocol.writeFrame(out, BinaryProtocol.CHAT, message);
         }
     }
 
-    private void readMessagesFromServer(DataInputStream in) throws IOException {
+    private void readMessagesFromServer(DataInputStream in, DataOutputStream out) throws IOException {
         while (!Thread.currentThread().isInterrupted()) {
             String message = in.readUTF();
+            if (message.equals(HEARTBEAT_REQUEST)) {
+                send(out, HEARTBEAT_REPLY);
+                continue;
+            }
             if (message.contains("/kicked")
                     || message.contains("/inactive")
                     || message.contains("/banned")
@@ -72,4 +149,72 @@ public class Client {
             System.out.println(message);
         }
     }
+
+    private void readBinaryMessagesFromServer(DataInputStream in, DataOutputStream out) throws IOException {
+        int version = BinaryProtocol.readAcknowledgement(in, System.out::println);
+        if (version == 0) {
+            logger.warn("The server does not support the binary protocol");
+            isOnline = false;
+            return;
+        }
+        int flags = BinaryProtocol.readFlags(in, version);
+        BinaryProtocol.FrameReader reader = new BinaryProtocol.FrameReader(in, (flags & BinaryProtocol.FLAG_DEFLATE) != 0);
+        try {
+            readBinaryFrames(reader, out);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void readBinaryFrames(BinaryProtocol.FrameReader reader, DataOutputStream out) throws IOException {
+        Map<Long, String> users = new HashMap<>();
+        Map<Long, String> rooms = new HashMap<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            BinaryProtocol.Frame frame = reader.read();
+            switch (frame.getType()) {
+                case BinaryProtocol.SYSTEM:
+                    System.out.println(formatTime(frame.readVarint()) + frame.readString());
+                    break;
+                case BinaryProtocol.ROOM_CHAT: {
+                    String time = formatTime(frame.readVarint());
+                    String room = rooms.get(frame.readVarint());
+                    String sender = users.get(frame.readVarint());
+                    String text = frame.readString();
+                    String tag = DEFAULT_ROOM.equals(room) ? "" : "[#" + room + "] ";
+                    System.out.println(time + tag + sender + ": " + text);
+                    break;
+                }
+                case BinaryProtocol.PRIVATE_CHAT: {
+                    String time = formatTime(frame.readVarint());
+                    String sender = users.get(frame.readVarint());
+                    System.out.println(time + "Private message from " + sender + ": " + frame.readString());
+                    break;
+                }
+                case BinaryProtocol.CONTROL:
+                    isOnline = false;
+                    return;
+                case BinaryProtocol.USER:
+                    users.put(frame.readVarint(), frame.readString());
+                    break;
+                case BinaryProtocol.ROOM:
+                    rooms.put(frame.readVarint(), frame.readString());
+                    break;
+                case BinaryProtocol.PING:
+                    synchronized (out) {
+                        BinaryProtocol.writeFrame(out, BinaryProtocol.PONG);
+                    }
+                    break;
+                default:
+                    logger.debug("Skipping frame of unknown type {}", frame.getType());
+            }
+        }
+    }
+
+    private static String formatTime(long epochSecond) {
+        if (epochSecond == 0) {
+            return "";
+        }
+        LocalDateTime dateTime = LocalDateTime.ofInstant(Instant.ofEpochSecond(epochSecond), ZoneId.systemDefault());
+        return "[" + FORMATTER.format(dateTime) + "] ";
+    }
 }
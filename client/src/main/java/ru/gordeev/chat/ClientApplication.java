@@ -1,9 +1,25 @@
 package ru.gordeev.chat;
 
+import ru.gordeev.chat.load.LoadGenerator;
+import ru.gordeev.chat.load.LoadSettings;
+
+import java.util.Arrays;
+
 public class ClientApplication {
 
-    public static void main(String[] args) {
-        var client = new Client();
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "--load".equals(args[0])) {
+            new LoadGenerator(LoadSettings.fromArgs(Arrays.copyOfRange(args, 1, args.length))).run();
+            return;
+        }
+
+        boolean binary = args.length > 0 && "--binary".equals(args[0]);
+        if (binary) {
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        var client = args.length >= 2
+                ? new Client(args[0], Integer.parseInt(args[1]), binary)
+                : new Client("localhost", 8089, binary);
         client.start();
     }
 }
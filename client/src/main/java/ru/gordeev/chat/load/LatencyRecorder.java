@@ -0,0 +1,72 @@
+package ru.gordeev.chat.load;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets: exact below 64 us,
+ * then 32 sub-buckets per power of two (about 3% precision).
+ */
+public class LatencyRecorder {
+
+    private static final int LINEAR_BUCKETS = 64;
+    private static final int SUB_BUCKETS = 32;
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + (63 - 6 + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long micros) {
+        long value = Math.max(0, micros);
+        counts.incrementAndGet(index(value));
+        total.incrementAndGet();
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    public long getCount() {
+        return total.get();
+    }
+
+    public long getMaxMicros() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile a value between 0 and 100
+     * @return the upper bound of the bucket holding the percentile, in microseconds
+     */
+    public long getPercentileMicros(double percentile) {
+        long count = total.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int index(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - 5;
+        return LINEAR_BUCKETS + (exponent - 6) * SUB_BUCKETS + (int) ((value >> shift) - SUB_BUCKETS);
+    }
+
+    private static long upperBound(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        int exponent = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 6;
+        long mantissa = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << (exponent - 5)) - 1;
+    }
+}
@@ -0,0 +1,188 @@
+package ru.gordeev.chat.load;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One simulated user: registers (or logs in if the login already exists)
+ * and then records the delivery latency of every load message it receives.
+ */
+final class LoadConnection {
+
+    /**
+     * Marks load traffic; followed by the System.nanoTime() of the send and ':'.
+     */
+    static final String PAYLOAD_MARKER = "#lg:";
+
+    enum State { CONNECTING, REGISTERING, AUTHENTICATING, READY, FAILED }
+
+    private static final int INITIAL_READ_BUFFER_SIZE = 4 * 1024;
+    private static final int MAX_FRAME_SIZE = 2 + 65535;
+
+    private final LoadGenerator generator;
+    private final SocketChannel channel;
+    private final LoadReactor reactor;
+    private final String login;
+    private final String password;
+    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private volatile State state = State.CONNECTING;
+
+    // Owned by the reactor thread
+    private SelectionKey key;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+
+    LoadConnection(LoadGenerator generator, SocketChannel channel, LoadReactor reactor, String login, String password) {
+        this.generator = generator;
+        this.channel = channel;
+        this.reactor = reactor;
+        this.login = login;
+        this.password = password;
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    String getUsername() {
+        return login;
+    }
+
+    State getState() {
+        return state;
+    }
+
+    void registered(SelectionKey key) {
+        this.key = key;
+        state = State.REGISTERING;
+        send("/register " + login + " " + password + " " + login);
+    }
+
+    void send(String message) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.length() + 8);
+            new DataOutputStream(bytes).writeUTF(message);
+            writeQueue.offer(ByteBuffer.wrap(bytes.toByteArray()));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        if (flushRequested.compareAndSet(false, true)) {
+            reactor.requestFlush(this);
+        }
+    }
+
+    void handleRead() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            fail(new IOException("Connection closed by the server"));
+            return;
+        }
+
+        readBuffer.flip();
+        while (readBuffer.remaining() >= 2) {
+            int position = readBuffer.position();
+            int length = readBuffer.getShort(position) & 0xffff;
+            if (readBuffer.remaining() < 2 + length) {
+                break;
+            }
+            String message = new DataInputStream(
+                    new ByteArrayInputStream(readBuffer.array(), position, 2 + length)).readUTF();
+            readBuffer.position(position + 2 + length);
+            onMessage(message);
+        }
+        readBuffer.compact();
+
+        if (!readBuffer.hasRemaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, MAX_FRAME_SIZE));
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+    }
+
+    void flush() throws IOException {
+        flushRequested.set(false);
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        ByteBuffer buffer;
+        while ((buffer = writeQueue.peek()) != null) {
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            writeQueue.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    void fail(Exception cause) {
+        if (state != State.FAILED) {
+            State previous = state;
+            state = State.FAILED;
+            generator.connectionFailed(this, previous, cause);
+        }
+        close();
+    }
+
+    void close() {
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing to do, the run is over for this connection
+        }
+    }
+
+    private void onMessage(String message) {
+        switch (state) {
+            case REGISTERING:
+                if (message.contains("registration was successful")) {
+                    becomeReady();
+                } else if (message.contains("already taken")) {
+                    state = State.AUTHENTICATING;
+                    send("/auth " + login + " " + password);
+                }
+                break;
+            case AUTHENTICATING:
+                if (message.contains("welcome to the chat")) {
+                    becomeReady();
+                } else if (message.contains("already logged in") || message.contains("doesn't exist")
+                        || message.contains("banned")) {
+                    fail(new IOException("Authentication of " + login + " failed: " + message));
+                }
+                break;
+            case READY:
+                int marker = message.indexOf(PAYLOAD_MARKER);
+                if (marker >= 0 && !message.contains("Your private message")) {
+                    // #lg:<run id>:<send time>: - messages of earlier runs are replayed from the history
+                    int start = marker + PAYLOAD_MARKER.length();
+                    int runEnd = message.indexOf(':', start);
+                    int end = runEnd > start ? message.indexOf(':', runEnd + 1) : -1;
+                    if (end > runEnd + 1 && message.substring(start, runEnd).equals(generator.getRunId())) {
+                        generator.messageDelivered(System.nanoTime() - Long.parseLong(message.substring(runEnd + 1, end)));
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void becomeReady() {
+        state = State.READY;
+        generator.connectionReady(this);
+    }
+}
@@ -0,0 +1,198 @@
+package ru.gordeev.chat.load;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless load generator: opens many concurrent connections over a few
+ * selector threads, registers or authenticates each of them and then sends
+ * broadcast and private ('/w') messages at a fixed total rate.
+ *
+ * Every message carries the System.nanoTime() of its send, so receivers
+ * in this process measure end-to-end delivery latency. Progress is printed
+ * once a second, followed by a summary with p50/p99/p999 and throughput.
+ */
+public class LoadGenerator {
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long READY_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final Logger logger;
+    private final LoadSettings settings;
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private final LatencyRecorder latency = new LatencyRecorder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final List<LoadConnection> readyConnections = new CopyOnWriteArrayList<>();
+    private LoadReactor[] reactors;
+
+    public LoadGenerator(LoadSettings settings) {
+        this.logger = LogManager.getLogger(LoadGenerator.class);
+        this.settings = settings;
+    }
+
+    public void run() throws IOException, InterruptedException {
+        System.out.println("Load run: " + settings);
+        startReactors();
+        List<LoadConnection> connections = connectAll();
+
+        long readyDeadline = System.nanoTime() + READY_TIMEOUT_NANOS;
+        while (readyConnections.size() + failed.get() < connections.size() && System.nanoTime() < readyDeadline) {
+            Thread.sleep(100);
+        }
+        System.out.printf("%d connections ready, %d failed%n", readyConnections.size(), failed.get());
+        if (readyConnections.isEmpty()) {
+            stopReactors();
+            return;
+        }
+
+        long start = System.nanoTime();
+        generateTraffic(start);
+        long elapsedNanos = System.nanoTime() - start;
+
+        // let in-flight messages arrive before the summary
+        Thread.sleep(1000);
+        printSummary(elapsedNanos);
+        stopReactors();
+    }
+
+    /**
+     * Tags the messages of this run, so the ones replayed by the server from
+     * earlier runs are not counted.
+     */
+    String getRunId() {
+        return runId;
+    }
+
+    void connectionReady(LoadConnection connection) {
+        readyConnections.add(connection);
+    }
+
+    void connectionFailed(LoadConnection connection, LoadConnection.State state, Exception cause) {
+        failed.incrementAndGet();
+        readyConnections.remove(connection);
+        logger.debug("Connection {} failed in state {}", connection.getUsername(), state, cause);
+    }
+
+    void messageDelivered(long latencyNanos) {
+        delivered.increment();
+        latency.record(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+    }
+
+    private void startReactors() throws IOException {
+        reactors = new LoadReactor[settings.getIoThreads()];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new LoadReactor();
+            Thread thread = new Thread(reactors[i], "load-io-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void stopReactors() {
+        for (LoadReactor reactor : reactors) {
+            reactor.stop();
+        }
+    }
+
+    private List<LoadConnection> connectAll() {
+        InetSocketAddress address = new InetSocketAddress(settings.getHost(), settings.getPort());
+        List<LoadConnection> connections = new ArrayList<>(settings.getConnections());
+        for (int i = 0; i < settings.getConnections(); i++) {
+            try {
+                SocketChannel channel = SocketChannel.open(address);
+                channel.configureBlocking(false);
+                LoadReactor reactor = reactors[i % reactors.length];
+                LoadConnection connection = new LoadConnection(this, channel, reactor,
+                        settings.getLoginPrefix() + i, settings.getPassword());
+                connections.add(connection);
+                reactor.register(connection);
+            } catch (IOException e) {
+                failed.incrementAndGet();
+                logger.warn("Failed to open connection {}: {}", i, e.getMessage());
+            }
+        }
+        return connections;
+    }
+
+    private void generateTraffic(long start) throws InterruptedException {
+        long end = start + TimeUnit.SECONDS.toNanos(settings.getDurationSeconds());
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        long lastSent = 0;
+        long lastDelivered = 0;
+
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= end) {
+                break;
+            }
+
+            long due = (now - start) * settings.getMessagesPerSecond() / TimeUnit.SECONDS.toNanos(1);
+            while (sent.sum() < due) {
+                sendOne();
+            }
+
+            if (now >= nextReport) {
+                long sentTotal = sent.sum();
+                long deliveredTotal = delivered.sum();
+                System.out.printf("t=%3ds sent=%d/s delivered=%d/s p50=%.2fms p99=%.2fms p999=%.2fms ready=%d%n",
+                        TimeUnit.NANOSECONDS.toSeconds(now - start),
+                        sentTotal - lastSent, deliveredTotal - lastDelivered,
+                        millis(latency.getPercentileMicros(50)),
+                        millis(latency.getPercentileMicros(99)),
+                        millis(latency.getPercentileMicros(99.9)),
+                        readyConnections.size());
+                lastSent = sentTotal;
+                lastDelivered = deliveredTotal;
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+
+            TimeUnit.NANOSECONDS.sleep(TICK_NANOS);
+        }
+    }
+
+    private void sendOne() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<LoadConnection> ready = readyConnections;
+        LoadConnection sender = ready.get(random.nextInt(ready.size()));
+        String payload = "load " + LoadConnection.PAYLOAD_MARKER + runId + ":" + System.nanoTime() + ":";
+
+        if (random.nextDouble() < settings.getPrivateRatio()) {
+            LoadConnection receiver = ready.get(random.nextInt(ready.size()));
+            sender.send("/w " + receiver.getUsername() + " " + payload);
+        } else {
+            sender.send(payload);
+        }
+        sent.increment();
+    }
+
+    private void printSummary(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println("---");
+        System.out.printf("Duration:    %.1fs, connections ready: %d, failed: %d%n",
+                seconds, readyConnections.size(), failed.get());
+        System.out.printf("Sent:        %d messages (%.0f msg/s)%n", sent.sum(), sent.sum() / seconds);
+        System.out.printf("Delivered:   %d messages (%.0f msg/s)%n", delivered.sum(), delivered.sum() / seconds);
+        System.out.printf("Latency:     p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms%n",
+                millis(latency.getPercentileMicros(50)),
+                millis(latency.getPercentileMicros(99)),
+                millis(latency.getPercentileMicros(99.9)),
+                millis(latency.getMaxMicros()));
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+}
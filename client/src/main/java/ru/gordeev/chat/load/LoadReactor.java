@@ -0,0 +1,100 @@
+package ru.gordeev.chat.load;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A selector thread serving a share of the load connections.
+ */
+final class LoadReactor implements Runnable {
+
+    private final Logger logger;
+    private final Selector selector;
+    private final Queue<LoadConnection> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final Queue<LoadConnection> pendingFlushes = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    LoadReactor() throws IOException {
+        this.logger = LogManager.getLogger(LoadReactor.class);
+        this.selector = Selector.open();
+    }
+
+    void register(LoadConnection connection) {
+        pendingRegistrations.offer(connection);
+        selector.wakeup();
+    }
+
+    void requestFlush(LoadConnection connection) {
+        pendingFlushes.offer(connection);
+        selector.wakeup();
+    }
+
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select(this::processKey);
+                processRegistrations();
+                processFlushes();
+            } catch (IOException e) {
+                logger.error("Error in selector loop", e);
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            ((LoadConnection) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.error("Error closing selector", e);
+        }
+    }
+
+    private void processKey(SelectionKey key) {
+        LoadConnection connection = (LoadConnection) key.attachment();
+        try {
+            if (key.isValid() && key.isReadable()) {
+                connection.handleRead();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.flush();
+            }
+        } catch (IOException e) {
+            connection.fail(e);
+        }
+    }
+
+    private void processRegistrations() {
+        LoadConnection connection;
+        while ((connection = pendingRegistrations.poll()) != null) {
+            try {
+                connection.registered(connection.channel().register(selector, SelectionKey.OP_READ, connection));
+            } catch (ClosedChannelException e) {
+                connection.fail(e);
+            }
+        }
+    }
+
+    private void processFlushes() {
+        LoadConnection connection;
+        while ((connection = pendingFlushes.poll()) != null) {
+            try {
+                connection.flush();
+            } catch (IOException e) {
+                connection.fail(e);
+            }
+        }
+    }
+}
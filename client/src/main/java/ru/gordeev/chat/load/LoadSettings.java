@@ -0,0 +1,106 @@
+package ru.gordeev.chat.load;
+
+/**
+ * Parameters of a load run, parsed from {@code --name=value} arguments.
+ */
+public class LoadSettings {
+
+    private String host = "localhost";
+    private int port = 8089;
+    private int connections = 1000;
+    private int messagesPerSecond = 1000;
+    private double privateRatio = 0.1;
+    private int durationSeconds = 60;
+    private int ioThreads = Runtime.getRuntime().availableProcessors();
+    private String loginPrefix = "load";
+    private String password = "loadpass";
+
+    public static LoadSettings fromArgs(String[] args) {
+        LoadSettings settings = new LoadSettings();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                continue;
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (name) {
+                case "host":
+                    settings.host = value;
+                    break;
+                case "port":
+                    settings.port = Integer.parseInt(value);
+                    break;
+                case "connections":
+                    settings.connections = Integer.parseInt(value);
+                    break;
+                case "rate":
+                    settings.messagesPerSecond = Integer.parseInt(value);
+                    break;
+                case "private-ratio":
+                    settings.privateRatio = Double.parseDouble(value);
+                    break;
+                case "duration":
+                    settings.durationSeconds = Integer.parseInt(value);
+                    break;
+                case "io-threads":
+                    settings.ioThreads = Integer.parseInt(value);
+                    break;
+                case "login-prefix":
+                    settings.loginPrefix = value;
+                    break;
+                case "password":
+                    settings.password = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown load option: " + arg);
+            }
+        }
+        return settings;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public int getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    public double getPrivateRatio() {
+        return privateRatio;
+    }
+
+    public int getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public String getLoginPrefix() {
+        return loginPrefix;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    @Override
+    public String toString() {
+        return "host=" + host + ":" + port
+                + ", connections=" + connections
+                + ", rate=" + messagesPerSecond + " msg/s"
+                + ", private-ratio=" + privateRatio
+                + ", duration=" + durationSeconds + "s"
+                + ", io-threads=" + ioThreads;
+    }
+}
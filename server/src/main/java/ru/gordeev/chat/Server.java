@@ -2,239 +2,1039 @@ package ru.gordeev.chat;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import ru.gordeev.chat.cluster.ClusterBus;
+import ru.gordeev.chat.cluster.ClusterEvent;
+import ru.gordeev.chat.cluster.ClusterPresence;
+import ru.gordeev.chat.config.ServerConfig;
+import ru.gordeev.chat.database.BatchingMessageWriter;
+import ru.gordeev.chat.database.CachingUserService;
+import ru.gordeev.chat.database.ChatMessage;
+import ru.gordeev.chat.database.MessageStore;
+import ru.gordeev.chat.database.PostgresMessageStore;
+import ru.gordeev.chat.database.PostgresRoomService;
 import ru.gordeev.chat.database.PostgresUserService;
+import ru.gordeev.chat.database.RoomService;
 import ru.gordeev.chat.database.UserService;
+import ru.gordeev.chat.handlers.AuthenticationService;
 import ru.gordeev.chat.handlers.BanManagementService;
 import ru.gordeev.chat.handlers.ClientHandler;
+import ru.gordeev.chat.handlers.CommandRegistry;
+import ru.gordeev.chat.handlers.IdleMonitor;
+import ru.gordeev.chat.handlers.IdleSettings;
+import ru.gordeev.chat.handlers.RateLimiter;
+import ru.gordeev.chat.handlers.Room;
+import ru.gordeev.chat.handlers.RoomRegistry;
+import ru.gordeev.chat.handlers.ScrollbackBuffer;
+import ru.gordeev.chat.handlers.SessionRegistry;
 import ru.gordeev.chat.helpers.ServerMessages;
-import ru.gordeev.chat.helpers.UserNotFoundException;
+import ru.gordeev.chat.helpers.VirtualThreads;
+import ru.gordeev.chat.metrics.Counter;
+import ru.gordeev.chat.metrics.Histogram;
+import ru.gordeev.chat.metrics.MetricsExporter;
+import ru.gordeev.chat.metrics.MetricsRegistry;
+import ru.gordeev.chat.network.BlockingServerTransport;
+import ru.gordeev.chat.network.ClientConnection;
+import ru.gordeev.chat.network.CompressionStats;
+import ru.gordeev.chat.network.ControlSignal;
+import ru.gordeev.chat.network.Frame;
+import ru.gordeev.chat.network.NioServerTransport;
+import ru.gordeev.chat.network.OutboundSettings;
+import ru.gordeev.chat.network.OutboundStats;
+import ru.gordeev.chat.network.ServerTransport;
+import ru.gordeev.chat.network.TransportMode;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * The main server class responsible for accepting client connections,
  * managing connected ClientHandlers, and performing global operations
  * such as broadcasting messages or banning users. It also periodically
- * checks for inactive clients.
+ * disconnects idle clients through an IdleMonitor.
+ * Connections are served by the ServerTransport selected with TransportMode.
+ * Connected clients are kept in a SessionRegistry: lookups by username
+ * and broadcasts don't take any server-wide lock.
+ * Chat messages are sent to rooms. Each room has its own subscriber set and
+ * scrollback, so a message is only fanned out to the members of its room;
+ * server notices still go to everyone.
+ * Several servers sharing one database can form a cluster. Chat messages,
+ * notices, private messages, kicks and bans are relayed to the other nodes
+ * through a ClusterBus, which also makes sure a user is online on one node
+ * only. The users of the other nodes are tracked in a ClusterPresence.
+ * Counts and timings are kept in the default MetricsRegistry and exported
+ * through JMX and a local HTTP endpoint by a MetricsExporter.
+ * shutdown() stops the server within a bounded time: the clients are told
+ * once, their outbound queues are drained in parallel and the message
+ * history is flushed before the executors are stopped.
  */
 public class Server {
 
-    private ServerSocket serverSocket;
+    private static final int ROOMS_LIST_LIMIT = 50;
+    private static final long DRAIN_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
     private final Logger logger;
     private final int port;
-    private final List<ClientHandler> clientHandlerList;
+    private final TransportMode transportMode;
+    private volatile ServerTransport transport;
+    private final SessionRegistry sessions;
+    private final OutboundSettings outboundSettings;
     private final UserService userService;
+    private final AuthenticationService authenticationService;
+    private final RateLimiter rateLimiter;
+    private final IdleMonitor idleMonitor;
+    private final BanManagementService banManagementService;
+    private final MessageStore messageStore;
+    private final BatchingMessageWriter messageWriter;
+    private final RoomService roomService;
+    private final RoomRegistry rooms;
+    private final int scrollbackReplay;
+    private final ClusterBus clusterBus;
+    private final ClusterPresence presence = new ClusterPresence();
+    private final int clusterHeartbeatSeconds;
+    private final ServerConfig config;
+    private final int statsIntervalSeconds;
+    private final MetricsRegistry metrics;
+    private final MetricsExporter metricsExporter;
+    private final long shutdownTimeoutMillis;
+    private final Set<ClientHandler> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean stopping = new AtomicBoolean();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final Counter messagesReceived;
+    private final Counter connectionsOpened;
+    private final Counter connectionsClosed;
+    private final Histogram fanOutLatency;
+    private final Counter fanOutRecipients;
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
 
     public UserService getUserService() {
         return userService;
     }
 
+    public AuthenticationService getAuthenticationService() {
+        return authenticationService;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public IdleMonitor getIdleMonitor() {
+        return idleMonitor;
+    }
+
+    public BatchingMessageWriter getMessageWriter() {
+        return messageWriter;
+    }
+
+    public ClusterBus getClusterBus() {
+        return clusterBus;
+    }
+
+    public RoomRegistry getRooms() {
+        return rooms;
+    }
+
+    public OutboundSettings getOutboundSettings() {
+        return outboundSettings;
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the count of messages and frames received from clients, heartbeats included
+     */
+    public Counter getMessagesReceived() {
+        return messagesReceived;
+    }
+
+
     public Server(int port) {
+        this(port, TransportMode.BLOCKING);
+    }
+
+    public Server(int port, TransportMode transportMode) {
+        this(port, transportMode, new CachingUserService(new PostgresUserService()));
+    }
+
+    public Server(int port, TransportMode transportMode, UserService userService) {
+        this(port, transportMode, userService, new PostgresMessageStore());
+    }
+
+    public Server(int port, TransportMode transportMode, UserService userService, MessageStore messageStore) {
+        this(port, transportMode, userService, messageStore, new PostgresRoomService());
+    }
+
+    public Server(int port, TransportMode transportMode, UserService userService, MessageStore messageStore,
+                  RoomService roomService) {
+        this(port, transportMode, userService, messageStore, roomService, ClusterBus.fromConfig(ServerConfig.get()));
+    }
+
+    public Server(int port, TransportMode transportMode, UserService userService, MessageStore messageStore,
+                  RoomService roomService, ClusterBus clusterBus) {
         this.logger = LogManager.getLogger(Server.class);
+        this.config = ServerConfig.get();
         this.port = port;
-        this.clientHandlerList = new ArrayList<>();
-        this.userService = new PostgresUserService();
+        this.transportMode = transportMode;
+        this.sessions = new SessionRegistry();
+        this.outboundSettings = OutboundSettings.fromConfig(config);
+        this.userService = userService;
+        this.authenticationService = AuthenticationService.fromConfig(config, userService);
+        this.rateLimiter = RateLimiter.fromConfig(config);
+        this.idleMonitor = new IdleMonitor(this, IdleSettings.fromConfig(config));
+        this.banManagementService = BanManagementService.fromConfig(config, userService);
+        this.messageStore = messageStore;
+        this.messageWriter = BatchingMessageWriter.fromConfig(config, messageStore);
+        this.roomService = roomService;
+        this.rooms = new RoomRegistry(config.getInt("chat.scrollback.capacity", 256));
+        this.scrollbackReplay = config.getInt("chat.scrollback.replay", 20);
+        this.clusterBus = clusterBus;
+        this.clusterHeartbeatSeconds = config.getInt("chat.cluster.heartbeatSeconds", 5);
+        this.statsIntervalSeconds = config.getInt("chat.stats.intervalSeconds", 60);
+        this.metrics = MetricsRegistry.getDefault();
+        this.metricsExporter = MetricsExporter.fromConfig(config, metrics);
+        this.shutdownTimeoutMillis = TimeUnit.SECONDS.toMillis(config.getInt("chat.shutdown.timeoutSeconds", 10));
+        this.messagesReceived = metrics.counter("chat_messages_received",
+                "Messages and frames received from clients, heartbeats included");
+        this.connectionsOpened = metrics.counter("chat_connections_opened", "Client connections accepted");
+        this.connectionsClosed = metrics.counter("chat_connections_closed", "Client connections closed");
+        this.fanOutLatency = metrics.histogram("chat_broadcast_fanout_micros",
+                "Time to queue a broadcast frame for all its recipients in microseconds");
+        this.fanOutRecipients = metrics.counter("chat_broadcast_recipients",
+                "Frames queued by broadcasts, one per recipient");
+        registerMetrics();
+    }
+
+    /**
+     * Registers the gauges over the counters the components already keep.
+     * They are only read when the metrics are scraped.
+     */
+    private void registerMetrics() {
+        metrics.gauge("chat_sessions", "Authenticated users on this node", sessions::size);
+        metrics.gauge("chat_connections", "Open client connections", connections::size);
+        metrics.gauge("chat_outbound_queue_depth_max", "Frames waiting in the fullest outbound queue",
+                () -> {
+                    int max = 0;
+                    for (ClientHandler client : sessions.all()) {
+                        max = Math.max(max, client.getQueuedFrames());
+                    }
+                    return max;
+                });
+        metrics.gauge("chat_outbound_queued_frames", "Frames waiting in all outbound queues",
+                () -> {
+                    long total = 0;
+                    for (ClientHandler client : sessions.all()) {
+                        total += client.getQueuedFrames();
+                    }
+                    return total;
+                });
+
+        OutboundStats outbound = outboundSettings.getStats();
+        metrics.counter("chat_frames_queued", "Frames queued for clients", outbound::getFramesQueued);
+        metrics.counter("chat_frames_written", "Frames written to clients", outbound::getFramesWritten);
+        metrics.counter("chat_write_batches", "Writes to client sockets", outbound::getWriteBatches);
+        metrics.counter("chat_frames_dropped", "Frames dropped for slow consumers", outbound::getFramesDropped);
+        metrics.counter("chat_slow_consumers_disconnected", "Clients disconnected for not reading",
+                outbound::getSlowConsumersDisconnected);
+
+        metrics.register("chat_auth_latency_micros",
+                "Time to check credentials in microseconds, the wait for a thread included",
+                authenticationService.getAuthenticationLatency());
+        metrics.register("chat_registration_latency_micros",
+                "Time to register a user in microseconds, the wait for a thread included",
+                authenticationService.getRegistrationLatency());
+        metrics.counter("chat_auth_invalid_credentials", "Logins refused for a wrong login or password",
+                authenticationService::getInvalidCredentials);
+        metrics.counter("chat_auth_rejected", "Logins and registrations refused because the queue was full",
+                authenticationService::getRejected);
+        metrics.counter("chat_auth_failed", "Logins and registrations failed with an error",
+                authenticationService::getFailed);
+        metrics.gauge("chat_auth_queue_depth", "Logins and registrations waiting for a thread",
+                authenticationService::getQueueDepth);
+
+        metrics.gauge("chat_bans", "Users banned right now", banManagementService::getBanCount);
+        metrics.counter("chat_rate_limited", "Messages and logins refused by the rate limits",
+                rateLimiter::getRejected);
+        metrics.counter("chat_messages_stored", "Chat messages written to the database",
+                messageWriter::getWritten);
+        metrics.counter("chat_messages_store_dropped", "Chat messages dropped because the write queue was full",
+                messageWriter::getDropped);
+        metrics.gauge("chat_messages_store_queue", "Chat messages waiting to be written to the database",
+                messageWriter::getQueueSize);
+        metrics.counter("chat_idle_disconnects", "Clients disconnected for being idle or unresponsive",
+                () -> idleMonitor.getDeadClients() + idleMonitor.getIdleUsers() + idleMonitor.getLoginTimeouts());
     }
 
     public void start() {
+        if (stopping.get()) {
+            logger.warn("Server has already been shut down");
+            return;
+        }
         try {
-            serverSocket = new ServerSocket(port);
-            BanManagementService banManagementService = new BanManagementService();
-            banManagementService.startBanCheck();
-            logger.info("Server has been started at port {}", port);
+            transport = createTransport();
+            banManagementService.start();
+            messageWriter.start();
+            clusterBus.start(this::onClusterEvent);
+            metricsExporter.start();
+            logger.info("Server has been started at port {} ({} transport, node {})", port, transportMode,
+                    clusterBus.getNodeId());
+            if (config.getFileName() != null) {
+                logger.info("Settings have been read from {}", config.getFileName());
+            }
 
-            scheduler.scheduleAtFixedRate(this::checkInactivity, 1, 1, TimeUnit.MINUTES);
+            scheduler.scheduleAtFixedRate(idleMonitor::tick,
+                    IdleMonitor.TICK_MILLIS, IdleMonitor.TICK_MILLIS, TimeUnit.MILLISECONDS);
+            scheduler.scheduleAtFixedRate(this::logCompressionStats,
+                    statsIntervalSeconds, statsIntervalSeconds, TimeUnit.SECONDS);
+            scheduler.scheduleAtFixedRate(this::logCommandStats,
+                    statsIntervalSeconds, statsIntervalSeconds, TimeUnit.SECONDS);
+            scheduler.scheduleAtFixedRate(this::checkRateLimits,
+                    statsIntervalSeconds, statsIntervalSeconds, TimeUnit.SECONDS);
+            scheduler.scheduleAtFixedRate(this::logIdleStats,
+                    statsIntervalSeconds, statsIntervalSeconds, TimeUnit.SECONDS);
+            scheduler.scheduleAtFixedRate(this::publishHeartbeat,
+                    clusterHeartbeatSeconds, clusterHeartbeatSeconds, TimeUnit.SECONDS);
 
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                connectUser(clientSocket);
-            }
+            transport.start();
         } catch (IOException e) {
             logger.error("Error while starting server", e);
         }
     }
 
-    private void connectUser(Socket clientSocket) {
-        try {
-            new ClientHandler(this, clientSocket);
-        } catch (IOException e) {
-            logger.error("Failed to connect user", e);
+    private ServerTransport createTransport() {
+        int backlog = config.getInt("chat.backlog", 50);
+        switch (transportMode) {
+            case NIO:
+                return new NioServerTransport(port, backlog,
+                        config.getInt("chat.nio.reactors", Runtime.getRuntime().availableProcessors()),
+                        config.getInt("chat.nio.workers", Runtime.getRuntime().availableProcessors() * 4),
+                        outboundSettings,
+                        this::createClientHandler);
+            case VIRTUAL:
+                ThreadFactory virtualThreads = VirtualThreads.factory("client-");
+                if (virtualThreads == null) {
+                    logger.warn("Virtual threads are not supported by this JVM, falling back to platform threads");
+                    virtualThreads = Thread::new;
+                }
+                ThreadFactory writerThreads = virtualThreads;
+                return new BlockingServerTransport(port, backlog, virtualThreads,
+                        runnable -> writerThreads.newThread(runnable).start(),
+                        outboundSettings, this::createClientHandler);
+            case BLOCKING:
+            default:
+                return new BlockingServerTransport(port, backlog, Thread::new,
+                        Executors.newCachedThreadPool(), outboundSettings, this::createClientHandler);
+        }
+    }
+
+    private ClientHandler createClientHandler(ClientConnection connection) {
+        ClientHandler client = new ClientHandler(this, connection);
+        connections.add(client);
+        connectionsOpened.increment();
+        return client;
+    }
+
+    /**
+     * Forgets a closed connection, whether the client logged in or not.
+     */
+    public void connectionClosed(ClientHandler client) {
+        if (connections.remove(client)) {
+            connectionsClosed.increment();
         }
     }
 
-    public synchronized void subscribe(ClientHandler clientHandler) {
-        clientHandlerList.add(clientHandler);
+    /**
+     * Adds an authenticated client to the chat: puts it into the default room
+     * and the rooms it joined earlier, and replays the most recent messages
+     * of the default room to it from memory.
+     *
+     * @return false if a client with the same username or login is already online
+     */
+    public boolean subscribe(ClientHandler clientHandler) {
+        if (!sessions.add(clientHandler)) {
+            return false;
+        }
+        if (!claimSession(clientHandler)) {
+            sessions.remove(clientHandler);
+            return false;
+        }
+        clusterBus.publish(ClusterEvent.sessionUp(clientHandler.getLogin(), clientHandler.getUsername()));
+        Room defaultRoom = rooms.join(RoomRegistry.DEFAULT_ROOM, clientHandler);
+        for (String name : loadRooms(clientHandler.getLogin())) {
+            rooms.join(name, clientHandler);
+        }
+        if (!sessions.contains(clientHandler)) {
+            // Unsubscribed while joining: undo the joins that came after its leaveAll
+            rooms.leaveAll(clientHandler);
+            return true;
+        }
+        for (ScrollbackBuffer.Entry entry : defaultRoom.getScrollback().latest(scrollbackReplay)) {
+            clientHandler.sendFrame(entry.getFrame());
+        }
         broadcastMessage("Server: new user connected - " + clientHandler.getUsername());
+        return true;
     }
 
-    public synchronized void unsubscribe(ClientHandler clientHandler) {
-        if (clientHandlerList.remove(clientHandler)) {
-            broadcastMessage("Server: user disconnected - " + clientHandler.getUsername());
+    /**
+     * Marks the user as online cluster-wide. If the claim can't be checked,
+     * the user is let in: the local registry still prevents a double login
+     * on this node.
+     */
+    private boolean claimSession(ClientHandler client) {
+        try {
+            return clusterBus.claimSession(client.getLogin(), client.getUsername());
+        } catch (RuntimeException e) {
+            logger.error("Error while claiming the session of {}", client.getLogin(), e);
+            return true;
         }
     }
 
-    public synchronized void broadcastMessage(String message) {
-        for (ClientHandler client : clientHandlerList) {
-            client.sendMessage(message);
+    private void releaseSession(ClientHandler client) {
+        try {
+            clusterBus.releaseSession(client.getLogin());
+        } catch (RuntimeException e) {
+            logger.error("Error while releasing the session of {}", client.getLogin(), e);
         }
     }
 
-    public synchronized void sendPrivateMessage(ClientHandler sender, String receiverUsername, String message) {
-        for (ClientHandler receiver : clientHandlerList)
-            if (receiver.getUsername().equals(receiverUsername)) {
-                sender.sendMessage(String.format("Your private message to %s: %s", receiver.getUsername(), message));
-                receiver.sendMessage(String.format("Private message from %s: %s", sender.getUsername(), message));
-                break;
-            }
+    private List<String> loadRooms(String login) {
+        try {
+            return roomService.getRooms(login);
+        } catch (RuntimeException e) {
+            logger.error("Error while loading the rooms of {}, only the default room is joined", login, e);
+            return Collections.emptyList();
+        }
     }
 
-    public synchronized boolean kickUser(String username) {
-        for (ClientHandler client : clientHandlerList) {
-            if (client.getUsername().equals(username)) {
-                client.sendMessage("Server: you have been kicked from the server");
-                client.sendMessage("/kicked");
-                unsubscribe(client);
-                return true;
+    public void unsubscribe(ClientHandler clientHandler) {
+        if (sessions.remove(clientHandler)) {
+            rooms.leaveAll(clientHandler);
+            if (stopping.get()) {
+                // Closing the cluster bus releases all sessions of the node at once
+                return;
             }
+            releaseSession(clientHandler);
+            clusterBus.publish(ClusterEvent.sessionDown(clientHandler.getLogin(), clientHandler.getUsername()));
+            broadcastMessage("Server: user disconnected - " + clientHandler.getUsername());
         }
-        return false;
     }
 
-    public synchronized boolean disconnectUserDueToInactivity(String username) {
-        for (ClientHandler client : clientHandlerList) {
-            if (client.getUsername().equals(username)) {
-                client.sendMessage("Server: you have been disconnected from the server due to inactivity");
-                client.sendMessage("/inactive");
-                unsubscribe(client);
-                return true;
+    /**
+     * Adds the client to the room, creating the room if needed, and
+     * remembers the membership for the next login. A new member gets the
+     * most recent messages of the room, then the room is told about it.
+     *
+     * @return the room
+     */
+    public Room joinRoom(ClientHandler client, String name) {
+        Room room = rooms.find(name);
+        if (room != null && room.isMember(client)) {
+            return room;
+        }
+        room = rooms.join(name, client);
+        if (!sessions.contains(client)) {
+            // Kicked or disconnected meanwhile: its leaveAll may have run before the join
+            rooms.leaveAll(client);
+            return room;
+        }
+        try {
+            roomService.joinRoom(client.getLogin(), name);
+        } catch (RuntimeException e) {
+            logger.error("Error while saving the membership of {} in room {}", client.getLogin(), name, e);
+        }
+        for (ScrollbackBuffer.Entry entry : room.getScrollback().latest(scrollbackReplay)) {
+            client.sendFrame(entry.getFrame());
+        }
+        broadcastToRoom(room, "Server: " + client.getUsername() + " joined #" + name);
+        return room;
+    }
+
+    /**
+     * Removes the client from the room for good.
+     *
+     * @return false if the client is not a member of the room
+     */
+    public boolean leaveRoom(ClientHandler client, String name) {
+        if (!rooms.leave(name, client)) {
+            return false;
+        }
+        try {
+            roomService.leaveRoom(client.getLogin(), name);
+        } catch (RuntimeException e) {
+            logger.error("Error while removing the membership of {} in room {}", client.getLogin(), name, e);
+        }
+        Room room = rooms.find(name);
+        if (room != null) {
+            broadcastToRoom(room, "Server: " + client.getUsername() + " left #" + name);
+        }
+        return true;
+    }
+
+    private void broadcastToRoom(Room room, String message) {
+        Frame frame = ClientHandler.encodeMessage(message);
+        if (frame != null) {
+            fanOut(room, frame);
+        }
+    }
+
+    /**
+     * Sends the message to every online client of the cluster. The
+     * timestamped frame is encoded once and the same bytes are queued for
+     * all recipients of this node.
+     */
+    public void broadcastMessage(String message) {
+        broadcastLocalMessage(message);
+        clusterBus.publish(ClusterEvent.notice(message));
+    }
+
+    private void broadcastLocalMessage(String message) {
+        Frame frame = ClientHandler.encodeMessage(message);
+        if (frame != null) {
+            broadcastFrame(frame);
+        }
+    }
+
+    private void broadcastFrame(Frame frame) {
+        long start = System.nanoTime();
+        int recipients = 0;
+        for (ClientHandler client : sessions.all()) {
+            client.sendFrame(frame);
+            recipients++;
+        }
+        fanOutLatency.recordMicrosSince(start);
+        fanOutRecipients.add(recipients);
+    }
+
+    /**
+     * Queues the frame for the members of the room and records how long it took.
+     */
+    private void fanOut(Room room, Frame frame) {
+        long start = System.nanoTime();
+        room.broadcast(frame);
+        fanOutLatency.recordMicrosSince(start);
+        fanOutRecipients.add(room.size());
+    }
+
+    /**
+     * Sends a message written by a user to the members of the user's active
+     * room and adds it to the history: the encoded frame goes to the room's
+     * in-memory scrollback, the message itself to the message store. The
+     * store is written in the background and never delays delivery.
+     */
+    public void broadcastChatMessage(ClientHandler sender, String message) {
+        Room room = sender.getActiveRoom();
+        LocalDateTime now = LocalDateTime.now();
+        Frame frame = ClientHandler.encodeChatMessage(room.getName(), sender.getUsername(), message);
+        if (frame == null) {
+            return;
+        }
+        room.getScrollback().add(now, frame);
+        fanOut(room, frame);
+        clusterBus.publish(ClusterEvent.roomMessage(room.getName(), sender.getUsername(), message, now));
+        messageWriter.write(new ChatMessage(now, room.getName(), sender.getUsername(), null, message));
+    }
+
+    /**
+     * Delivers a chat message published by another node to the members of
+     * the room on this node. The message has already been stored by its node.
+     */
+    private void deliverRemoteChatMessage(String roomName, String sender, String message, LocalDateTime createdAt) {
+        Room room = rooms.find(roomName);
+        if (room == null) {
+            return;
+        }
+        Frame frame = ClientHandler.encodeChatMessage(createdAt, roomName, sender, message);
+        if (frame == null) {
+            return;
+        }
+        room.getScrollback().add(createdAt, frame);
+        fanOut(room, frame);
+    }
+
+    /**
+     * Sends the last count chat messages of the client's active room to it,
+     * oldest first. Recent messages come from the room's scrollback; if it
+     * holds fewer, the older ones are read from the message store, starting
+     * right before the oldest message in the scrollback.
+     */
+    public void sendHistory(ClientHandler client, int count) {
+        Room room = client.getActiveRoom();
+        List<ScrollbackBuffer.Entry> recent = room.getScrollback().latest(count);
+        List<ChatMessage> older = Collections.emptyList();
+        if (recent.size() < count) {
+            LocalDateTime before = recent.isEmpty() ? null : recent.get(0).getCreatedAt();
+            try {
+                older = messageStore.findBroadcasts(room.getName(), before, 0, count - recent.size());
+            } catch (RuntimeException e) {
+                logger.error("Error while loading message history", e);
+                client.sendMessage("Server: older messages are not available right now");
+            }
+        }
+
+        if (recent.isEmpty() && older.isEmpty()) {
+            client.sendMessage("Server: there are no messages yet");
+            return;
+        }
+        client.sendMessage("Server: last " + (older.size() + recent.size()) + " messages:");
+        for (int i = older.size() - 1; i >= 0; i--) {
+            ChatMessage message = older.get(i);
+            Frame frame = ClientHandler.encodeChatMessage(message.getCreatedAt(),
+                    room.getName(), message.getSender(), message.getBody());
+            if (frame != null) {
+                client.sendFrame(frame);
             }
         }
+        for (ScrollbackBuffer.Entry entry : recent) {
+            client.sendFrame(entry.getFrame());
+        }
+    }
+
+    /**
+     * Sends a private message to a user of this or another node.
+     */
+    public void sendPrivateMessage(ClientHandler sender, String receiverUsername, String message) {
+        ClientHandler receiver = sessions.findByUsername(receiverUsername);
+        if (receiver == null && presence.findByUsername(receiverUsername) == null) {
+            return;
+        }
+        sender.sendMessage(String.format("Your private message to %s: %s", receiverUsername, message));
+        if (receiver != null) {
+            deliverPrivateMessage(receiver, sender.getUsername(), message);
+        } else {
+            clusterBus.publish(ClusterEvent.privateMessage(sender.getUsername(), receiverUsername, message));
+        }
+        messageWriter.write(new ChatMessage(LocalDateTime.now(), null, sender.getUsername(), receiverUsername, message));
+    }
+
+    private static void deliverPrivateMessage(ClientHandler receiver, String sender, String message) {
+        Frame frame = ClientHandler.encodePrivateMessage(sender, message);
+        if (frame != null) {
+            receiver.sendFrame(frame);
+        }
+    }
+
+    /**
+     * Kicks a user of this or another node.
+     *
+     * @return false if the user is not online
+     */
+    public boolean kickUser(String username) {
+        ClientHandler client = sessions.findByUsername(username);
+        if (client != null) {
+            kickLocalUser(client);
+            return true;
+        }
+        if (presence.findByUsername(username) != null) {
+            clusterBus.publish(ClusterEvent.kick(username));
+            return true;
+        }
         return false;
     }
 
-    public synchronized void printActiveUsersList(ClientHandler user) {
+    private void kickLocalUser(ClientHandler client) {
+        client.sendMessage("Server: you have been kicked from the server");
+        client.sendControl(ControlSignal.KICKED, "");
+        unsubscribe(client);
+    }
+
+    public boolean disconnectUserDueToInactivity(String username) {
+        ClientHandler client = sessions.findByUsername(username);
+        if (client == null) {
+            return false;
+        }
+        client.sendMessage("Server: you have been disconnected from the server due to inactivity");
+        client.sendControl(ControlSignal.INACTIVE, "");
+        unsubscribe(client);
+        return true;
+    }
+
+    public void printActiveUsersList(ClientHandler user) {
         StringBuilder sb = new StringBuilder();
         sb.append("Users are online now:\n");
 
-        for (ClientHandler client : clientHandlerList) {
+        for (ClientHandler client : sessions.all()) {
             sb.append("- ").append(client.getUsername()).append("\n");
         }
+        for (ClusterPresence.RemoteSession session : presence.all()) {
+            sb.append("- ").append(session.getUsername()).append("\n");
+        }
 
         user.sendMessage(sb.toString().trim());
     }
 
-    public synchronized void printServerCommandsListList(String username) {
-        for (ClientHandler client : clientHandlerList) {
-            if (client.getUsername().equals(username)) {
-                client.sendMessage(ServerMessages.SERVER_COMMANDS);
+    /**
+     * Lists the biggest rooms and every room the user is in. Rooms the user
+     * is in are marked with '*', the active one with '>'.
+     */
+    public void printRoomsList(ClientHandler user) {
+        List<Room> all = new ArrayList<>(rooms.all());
+        all.sort(Comparator.comparingInt(Room::size).reversed().thenComparing(Room::getName));
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("Rooms:\n");
+        int listed = 0;
+        for (Room room : all) {
+            boolean member = room.isMember(user);
+            if (listed >= ROOMS_LIST_LIMIT && !member) {
+                continue;
             }
+            sb.append(room == user.getActiveRoom() ? "> " : member ? "* " : "- ")
+                    .append('#').append(room.getName())
+                    .append(" (").append(room.size()).append(" online)\n");
+            listed++;
         }
+        if (all.size() > listed) {
+            sb.append("... and ").append(all.size() - listed).append(" more\n");
+        }
+
+        user.sendMessage(sb.toString().trim());
     }
 
-    public synchronized boolean changeUsername(String oldUsername, String newUsername) {
-        for (ClientHandler client : clientHandlerList) {
-            if (client.getUsername().equals(oldUsername)) {
-                client.setUsername(newUsername);
-                getUserService().changeUsername(client.getLogin(), newUsername);
-                client.sendMessage("Server: your nickname has been changed to " + newUsername);
-                return true;
-            }
+    public void printServerCommandsListList(String username) {
+        ClientHandler client = sessions.findByUsername(username);
+        if (client != null) {
+            client.sendMessage(ServerMessages.SERVER_COMMANDS);
         }
-        return false;
     }
 
-    public synchronized boolean isUserBusy(String username) {
-        for (ClientHandler client : clientHandlerList) {
-            if (client.getUsername().equals(username)) {
-                return true;
+    /**
+     * Renames a user of this node, or asks the node the user is on to do it.
+     *
+     * @return false if the user is not online or the new username is taken
+     */
+    public boolean changeUsername(String oldUsername, String newUsername) {
+        ClientHandler client = sessions.findByUsername(oldUsername);
+        if (client == null) {
+            if (presence.findByUsername(oldUsername) == null || isUserBusy(newUsername)) {
+                return false;
             }
+            clusterBus.publish(ClusterEvent.changeNick(oldUsername, newUsername));
+            return true;
         }
-        return false;
+        if (!renameSession(client.getLogin(), newUsername)) {
+            return false;
+        }
+        if (!sessions.rename(client, newUsername)) {
+            renameSession(client.getLogin(), oldUsername);
+            return false;
+        }
+        boolean stored;
+        try {
+            stored = getUserService().changeUsername(client.getLogin(), newUsername);
+        } catch (RuntimeException e) {
+            sessions.rename(client, oldUsername);
+            renameSession(client.getLogin(), oldUsername);
+            throw e;
+        }
+        if (!stored) {
+            // Taken by a user who is offline
+            sessions.rename(client, oldUsername);
+            renameSession(client.getLogin(), oldUsername);
+            return false;
+        }
+        clusterBus.publish(ClusterEvent.rename(client.getLogin(), newUsername));
+        client.sendMessage("Server: your nickname has been changed to " + newUsername);
+        return true;
     }
 
-    public synchronized boolean banUser(String username) {
-        for (ClientHandler client : clientHandlerList) {
-            if (client.getUsername().equals(username)) {
-                getUserService().setBan(username);
-                client.sendMessage("Server: you have been banned permanently");
-                client.sendMessage("/banned");
-                unsubscribe(client);
-                return true;
-            }
+    private boolean renameSession(String login, String newUsername) {
+        try {
+            return clusterBus.renameSession(login, newUsername);
+        } catch (RuntimeException e) {
+            logger.error("Error while renaming the session of {}", login, e);
+            return true;
         }
-        return false;
     }
 
-    public synchronized boolean banUser(String username, Integer durationMinutes) {
-        for (ClientHandler client : clientHandlerList) {
-            if (client.getUsername().equals(username)) {
-                getUserService().setBan(username, durationMinutes);
-                client.sendMessage(String.format("Server: you have been banned for %d minutes", durationMinutes));
-                client.sendMessage("/tempBanned " + durationMinutes);
-                unsubscribe(client);
-                return true;
-            }
+    /**
+     * @return true if the username is online on any node
+     */
+    public boolean isUserBusy(String username) {
+        return sessions.findByUsername(username) != null || presence.findByUsername(username) != null;
+    }
+
+    public boolean banUser(String username) {
+        return banUser(username, null);
+    }
+
+    /**
+     * Bans a user of this or another node. The ban is stored here; the node
+     * the user is on disconnects it, and every node drops the user from its
+     * cache.
+     *
+     * @param durationMinutes the duration of the ban, or null for a permanent ban
+     * @return false if the user is not online
+     */
+    public boolean banUser(String username, Integer durationMinutes) {
+        ClientHandler client = sessions.findByUsername(username);
+        if (client == null && presence.findByUsername(username) == null) {
+            return false;
         }
-        return false;
+        if (durationMinutes == null) {
+            getUserService().setBan(username);
+        } else {
+            getUserService().setBan(username, durationMinutes);
+        }
+        banManagementService.ban(username, durationMinutes);
+        if (client != null) {
+            disconnectBannedUser(client, durationMinutes);
+        }
+        clusterBus.publish(ClusterEvent.ban(username, durationMinutes));
+        return true;
     }
 
-    public synchronized boolean unbanUser(String username) {
-        return getUserService().unsetBan(username);
+    private void disconnectBannedUser(ClientHandler client, Integer durationMinutes) {
+        if (durationMinutes == null) {
+            client.sendMessage("Server: you have been banned permanently");
+            client.sendControl(ControlSignal.BANNED, "");
+        } else {
+            client.sendMessage(String.format("Server: you have been banned for %d minutes", durationMinutes));
+            client.sendControl(ControlSignal.TEMP_BANNED, String.valueOf(durationMinutes));
+        }
+        unsubscribe(client);
     }
 
-    public synchronized boolean isBanned(String username) throws UserNotFoundException {
-        return getUserService().isBanned(username);
+    public boolean unbanUser(String username) {
+        if (!getUserService().unsetBan(username)) {
+            return false;
+        }
+        banManagementService.unban(username);
+        clusterBus.publish(ClusterEvent.unban(username));
+        return true;
     }
 
-    private void checkInactivity() {
-        long now = System.currentTimeMillis();
-        long inactivityLimit = 20L * 60L * 1000L; // 20 minutes
+    /**
+     * Drops a user changed by another node from the local cache.
+     */
+    private void invalidateCachedUser(String username) {
+        if (userService instanceof CachingUserService) {
+            ((CachingUserService) userService).invalidate(username);
+        }
+    }
 
-        List<ClientHandler> toDisconnect = new ArrayList<>();
-        synchronized (clientHandlerList) {
-            for (ClientHandler client : clientHandlerList) {
-                long lastActivity = client.getLastActivityTime();
-                if ((now - lastActivity) > inactivityLimit) {
-                    toDisconnect.add(client);
+    private void onClusterEvent(ClusterEvent event) {
+        presence.touch(event.getNodeId());
+        switch (event.getType()) {
+            case HELLO:
+                for (ClientHandler client : sessions.all()) {
+                    clusterBus.publish(ClusterEvent.sessionUp(client.getLogin(), client.getUsername()));
+                }
+                break;
+            case HEARTBEAT:
+                break;
+            case NODE_DOWN:
+                presence.removeNode(event.getNodeId());
+                break;
+            case SESSION_UP:
+                presence.add(event.getNodeId(), event.getField(0), event.getField(1));
+                break;
+            case SESSION_DOWN:
+                presence.remove(event.getField(0));
+                break;
+            case RENAME: {
+                ClusterPresence.RemoteSession session = presence.findByLogin(event.getField(0));
+                if (session != null) {
+                    invalidateCachedUser(session.getUsername());
                 }
+                invalidateCachedUser(event.getField(1));
+                presence.rename(event.getField(0), event.getField(1));
+                break;
             }
+            case NOTICE:
+                broadcastLocalMessage(event.getField(0));
+                break;
+            case ROOM_MESSAGE:
+                deliverRemoteChatMessage(event.getField(0), event.getField(1), event.getField(2), event.getTimeField(3));
+                break;
+            case PRIVATE_MESSAGE: {
+                ClientHandler receiver = sessions.findByUsername(event.getField(1));
+                if (receiver != null) {
+                    deliverPrivateMessage(receiver, event.getField(0), event.getField(2));
+                }
+                break;
+            }
+            case KICK: {
+                ClientHandler client = sessions.findByUsername(event.getField(0));
+                if (client != null) {
+                    kickLocalUser(client);
+                }
+                break;
+            }
+            case BAN: {
+                invalidateCachedUser(event.getField(0));
+                banManagementService.ban(event.getField(0), event.getIntField(1));
+                ClientHandler client = sessions.findByUsername(event.getField(0));
+                if (client != null) {
+                    disconnectBannedUser(client, event.getIntField(1));
+                }
+                break;
+            }
+            case UNBAN:
+                invalidateCachedUser(event.getField(0));
+                banManagementService.unban(event.getField(0));
+                break;
+            case CHANGE_NICK:
+                if (sessions.findByUsername(event.getField(0)) != null) {
+                    changeUsername(event.getField(0), event.getField(1));
+                }
+                break;
+            default:
+                logger.warn("Unknown cluster event {}", event);
+        }
+    }
+
+    private void logCompressionStats() {
+        CompressionStats stats = outboundSettings.getCompression().getStats();
+        if (stats.getBatchesCompressed() > 0) {
+            logger.info("Outbound compression: {}", stats);
+        }
+    }
+
+    private void logCommandStats() {
+        CommandRegistry commands = ClientHandler.getChatCommands();
+        if (commands.getInvocations() > 0) {
+            logger.info("Commands: {}", commands);
+        }
+    }
+
+    private void logIdleStats() {
+        if (idleMonitor.getDeadClients() + idleMonitor.getIdleUsers() + idleMonitor.getLoginTimeouts() > 0) {
+            logger.info("Idle clients: {}", idleMonitor);
         }
+    }
 
-        for (ClientHandler client : toDisconnect) {
-            logger.info("Disconnecting user {} due to inactivity", client.getUsername());
-            disconnectUserDueToInactivity(client);
+    private void checkRateLimits() {
+        rateLimiter.removeIdleBuckets();
+        if (rateLimiter.getRejected() > 0) {
+            logger.info("Rate limits: {}", rateLimiter);
         }
     }
 
-    private void disconnectUserDueToInactivity(ClientHandler client) {
+    private void publishHeartbeat() {
+        clusterBus.publish(ClusterEvent.heartbeat());
+        presence.expireNodes(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(clusterHeartbeatSeconds * 6L));
+    }
+
+    /**
+     * Checks the in-memory ban index, without a database query.
+     */
+    public boolean isBanned(String username) {
+        return banManagementService.isBanned(username);
+    }
+
+    public void disconnectUserDueToInactivity(ClientHandler client) {
         client.sendMessage("Server: you have been disconnected due to inactivity");
-        client.sendMessage("/inactive");
+        client.sendControl(ControlSignal.INACTIVE, "");
         unsubscribe(client);
         client.disconnect();
     }
 
-    public synchronized void shutdown() {
-        var clientsToUnsubscribe = new ArrayList<>(clientHandlerList);
-        for (ClientHandler client : clientsToUnsubscribe) {
-            client.sendMessage("/shutdown");
-            unsubscribe(client);
-            client.disconnect();
-        }
+    /**
+     * Stops the server within chat.shutdown.timeoutSeconds (10 seconds).
+     */
+    public void shutdown() {
+        shutdown(shutdownTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
 
+    /**
+     * Stops the server gracefully within the timeout. New connections are
+     * refused and the periodic tasks stopped first. Then the shutdown signal
+     * is encoded once and queued for every user, and all connections are
+     * closed: each of them writes out what is queued for it on its own
+     * writer, so they drain in parallel. Connections still draining after
+     * half of the timeout are closed right away. The rest of the timeout is
+     * left for storing the queued chat messages; after that the executors
+     * are stopped and the node leaves the cluster. Later calls only wait,
+     * up to their timeout, for the first one to finish.
+     *
+     * @return true if every connection was drained and every message stored in time
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        if (!stopping.compareAndSet(false, true)) {
+            try {
+                stopped.await(timeout, unit);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
         try {
-            if (!serverSocket.isClosed()) {
-                serverSocket.close();
+            long start = System.nanoTime();
+            long deadline = start + unit.toNanos(timeout);
+            logger.info("Server is shutting down, {} connections to drain", connections.size());
+
+            if (transport != null) {
+                transport.stopAccepting();
+            }
+            scheduler.shutdownNow();
+
+            Frame shutdownSignal = ClientHandler.encodeControl(ControlSignal.SHUTDOWN, "");
+            if (shutdownSignal != null) {
+                broadcastFrame(shutdownSignal);
+            }
+            List<ClientHandler> clients = new ArrayList<>(connections);
+            for (ClientHandler client : clients) {
+                client.disconnect();
+            }
+            int aborted = drain(clients, start + unit.toNanos(timeout) / 2);
+
+            if (transport != null) {
+                transport.stop();
+            }
+            authenticationService.shutdown();
+            banManagementService.stop();
+            metricsExporter.stop();
+            try {
+                // join(0) would wait forever
+                messageWriter.close(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())),
+                        TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            clusterBus.publish(ClusterEvent.nodeDown());
+            clusterBus.close();
+
+            logger.info("Server has been stopped in {} ms, {} of {} connections closed before they were drained",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), aborted, clients.size());
+            return aborted == 0 && messageWriter.getQueueSize() == 0;
+        } finally {
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * Waits until the closed connections have written out their queues, then
+     * closes the ones still writing at the deadline without waiting.
+     *
+     * @return the number of connections closed before they were drained
+     */
+    private int drain(List<ClientHandler> clients, long deadline) {
+        for (ClientHandler client : clients) {
+            while (!client.isConnectionClosed() && System.nanoTime() < deadline) {
+                LockSupport.parkNanos(DRAIN_POLL_NANOS);
+            }
+        }
+        int aborted = 0;
+        for (ClientHandler client : clients) {
+            if (!client.isConnectionClosed()) {
+                client.abortConnection();
+                aborted++;
             }
-        } catch (IOException e) {
-            logger.error("Error closing server socket", e);
         }
+        return aborted;
     }
 }
@@ -1,19 +1,31 @@
 package ru.gordeev.chat;
 
+import org.apache.logging.log4j.LogManager;
 import org.flywaydb.core.Flyway;
+import ru.gordeev.chat.config.ServerConfig;
+import ru.gordeev.chat.database.DataBaseConnection;
+import ru.gordeev.chat.network.TransportMode;
 
 public class ServerApplication {
 
     public static void main(String[] args) {
+        ServerConfig config = ServerConfig.get();
         Flyway flyway = Flyway.configure()
-                .dataSource("jdbc:postgresql://localhost:5432/postgres",
-                        System.getenv("database.user"),
-                        System.getenv("database.password"))
+                .dataSource(DataBaseConnection.getDataSource())
                 .load();
 
         flyway.migrate();
 
-        Server server = new Server(8089);
+        TransportMode transportMode = config.getEnum("chat.transport", TransportMode.BLOCKING);
+        Server server = new Server(config.getInt("chat.port", 8089), transportMode);
+
+        // SIGTERM drains the clients and flushes the history before the pool is closed;
+        // log4j's own hook is disabled in log4j2.xml so the shutdown is still logged
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.shutdown();
+            DataBaseConnection.close();
+            LogManager.shutdown();
+        }, "shutdown-hook"));
 
         server.start();
     }
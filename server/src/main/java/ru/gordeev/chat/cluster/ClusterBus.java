@@ -0,0 +1,71 @@
+package ru.gordeev.chat.cluster;
+
+import ru.gordeev.chat.config.ServerConfig;
+
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Connects the server nodes sharing one user base. Events published by a
+ * node are delivered to every other node, in the order they were
+ * published, on a single thread of the bus. Delivery is best effort: a
+ * node that is disconnected from the bus misses the events sent in the
+ * meantime and sends HELLO when it is back.
+ *
+ * The bus also keeps the cluster-wide session claims, so the same login
+ * or username can't be online on two nodes at once.
+ */
+public interface ClusterBus {
+
+    String getNodeId();
+
+    /**
+     * Starts delivering the events of the other nodes to the listener.
+     */
+    void start(Consumer<ClusterEvent> listener);
+
+    /**
+     * Sends the event to the other nodes. Never blocks on the network.
+     */
+    void publish(ClusterEvent event);
+
+    /**
+     * Atomically marks the login and username as online on this node.
+     *
+     * @return false if one of them is online on any node
+     */
+    boolean claimSession(String login, String username);
+
+    void releaseSession(String login);
+
+    /**
+     * Moves a session claimed by this node to a new username.
+     *
+     * @return false if the new username is online on any node
+     */
+    boolean renameSession(String login, String newUsername);
+
+    /**
+     * Releases the sessions of this node and disconnects from the bus.
+     */
+    void close();
+
+    /**
+     * Creates the bus selected with the chat.cluster.mode key: "none"
+     * (default) for a single node, "postgres" to cluster the nodes sharing a
+     * database through LISTEN/NOTIFY. The node id is taken from
+     * chat.cluster.nodeId or generated.
+     */
+    static ClusterBus fromConfig(ServerConfig config) {
+        String nodeId = config.getString("chat.cluster.nodeId", UUID.randomUUID().toString());
+        String mode = config.getString("chat.cluster.mode", "none");
+        switch (mode.toLowerCase()) {
+            case "postgres":
+                return PostgresClusterBus.fromConfig(config, nodeId);
+            case "none":
+                return new InProcessClusterHub().join(nodeId);
+            default:
+                throw new IllegalArgumentException("Unknown cluster mode: " + mode);
+        }
+    }
+}
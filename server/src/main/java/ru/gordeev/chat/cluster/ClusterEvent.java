@@ -0,0 +1,161 @@
+package ru.gordeev.chat.cluster;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+/**
+ * A message sent between the nodes of a cluster. Every event has a type
+ * and a few string fields; their meaning depends on the type and is
+ * documented on the factory methods. Received events also carry the id of
+ * the node that published them.
+ */
+public final class ClusterEvent {
+
+    public enum Type {
+        /** A node has (re)connected to the bus and asks the others to announce their sessions. */
+        HELLO,
+        /** The publishing node is alive. */
+        HEARTBEAT,
+        /** The publishing node is shutting down. */
+        NODE_DOWN,
+        SESSION_UP,
+        SESSION_DOWN,
+        RENAME,
+        NOTICE,
+        ROOM_MESSAGE,
+        PRIVATE_MESSAGE,
+        KICK,
+        BAN,
+        UNBAN,
+        CHANGE_NICK
+    }
+
+    private final Type type;
+    private final String nodeId;
+    private final String[] fields;
+
+    ClusterEvent(Type type, String nodeId, String... fields) {
+        this.type = type;
+        this.nodeId = nodeId;
+        this.fields = fields;
+    }
+
+    private static ClusterEvent of(Type type, String... fields) {
+        return new ClusterEvent(type, null, fields);
+    }
+
+    public static ClusterEvent hello() {
+        return of(Type.HELLO);
+    }
+
+    public static ClusterEvent heartbeat() {
+        return of(Type.HEARTBEAT);
+    }
+
+    public static ClusterEvent nodeDown() {
+        return of(Type.NODE_DOWN);
+    }
+
+    /**
+     * Fields: login, username.
+     */
+    public static ClusterEvent sessionUp(String login, String username) {
+        return of(Type.SESSION_UP, login, username);
+    }
+
+    /**
+     * Fields: login, username.
+     */
+    public static ClusterEvent sessionDown(String login, String username) {
+        return of(Type.SESSION_DOWN, login, username);
+    }
+
+    /**
+     * A user of the publishing node has been renamed. Fields: login, new username.
+     */
+    public static ClusterEvent rename(String login, String newUsername) {
+        return of(Type.RENAME, login, newUsername);
+    }
+
+    /**
+     * A server notice for every user. Fields: text.
+     */
+    public static ClusterEvent notice(String text) {
+        return of(Type.NOTICE, text);
+    }
+
+    /**
+     * Fields: room, sender, body, creation time.
+     */
+    public static ClusterEvent roomMessage(String room, String sender, String body, LocalDateTime createdAt) {
+        return of(Type.ROOM_MESSAGE, room, sender, body, createdAt.toString());
+    }
+
+    /**
+     * Fields: sender, recipient, body.
+     */
+    public static ClusterEvent privateMessage(String sender, String recipient, String body) {
+        return of(Type.PRIVATE_MESSAGE, sender, recipient, body);
+    }
+
+    /**
+     * Fields: username.
+     */
+    public static ClusterEvent kick(String username) {
+        return of(Type.KICK, username);
+    }
+
+    /**
+     * The ban is already stored; the node the user is on disconnects it.
+     * Fields: username, duration in minutes or null for a permanent ban.
+     */
+    public static ClusterEvent ban(String username, Integer durationMinutes) {
+        return of(Type.BAN, username, durationMinutes == null ? null : durationMinutes.toString());
+    }
+
+    /**
+     * Fields: username.
+     */
+    public static ClusterEvent unban(String username) {
+        return of(Type.UNBAN, username);
+    }
+
+    /**
+     * Asks the node the user is on to change its username. Fields: old username, new username.
+     */
+    public static ClusterEvent changeNick(String oldUsername, String newUsername) {
+        return of(Type.CHANGE_NICK, oldUsername, newUsername);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the id of the publishing node, or null for an event that has not been sent yet
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public String getField(int index) {
+        return fields[index];
+    }
+
+    public LocalDateTime getTimeField(int index) {
+        return LocalDateTime.parse(fields[index]);
+    }
+
+    public Integer getIntField(int index) {
+        return fields[index] == null ? null : Integer.valueOf(fields[index]);
+    }
+
+    int getFieldCount() {
+        return fields.length;
+    }
+
+    @Override
+    public String toString() {
+        return "ClusterEvent{type=" + type + ", nodeId='" + nodeId + "', fields=" + Arrays.toString(fields) + "}";
+    }
+}
@@ -0,0 +1,72 @@
+package ru.gordeev.chat.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns events into strings that fit a text-only bus such as Postgres
+ * NOTIFY, and back. The format is the type name followed by the node id
+ * and the fields, each written as {@code <length>:<chars>} or {@code ~}
+ * for null and separated by spaces, so fields may contain any character.
+ */
+public final class ClusterEventCodec {
+
+    private ClusterEventCodec() {}
+
+    public static String encode(String nodeId, ClusterEvent event) {
+        StringBuilder sb = new StringBuilder(64);
+        sb.append(event.getType().name());
+        appendField(sb, nodeId);
+        for (int i = 0; i < event.getFieldCount(); i++) {
+            appendField(sb, event.getField(i));
+        }
+        return sb.toString();
+    }
+
+    private static void appendField(StringBuilder sb, String value) {
+        sb.append(' ');
+        if (value == null) {
+            sb.append('~');
+        } else {
+            sb.append(value.length()).append(':').append(value);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the payload is malformed
+     */
+    public static ClusterEvent decode(String payload) {
+        int typeEnd = payload.indexOf(' ');
+        if (typeEnd < 0) {
+            throw new IllegalArgumentException("Malformed cluster event: " + payload);
+        }
+        ClusterEvent.Type type = ClusterEvent.Type.valueOf(payload.substring(0, typeEnd));
+
+        List<String> values = new ArrayList<>(5);
+        int position = typeEnd;
+        try {
+            while (position < payload.length()) {
+                if (payload.charAt(position) != ' ') {
+                    throw new IllegalArgumentException("Malformed cluster event: " + payload);
+                }
+                position++;
+                if (payload.charAt(position) == '~') {
+                    values.add(null);
+                    position++;
+                    continue;
+                }
+                int colon = payload.indexOf(':', position);
+                int length = Integer.parseInt(payload, position, colon, 10);
+                values.add(payload.substring(colon + 1, colon + 1 + length));
+                position = colon + 1 + length;
+            }
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed cluster event: " + payload, e);
+        }
+        if (values.isEmpty()) {
+            throw new IllegalArgumentException("Cluster event without a node id: " + payload);
+        }
+        String nodeId = values.remove(0);
+        return new ClusterEvent(type, nodeId, values.toArray(new String[0]));
+    }
+}
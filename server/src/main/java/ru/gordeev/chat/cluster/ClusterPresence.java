@@ -0,0 +1,108 @@
+package ru.gordeev.chat.cluster;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The users online on the other nodes of the cluster, as announced over
+ * the bus. Used for lookups that would otherwise only see the local
+ * sessions, e.g. whether a username is online or the list of active users.
+ *
+ * Nodes are forgotten together with their users when they shut down or
+ * stop sending heartbeats.
+ */
+public class ClusterPresence {
+
+    private final ConcurrentMap<String, RemoteSession> byLogin = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, RemoteSession> byUsername = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> lastSeenByNode = new ConcurrentHashMap<>();
+
+    public static final class RemoteSession {
+        private final String nodeId;
+        private final String login;
+        private final String username;
+
+        RemoteSession(String nodeId, String login, String username) {
+            this.nodeId = nodeId;
+            this.login = login;
+            this.username = username;
+        }
+
+        public String getNodeId() {
+            return nodeId;
+        }
+
+        public String getLogin() {
+            return login;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+    }
+
+    public synchronized void add(String nodeId, String login, String username) {
+        touch(nodeId);
+        remove(login);
+        RemoteSession session = new RemoteSession(nodeId, login, username);
+        byLogin.put(login, session);
+        byUsername.put(username, session);
+    }
+
+    public synchronized void remove(String login) {
+        RemoteSession session = byLogin.remove(login);
+        if (session != null) {
+            byUsername.remove(session.getUsername(), session);
+        }
+    }
+
+    public synchronized void rename(String login, String newUsername) {
+        RemoteSession session = byLogin.get(login);
+        if (session != null) {
+            add(session.getNodeId(), login, newUsername);
+        }
+    }
+
+    public void touch(String nodeId) {
+        lastSeenByNode.put(nodeId, System.currentTimeMillis());
+    }
+
+    public synchronized void removeNode(String nodeId) {
+        lastSeenByNode.remove(nodeId);
+        byLogin.values().removeIf(session -> {
+            if (session.getNodeId().equals(nodeId)) {
+                byUsername.remove(session.getUsername(), session);
+                return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Forgets the nodes that have not been heard from since the given time.
+     */
+    public void expireNodes(long seenBeforeMillis) {
+        for (var entry : lastSeenByNode.entrySet()) {
+            if (entry.getValue() < seenBeforeMillis) {
+                removeNode(entry.getKey());
+            }
+        }
+    }
+
+    public RemoteSession findByLogin(String login) {
+        return byLogin.get(login);
+    }
+
+    public RemoteSession findByUsername(String username) {
+        return byUsername.get(username);
+    }
+
+    public Collection<RemoteSession> all() {
+        return byLogin.values();
+    }
+
+    public int size() {
+        return byLogin.size();
+    }
+}
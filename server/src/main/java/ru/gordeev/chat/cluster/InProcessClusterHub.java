@@ -0,0 +1,154 @@
+package ru.gordeev.chat.cluster;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * A bus for nodes running in one JVM: a single server started without
+ * clustering, or several servers in tests and benchmarks. Events still go
+ * through ClusterEventCodec and are delivered on a thread of the receiving
+ * node, the same way as on a real bus.
+ */
+public class InProcessClusterHub {
+
+    private final List<Node> nodes = new CopyOnWriteArrayList<>();
+    private final Map<String, String> nodeByLogin = new HashMap<>();
+    private final Map<String, String> loginByUsername = new HashMap<>();
+
+    /**
+     * @return the bus of a new node connected to this hub
+     */
+    public ClusterBus join(String nodeId) {
+        return new Node(nodeId);
+    }
+
+    private void deliver(Node sender, String payload) {
+        for (Node node : nodes) {
+            if (node != sender) {
+                node.receive(payload);
+            }
+        }
+    }
+
+    private synchronized boolean claim(String nodeId, String login, String username) {
+        if (nodeByLogin.containsKey(login) || loginByUsername.containsKey(username)) {
+            return false;
+        }
+        nodeByLogin.put(login, nodeId);
+        loginByUsername.put(username, login);
+        return true;
+    }
+
+    private synchronized void release(String nodeId, String login) {
+        if (nodeId.equals(nodeByLogin.get(login))) {
+            nodeByLogin.remove(login);
+            loginByUsername.values().remove(login);
+        }
+    }
+
+    private synchronized boolean rename(String nodeId, String login, String newUsername) {
+        if (!nodeId.equals(nodeByLogin.get(login)) || loginByUsername.containsKey(newUsername)) {
+            return false;
+        }
+        loginByUsername.values().remove(login);
+        loginByUsername.put(newUsername, login);
+        return true;
+    }
+
+    private synchronized void releaseAll(String nodeId) {
+        nodeByLogin.entrySet().removeIf(entry -> {
+            if (entry.getValue().equals(nodeId)) {
+                loginByUsername.values().remove(entry.getKey());
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private class Node implements ClusterBus {
+
+        private final Logger logger;
+        private final String nodeId;
+        private final ExecutorService delivery;
+        private volatile Consumer<ClusterEvent> listener;
+
+        Node(String nodeId) {
+            this.logger = LogManager.getLogger(InProcessClusterHub.class);
+            this.nodeId = nodeId;
+            this.delivery = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "cluster-" + nodeId);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        @Override
+        public String getNodeId() {
+            return nodeId;
+        }
+
+        @Override
+        public void start(Consumer<ClusterEvent> listener) {
+            this.listener = listener;
+            nodes.add(this);
+            publish(ClusterEvent.hello());
+        }
+
+        @Override
+        public void publish(ClusterEvent event) {
+            if (nodes.size() > 1) {
+                deliver(this, ClusterEventCodec.encode(nodeId, event));
+            }
+        }
+
+        private void receive(String payload) {
+            try {
+                delivery.execute(() -> {
+                    try {
+                        listener.accept(ClusterEventCodec.decode(payload));
+                    } catch (RuntimeException e) {
+                        logger.error("Error while handling cluster event {}", payload, e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // the node is closed
+            }
+        }
+
+        @Override
+        public boolean claimSession(String login, String username) {
+            return claim(nodeId, login, username);
+        }
+
+        @Override
+        public void releaseSession(String login) {
+            release(nodeId, login);
+        }
+
+        @Override
+        public boolean renameSession(String login, String newUsername) {
+            return rename(nodeId, login, newUsername);
+        }
+
+        @Override
+        public void close() {
+            nodes.remove(this);
+            releaseAll(nodeId);
+            delivery.shutdown();
+        }
+
+        @Override
+        public String toString() {
+            return "InProcessClusterBus{nodeId='" + nodeId + "'}";
+        }
+    }
+}
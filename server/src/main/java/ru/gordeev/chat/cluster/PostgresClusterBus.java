@@ -0,0 +1,383 @@
+package ru.gordeev.chat.cluster;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import ru.gordeev.chat.config.ServerConfig;
+import ru.gordeev.chat.database.DataBaseConnection;
+import ru.gordeev.chat.database.utils.DaoUtils;
+
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * A bus over Postgres LISTEN/NOTIFY for the nodes sharing one database.
+ *
+ * Published events are queued and sent by a publisher thread, everything
+ * queued so far in one pg_notify round trip. A listener thread keeps one
+ * connection in LISTEN mode and reconnects when it is lost, announcing
+ * itself with HELLO afterwards. Payloads above the NOTIFY size limit are
+ * stored in the cluster_events table and only their id is notified.
+ *
+ * Session claims are rows in online_sessions. Every node refreshes its row
+ * in cluster_nodes on a heartbeat; the sessions of nodes that stopped
+ * doing so are removed, so a crashed node doesn't lock its users out.
+ */
+public class PostgresClusterBus implements ClusterBus {
+
+    private static final Pattern CHANNEL_NAME = Pattern.compile("[a-z_][a-z0-9_]*");
+    // Postgres rejects payloads of 8000 bytes and more
+    private static final int MAX_NOTIFY_PAYLOAD_BYTES = 7900;
+    private static final char SPILLED_PAYLOAD_MARKER = '@';
+    private static final int MAX_PUBLISH_BATCH = 500;
+    private static final int POLL_TIMEOUT_MILLIS = 500;
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+
+    private static final String NOTIFY_ALL =
+            "SELECT pg_notify(?, payload) FROM unnest(?::text[]) AS payload";
+    private static final String INSERT_EVENT =
+            "INSERT INTO cluster_events (payload) VALUES (?) RETURNING id";
+    private static final String SELECT_EVENT =
+            "SELECT payload FROM cluster_events WHERE id = ?";
+    private static final String DELETE_OLD_EVENTS =
+            "DELETE FROM cluster_events WHERE created_at < NOW() - INTERVAL '5 minutes'";
+    private static final String UPSERT_NODE =
+            "INSERT INTO cluster_nodes (node_id) VALUES (?) ON CONFLICT (node_id) DO UPDATE SET heartbeat_at = NOW()";
+    private static final String DELETE_STALE_NODES =
+            "DELETE FROM cluster_nodes WHERE heartbeat_at < NOW() - make_interval(secs => ?)";
+    private static final String DELETE_ORPHAN_SESSIONS =
+            "DELETE FROM online_sessions s WHERE NOT EXISTS (SELECT 1 FROM cluster_nodes n WHERE n.node_id = s.node_id)";
+    private static final String DELETE_NODE =
+            "DELETE FROM cluster_nodes WHERE node_id = ?";
+    private static final String DELETE_NODE_SESSIONS =
+            "DELETE FROM online_sessions WHERE node_id = ?";
+    private static final String INSERT_SESSION =
+            "INSERT INTO online_sessions (login, username, node_id) VALUES (?, ?, ?) ON CONFLICT DO NOTHING";
+    private static final String DELETE_SESSION =
+            "DELETE FROM online_sessions WHERE login = ? AND node_id = ?";
+    private static final String UPDATE_SESSION_USERNAME =
+            "UPDATE online_sessions SET username = ? WHERE login = ? AND node_id = ? " +
+                    "AND NOT EXISTS (SELECT 1 FROM online_sessions WHERE username = ?)";
+
+    private final Logger logger;
+    private final String nodeId;
+    private final DataSource dataSource;
+    private final String channel;
+    private final int heartbeatSeconds;
+    private final BlockingQueue<String> outbound;
+    private final ScheduledExecutorService heartbeat;
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile Consumer<ClusterEvent> listener;
+    private volatile boolean running;
+    private Thread listenerThread;
+    private Thread publisherThread;
+
+    /**
+     * @param dataSource       the DataSource to run queries against, or null to use
+     *                         the shared Hikari pool from DataBaseConnection. The
+     *                         listener keeps one of its connections.
+     * @param channel          the NOTIFY channel shared by the nodes
+     * @param heartbeatSeconds how often the node refreshes its cluster_nodes row;
+     *                         a node silent for six heartbeats loses its sessions
+     * @param queueCapacity    the maximum number of events waiting to be published
+     */
+    public PostgresClusterBus(String nodeId, DataSource dataSource, String channel, int heartbeatSeconds, int queueCapacity) {
+        if (!CHANNEL_NAME.matcher(channel).matches()) {
+            throw new IllegalArgumentException("Invalid channel name: " + channel);
+        }
+        this.logger = LogManager.getLogger(PostgresClusterBus.class);
+        this.nodeId = nodeId;
+        this.dataSource = dataSource;
+        this.channel = channel;
+        this.heartbeatSeconds = heartbeatSeconds;
+        this.outbound = new ArrayBlockingQueue<>(queueCapacity);
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Reads chat.cluster.channel (chat_cluster), chat.cluster.heartbeatSeconds (5)
+     * and chat.cluster.queueCapacity (10000).
+     */
+    public static PostgresClusterBus fromConfig(ServerConfig config, String nodeId) {
+        return new PostgresClusterBus(nodeId, null,
+                config.getString("chat.cluster.channel", "chat_cluster"),
+                config.getInt("chat.cluster.heartbeatSeconds", 5),
+                config.getInt("chat.cluster.queueCapacity", 10_000));
+    }
+
+    private DataSource getDataSource() {
+        return dataSource != null ? dataSource : DataBaseConnection.getDataSource();
+    }
+
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void start(Consumer<ClusterEvent> listener) {
+        this.listener = listener;
+        running = true;
+        releasePreviousSessions();
+        refreshNode();
+        heartbeat.scheduleAtFixedRate(this::refreshNode, heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+
+        publisherThread = new Thread(this::publishQueuedEvents, "cluster-publisher");
+        publisherThread.setDaemon(true);
+        publisherThread.start();
+        listenerThread = new Thread(this::listen, "cluster-listener");
+        listenerThread.setDaemon(true);
+        listenerThread.start();
+        logger.info("Node {} joined the cluster on channel {}", nodeId, channel);
+    }
+
+    @Override
+    public void publish(ClusterEvent event) {
+        if (!outbound.offer(ClusterEventCodec.encode(nodeId, event))) {
+            long total = dropped.incrementAndGet();
+            if (total == 1 || total % 1000 == 0) {
+                logger.warn("Cluster publish queue is full, {} events dropped so far", total);
+            }
+        }
+    }
+
+    private void publishQueuedEvents() {
+        List<String> batch = new ArrayList<>(MAX_PUBLISH_BATCH);
+        while (running || !outbound.isEmpty()) {
+            try {
+                String first = outbound.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                outbound.drainTo(batch, MAX_PUBLISH_BATCH - 1);
+                notifyAll(batch);
+                published.addAndGet(batch.size());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                failed.addAndGet(batch.size());
+                logger.error("Failed to publish {} cluster events", batch.size(), e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void notifyAll(List<String> payloads) {
+        String[] notifications = new String[payloads.size()];
+        for (int i = 0; i < notifications.length; i++) {
+            String payload = payloads.get(i);
+            notifications[i] = payload.getBytes(StandardCharsets.UTF_8).length > MAX_NOTIFY_PAYLOAD_BYTES
+                    ? SPILLED_PAYLOAD_MARKER + Long.toString(spill(payload))
+                    : payload;
+        }
+        DaoUtils.queryForObject(
+                getDataSource(),
+                NOTIFY_ALL,
+                st -> {
+                    st.setString(1, channel);
+                    st.setArray(2, st.getConnection().createArrayOf("text", notifications));
+                },
+                rs -> null
+        );
+    }
+
+    private long spill(String payload) {
+        return DaoUtils.queryForObject(
+                getDataSource(),
+                INSERT_EVENT,
+                st -> st.setString(1, payload),
+                rs -> {
+                    rs.next();
+                    return rs.getLong(1);
+                }
+        );
+    }
+
+    private void listen() {
+        while (running) {
+            try (Connection connection = getDataSource().getConnection()) {
+                PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("LISTEN " + channel);
+                }
+                // events sent while we were not listening are lost, ask the others to repeat their state
+                publish(ClusterEvent.hello());
+                while (running) {
+                    PGNotification[] notifications = pgConnection.getNotifications(POLL_TIMEOUT_MILLIS);
+                    if (notifications == null) {
+                        continue;
+                    }
+                    for (PGNotification notification : notifications) {
+                        receive(notification.getParameter());
+                    }
+                }
+            } catch (SQLException | RuntimeException e) {
+                if (!running) {
+                    return;
+                }
+                logger.error("Lost the cluster bus connection, reconnecting", e);
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void receive(String payload) {
+        try {
+            if (!payload.isEmpty() && payload.charAt(0) == SPILLED_PAYLOAD_MARKER) {
+                payload = loadSpilled(Long.parseLong(payload.substring(1)));
+                if (payload == null) {
+                    return;
+                }
+            }
+            ClusterEvent event = ClusterEventCodec.decode(payload);
+            if (nodeId.equals(event.getNodeId())) {
+                return;
+            }
+            received.incrementAndGet();
+            listener.accept(event);
+        } catch (RuntimeException e) {
+            logger.error("Error while handling cluster event {}", payload, e);
+        }
+    }
+
+    private String loadSpilled(long id) {
+        return DaoUtils.queryForObject(
+                getDataSource(),
+                SELECT_EVENT,
+                st -> st.setLong(1, id),
+                rs -> rs.next() ? rs.getString("payload") : null
+        );
+    }
+
+    /**
+     * Releases the sessions a previous run of this node left behind when it
+     * crashed. With a fixed chat.cluster.nodeId the node is back in
+     * cluster_nodes before anyone treats those sessions as orphaned, so
+     * their users would be "already logged in" until the next clean stop.
+     */
+    private void releasePreviousSessions() {
+        try {
+            int released = DaoUtils.executeUpdate(getDataSource(), DELETE_NODE_SESSIONS, st -> st.setString(1, nodeId));
+            if (released > 0) {
+                logger.warn("Released {} sessions left by the previous run of node {}", released, nodeId);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Failed to release the previous sessions of node {}", nodeId, e);
+        }
+    }
+
+    private void refreshNode() {
+        try {
+            DaoUtils.executeUpdate(getDataSource(), UPSERT_NODE, st -> st.setString(1, nodeId));
+            DaoUtils.executeUpdate(getDataSource(), DELETE_STALE_NODES, st -> st.setInt(1, heartbeatSeconds * 6));
+            int released = DaoUtils.executeUpdate(getDataSource(), DELETE_ORPHAN_SESSIONS, null);
+            if (released > 0) {
+                logger.warn("Released {} sessions of nodes that stopped responding", released);
+            }
+            DaoUtils.executeUpdate(getDataSource(), DELETE_OLD_EVENTS, null);
+        } catch (RuntimeException e) {
+            logger.error("Failed to refresh cluster node {}", nodeId, e);
+        }
+    }
+
+    @Override
+    public boolean claimSession(String login, String username) {
+        return DaoUtils.executeUpdate(
+                getDataSource(),
+                INSERT_SESSION,
+                st -> {
+                    st.setString(1, login);
+                    st.setString(2, username);
+                    st.setString(3, nodeId);
+                }
+        ) == 1;
+    }
+
+    @Override
+    public void releaseSession(String login) {
+        DaoUtils.executeUpdate(
+                getDataSource(),
+                DELETE_SESSION,
+                st -> {
+                    st.setString(1, login);
+                    st.setString(2, nodeId);
+                }
+        );
+    }
+
+    @Override
+    public boolean renameSession(String login, String newUsername) {
+        try {
+            return DaoUtils.executeUpdate(
+                    getDataSource(),
+                    UPDATE_SESSION_USERNAME,
+                    st -> {
+                        st.setString(1, newUsername);
+                        st.setString(2, login);
+                        st.setString(3, nodeId);
+                        st.setString(4, newUsername);
+                    }
+            ) == 1;
+        } catch (RuntimeException e) {
+            // a concurrent claim of the same username won the unique index
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        heartbeat.shutdownNow();
+        try {
+            if (publisherThread != null) {
+                publisherThread.join(TimeUnit.SECONDS.toMillis(2));
+            }
+            if (listenerThread != null) {
+                listenerThread.join(TimeUnit.SECONDS.toMillis(1));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            DaoUtils.executeUpdate(getDataSource(), DELETE_NODE_SESSIONS, st -> st.setString(1, nodeId));
+            DaoUtils.executeUpdate(getDataSource(), DELETE_NODE, st -> st.setString(1, nodeId));
+        } catch (RuntimeException e) {
+            logger.error("Failed to release the sessions of node {}", nodeId, e);
+        }
+        logger.info("Node {} left the cluster: {}", nodeId, this);
+    }
+
+    @Override
+    public String toString() {
+        return "PostgresClusterBus{nodeId='" + nodeId + "', published=" + published.get() + ", received=" + received.get() +
+                ", dropped=" + dropped.get() + ", failed=" + failed.get() + ", queued=" + outbound.size() + "}";
+    }
+}
@@ -0,0 +1,175 @@
+package ru.gordeev.chat.config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The settings of the server, read from three layers. A key set in a later
+ * layer overrides the earlier ones:
+ * <ol>
+ *     <li>a properties file: chat.properties in the working directory, or
+ *     the file named by the chat.config system property or the CHAT_CONFIG
+ *     environment variable;</li>
+ *     <li>environment variables, named after the key in upper case with
+ *     dots replaced by underscores (chat.db.pool.maxSize is
+ *     CHAT_DB_POOL_MAXSIZE);</li>
+ *     <li>system properties.</li>
+ * </ol>
+ * The file and the environment are read once, system properties on every
+ * lookup. A value that can't be parsed as the requested type fails with the
+ * name of the key instead of being replaced by the default.
+ */
+public final class ServerConfig {
+
+    public static final String FILE_PROPERTY = "chat.config";
+    private static final String DEFAULT_FILE = "chat.properties";
+
+    private static volatile ServerConfig instance;
+
+    private final Properties file;
+    private final Map<String, String> environment;
+    private final String fileName;
+
+    public ServerConfig(Properties file, Map<String, String> environment, String fileName) {
+        this.file = file;
+        this.environment = environment;
+        this.fileName = fileName;
+    }
+
+    /**
+     * @return the configuration of this process, loaded on first use
+     */
+    public static ServerConfig get() {
+        ServerConfig config = instance;
+        if (config == null) {
+            synchronized (ServerConfig.class) {
+                config = instance;
+                if (config == null) {
+                    config = load();
+                    instance = config;
+                }
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Reads the configuration file, if there is one, and the environment.
+     *
+     * @throws UncheckedIOException if a file named explicitly can't be read
+     */
+    public static ServerConfig load() {
+        String named = System.getProperty(FILE_PROPERTY, System.getenv("CHAT_CONFIG"));
+        Path path = Paths.get(named != null ? named : DEFAULT_FILE);
+        Properties properties = new Properties();
+        if (named != null || Files.isRegularFile(path)) {
+            try (InputStream in = Files.newInputStream(path)) {
+                properties.load(in);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Can't read the configuration file " + path.toAbsolutePath(), e);
+            }
+        }
+        return new ServerConfig(properties, System.getenv(),
+                properties.isEmpty() ? null : path.toAbsolutePath().toString());
+    }
+
+    /**
+     * @return the value of the key, or null if no layer sets it
+     */
+    public String getString(String key) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            value = environment.get(toEnvironmentName(key));
+        }
+        if (value == null) {
+            value = file.getProperty(key);
+        }
+        return value != null ? value.trim() : null;
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = getString(key);
+        return value != null ? value : defaultValue;
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = getString(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw invalid(key, value);
+        }
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = getString(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw invalid(key, value);
+        }
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value.equalsIgnoreCase("true")) {
+            return true;
+        }
+        if (value.equalsIgnoreCase("false")) {
+            return false;
+        }
+        throw invalid(key, value);
+    }
+
+    /**
+     * Reads the name of an enum constant, in any case.
+     */
+    public <E extends Enum<E>> E getEnum(String key, E defaultValue) {
+        String value = getString(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(defaultValue.getDeclaringClass(), value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw invalid(key, value);
+        }
+    }
+
+    /**
+     * @return the absolute path of the file the configuration was read from,
+     * or null if there is none
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    static String toEnvironmentName(String key) {
+        return key.toUpperCase(Locale.ROOT).replace('.', '_');
+    }
+
+    private static IllegalArgumentException invalid(String key, String value) {
+        return new IllegalArgumentException("Invalid value of " + key + ": '" + value + "'");
+    }
+
+    @Override
+    public String toString() {
+        return "ServerConfig{file=" + fileName + ", keys=" + file.size() + '}';
+    }
+}
@@ -0,0 +1,266 @@
+package ru.gordeev.chat.database;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ru.gordeev.chat.config.ServerConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes chat messages to a MessageStore in the background, so storing
+ * the history never delays message delivery.
+ *
+ * Messages are put into a bounded in-memory queue. A single writer thread
+ * collects them into batches and flushes a batch when it is full or when
+ * the flush interval has passed since its first message.
+ *
+ * Under database backpressure the queue absorbs the backlog. A failed
+ * flush is retried with a growing pause. When the queue is full, new
+ * messages are dropped and counted. Senders never wait for the database.
+ */
+public class BatchingMessageWriter {
+
+    private static final int MAX_FLUSH_ATTEMPTS = 3;
+    private static final long RETRY_BACKOFF_MILLIS = 100;
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final Logger logger;
+    private final MessageStore store;
+    private final BlockingQueue<ChatMessage> queue;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder flushNanos = new LongAdder();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+    private volatile boolean running;
+    private volatile boolean droppingReported;
+    private Thread writerThread;
+
+    /**
+     * @param store               where the messages are written
+     * @param batchSize           the maximum number of messages per flush
+     * @param flushIntervalMillis how long a message may wait for its batch to fill up
+     * @param queueCapacity       the number of messages waiting to be written before new ones are dropped
+     */
+    public BatchingMessageWriter(MessageStore store, int batchSize, long flushIntervalMillis, int queueCapacity) {
+        if (batchSize <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("Message batch size and queue capacity must be positive");
+        }
+        this.logger = LogManager.getLogger(BatchingMessageWriter.class);
+        this.store = store;
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    /**
+     * Reads the settings from the chat.messages.batchSize,
+     * chat.messages.flushIntervalMillis and chat.messages.queueCapacity
+     * keys.
+     */
+    public static BatchingMessageWriter fromConfig(ServerConfig config, MessageStore store) {
+        return new BatchingMessageWriter(store,
+                config.getInt("chat.messages.batchSize", 500),
+                config.getLong("chat.messages.flushIntervalMillis", 200L),
+                config.getInt("chat.messages.queueCapacity", 50_000));
+    }
+
+    public synchronized void start() {
+        if (writerThread != null) {
+            return;
+        }
+        running = true;
+        writerThread = new Thread(this::writeMessages, "message-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Queues the message for storage. Never blocks.
+     *
+     * @return false if the queue is full and the message has been dropped
+     */
+    public boolean write(ChatMessage message) {
+        if (queue.offer(message)) {
+            return true;
+        }
+        dropped.increment();
+        if (!droppingReported) {
+            droppingReported = true;
+            logger.warn("Message history queue is full, new messages are not stored until it drains");
+        }
+        return false;
+    }
+
+    /**
+     * Stops accepting work and flushes what is queued, waiting at most the
+     * given time for the writer thread to finish.
+     */
+    public void close(long timeout, TimeUnit unit) throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = writerThread;
+        }
+        if (thread != null) {
+            thread.join(unit.toMillis(timeout));
+        } else {
+            flushRemaining();
+        }
+        if (!queue.isEmpty()) {
+            logger.warn("{} messages were not stored before shutdown", queue.size());
+        }
+        logger.info("Message writer stopped: {}", this);
+    }
+
+    private void writeMessages() {
+        List<ChatMessage> batch = new ArrayList<>(batchSize);
+        long nextReport = System.nanoTime() + REPORT_INTERVAL_NANOS;
+        long reportedWritten = 0;
+
+        try {
+            while (running) {
+                ChatMessage first = queue.poll(flushIntervalNanos, TimeUnit.NANOSECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    collectBatch(batch);
+                    flush(batch);
+                    batch.clear();
+                }
+
+                long now = System.nanoTime();
+                if (now >= nextReport) {
+                    long total = written.sum();
+                    if (total > reportedWritten) {
+                        logger.info("Message history: {} msg/s over the last minute, {}",
+                                (total - reportedWritten) / TimeUnit.NANOSECONDS.toSeconds(REPORT_INTERVAL_NANOS), this);
+                    }
+                    reportedWritten = total;
+                    nextReport = now + REPORT_INTERVAL_NANOS;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushRemaining();
+    }
+
+    /**
+     * Adds queued messages to the batch until it is full or the flush
+     * interval, counted from its first message, has passed.
+     */
+    private void collectBatch(List<ChatMessage> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + flushIntervalNanos;
+        while (batch.size() < batchSize && running) {
+            queue.drainTo(batch, batchSize - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= batchSize || remaining <= 0) {
+                return;
+            }
+            ChatMessage next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void flushRemaining() {
+        List<ChatMessage> batch = new ArrayList<>(batchSize);
+        while (queue.drainTo(batch, batchSize) > 0) {
+            flush(batch);
+            batch.clear();
+        }
+    }
+
+    private void flush(List<ChatMessage> batch) {
+        for (int attempt = 1; ; attempt++) {
+            long start = System.nanoTime();
+            try {
+                store.saveAll(batch);
+                recordFlush(batch.size(), System.nanoTime() - start);
+                droppingReported = false;
+                return;
+            } catch (RuntimeException e) {
+                if (attempt >= MAX_FLUSH_ATTEMPTS || !running) {
+                    failed.add(batch.size());
+                    logger.error("Failed to store {} messages after {} attempts, they are lost", batch.size(), attempt, e);
+                    return;
+                }
+                logger.warn("Failed to store {} messages (attempt {}), retrying", batch.size(), attempt);
+                try {
+                    TimeUnit.MILLISECONDS.sleep(RETRY_BACKOFF_MILLIS << (attempt - 1));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    failed.add(batch.size());
+                    return;
+                }
+            }
+        }
+    }
+
+    private void recordFlush(int size, long nanos) {
+        written.add(size);
+        batches.increment();
+        flushNanos.add(nanos);
+        maxFlushNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Number of messages waiting to be written.
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getWritten() {
+        return written.sum();
+    }
+
+    /**
+     * Number of messages dropped because the queue was full.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Number of messages lost because their batch could not be stored.
+     */
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    public long getAverageFlushMicros() {
+        long count = batches.sum();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(flushNanos.sum() / count);
+    }
+
+    public long getMaxFlushMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxFlushNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return "BatchingMessageWriter{written=" + getWritten() +
+                ", batches=" + getBatches() +
+                ", queued=" + getQueueSize() +
+                ", dropped=" + getDropped() +
+                ", failed=" + getFailed() +
+                ", avgFlushMicros=" + getAverageFlushMicros() +
+                ", maxFlushMicros=" + getMaxFlushMicros() + '}';
+    }
+}
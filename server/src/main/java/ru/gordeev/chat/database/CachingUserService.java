@@ -0,0 +1,254 @@
+package ru.gordeev.chat.database;
+
+import ru.gordeev.chat.config.ServerConfig;
+import ru.gordeev.chat.handlers.UserRole;
+import ru.gordeev.chat.helpers.UserNotFoundException;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A UserService decorator that keeps user profiles in memory, so the role,
+ * login and ban lookups made after a successful login cost one query
+ * instead of three.
+ *
+ * The cache is bounded in size (least recently used entries are evicted)
+ * and every entry expires after a fixed time. Changes made through this
+ * service, including the bans lifted by BanManagementService, invalidate
+ * the affected entries. Password checks and
+ * registration always go to the delegate.
+ */
+public class CachingUserService implements UserService {
+
+    private final UserService delegate;
+    private final int maxSize;
+    private final long ttlNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, CachedProfile> profiles;
+    private final AtomicLong invalidations = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Reads the cache limits from the chat.userCache.maxSize and
+     * chat.userCache.ttlSeconds keys of the server configuration.
+     */
+    public CachingUserService(UserService delegate) {
+        this(delegate, ServerConfig.get().getInt("chat.userCache.maxSize", 10_000),
+                ServerConfig.get().getLong("chat.userCache.ttlSeconds", 60L), TimeUnit.SECONDS);
+    }
+
+    public CachingUserService(UserService delegate, int maxSize, long ttl, TimeUnit unit) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("User cache size must be positive: " + maxSize);
+        }
+        this.delegate = delegate;
+        this.maxSize = maxSize;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.profiles = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedProfile> eldest) {
+                return size() > CachingUserService.this.maxSize;
+            }
+        };
+    }
+
+    @Override
+    public UserProfile getUserProfile(String username) {
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            CachedProfile entry = profiles.get(username);
+            if (entry != null && now - entry.loadedAt < ttlNanos) {
+                hits.increment();
+                return entry.profile;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        misses.increment();
+        long version = invalidations.get();
+        UserProfile profile = delegate.getUserProfile(username);
+        if (profile != null) {
+            store(profile, version, now);
+        }
+        return profile;
+    }
+
+    @Override
+    public String getUsernameByLoginAndPassword(String login, String password) {
+        return delegate.getUsernameByLoginAndPassword(login, password);
+    }
+
+    /**
+     * Always checks the password with the delegate and refreshes the cached
+     * profile with the result.
+     */
+    @Override
+    public UserProfile authenticate(String login, String password) {
+        long now = System.nanoTime();
+        long version = invalidations.get();
+        UserProfile profile = delegate.authenticate(login, password);
+        if (profile != null) {
+            store(profile, version, now);
+        }
+        return profile;
+    }
+
+    @Override
+    public boolean isUserAlreadyRegistered(String login, String username) {
+        return delegate.isUserAlreadyRegistered(login, username);
+    }
+
+    @Override
+    public boolean registerUser(String login, String password, String username) {
+        return delegate.registerUser(login, password, username);
+    }
+
+    @Override
+    public boolean changeUsername(String login, String newUsername) {
+        try {
+            return delegate.changeUsername(login, newUsername);
+        } finally {
+            invalidateLogin(login);
+            invalidate(newUsername);
+        }
+    }
+
+    @Override
+    public UserRole getUserRole(String username) {
+        return Objects.requireNonNull(getUserProfile(username)).getRole();
+    }
+
+    @Override
+    public String getUserLogin(String username) {
+        return Objects.requireNonNull(getUserProfile(username)).getLogin();
+    }
+
+    @Override
+    public boolean setBan(String username, Integer durationMinutes) {
+        try {
+            return delegate.setBan(username, durationMinutes);
+        } finally {
+            invalidate(username);
+        }
+    }
+
+    @Override
+    public boolean setBan(String username) {
+        try {
+            return delegate.setBan(username);
+        } finally {
+            invalidate(username);
+        }
+    }
+
+    @Override
+    public boolean unsetBan(String username) {
+        try {
+            return delegate.unsetBan(username);
+        } finally {
+            invalidate(username);
+        }
+    }
+
+    @Override
+    public boolean isBanned(String username) throws UserNotFoundException {
+        UserProfile profile = getUserProfile(username);
+        if (profile == null) {
+            throw new UserNotFoundException("User not found: " + username);
+        }
+        return profile.isBanned();
+    }
+
+    @Override
+    public List<UserProfile> getBannedUsers() {
+        return delegate.getBannedUsers();
+    }
+
+    @Override
+    public int liftExpiredBans(List<String> usernames) {
+        try {
+            return delegate.liftExpiredBans(usernames);
+        } finally {
+            for (String username : usernames) {
+                invalidate(username);
+            }
+        }
+    }
+
+    private void store(UserProfile profile, long version, long loadedAt) {
+        lock.lock();
+        try {
+            // Skip the store if anything was invalidated while the query was running
+            if (invalidations.get() == version) {
+                profiles.put(profile.getUsername(), new CachedProfile(profile, loadedAt));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the cached profile of the user, if any.
+     */
+    public void invalidate(String username) {
+        lock.lock();
+        try {
+            invalidations.incrementAndGet();
+            profiles.remove(username);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void invalidateLogin(String login) {
+        lock.lock();
+        try {
+            invalidations.incrementAndGet();
+            Iterator<CachedProfile> iterator = profiles.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().profile.getLogin().equals(login)) {
+                    iterator.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return profiles.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class CachedProfile {
+        private final UserProfile profile;
+        private final long loadedAt;
+
+        private CachedProfile(UserProfile profile, long loadedAt) {
+            this.profile = profile;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
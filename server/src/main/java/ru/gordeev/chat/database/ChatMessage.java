@@ -0,0 +1,73 @@
+package ru.gordeev.chat.database;
+
+import java.time.LocalDateTime;
+
+/**
+ * A chat message as it is kept in the history: a broadcast to a room if it
+ * has no recipient, a private message otherwise.
+ */
+public final class ChatMessage {
+
+    private final long id;
+    private final LocalDateTime createdAt;
+    private final String room;
+    private final String sender;
+    private final String recipient;
+    private final String body;
+
+    public ChatMessage(LocalDateTime createdAt, String room, String sender, String recipient, String body) {
+        this(0, createdAt, room, sender, recipient, body);
+    }
+
+    /**
+     * @param id the id assigned by the store, or 0 for a message that has not been stored yet
+     */
+    public ChatMessage(long id, LocalDateTime createdAt, String room, String sender, String recipient, String body) {
+        this.id = id;
+        this.createdAt = createdAt;
+        this.room = room;
+        this.sender = sender;
+        this.recipient = recipient;
+        this.body = body;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * @return the room of a broadcast, or null for a private message
+     */
+    public String getRoom() {
+        return room;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    /**
+     * @return the username of the recipient of a private message, or null for a broadcast
+     */
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    public boolean isBroadcast() {
+        return recipient == null;
+    }
+
+    @Override
+    public String toString() {
+        return "ChatMessage{id=" + id + ", createdAt=" + createdAt + ", room='" + room + "', sender='" + sender + "', recipient='" + recipient +
+                "', body='" + body + "'}";
+    }
+}
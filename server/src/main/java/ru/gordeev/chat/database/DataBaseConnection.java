@@ -2,9 +2,18 @@ package ru.gordeev.chat.database;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import ru.gordeev.chat.config.ServerConfig;
+import ru.gordeev.chat.metrics.MetricsRegistry;
 
 import javax.sql.DataSource;
 
+/**
+ * The Hikari pool shared by the DAOs, Flyway and the cluster bus, set up
+ * from the chat.db.* keys of the server configuration. The credentials
+ * fall back to the database.user and database.password environment
+ * variables. The pool reports its wait times and connection counts to
+ * the default metrics registry.
+ */
 public class DataBaseConnection {
 
     private static final HikariDataSource dataSource;
@@ -12,18 +21,41 @@ public class DataBaseConnection {
     private DataBaseConnection() {}
 
     static {
+        ServerConfig settings = ServerConfig.get();
         HikariConfig config = new HikariConfig();
-        config.setJdbcUrl("jdbc:postgresql://localhost:5432/postgres");
-        config.setUsername(System.getenv("database.user"));
-        config.setPassword(System.getenv("database.password"));
-
-        config.addDataSourceProperty("cachePrepStmts", "true");
-        config.addDataSourceProperty("prepStmtCacheSize", "250");
-        config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+        config.setPoolName("chat-db");
+        config.setJdbcUrl(settings.getString("chat.db.url", "jdbc:postgresql://localhost:5432/postgres"));
+        config.setUsername(settings.getString("chat.db.user", System.getenv("database.user")));
+        config.setPassword(settings.getString("chat.db.password", System.getenv("database.password")));
+
+        int maxSize = settings.getInt("chat.db.pool.maxSize", 10);
+        config.setMaximumPoolSize(maxSize);
+        config.setMinimumIdle(settings.getInt("chat.db.pool.minIdle", maxSize));
+        config.setConnectionTimeout(settings.getLong("chat.db.pool.connectionTimeoutMillis", 30_000L));
+        config.setIdleTimeout(settings.getLong("chat.db.pool.idleTimeoutMillis", 600_000L));
+        config.setMaxLifetime(settings.getLong("chat.db.pool.maxLifetimeMillis", 1_800_000L));
+        // 0 turns leak detection off
+        config.setLeakDetectionThreshold(settings.getLong("chat.db.pool.leakDetectionMillis", 0L));
+        config.setMetricsTrackerFactory(PoolMetricsTracker.factory(MetricsRegistry.getDefault()));
+
+        // pgjdbc switches a statement to a named server-side one after this many runs on a connection
+        config.addDataSourceProperty("prepareThreshold", settings.getInt("chat.db.prepareThreshold", 5));
+        config.addDataSourceProperty("preparedStatementCacheQueries", settings.getInt("chat.db.prepStmtCacheSize", 256));
+        config.addDataSourceProperty("preparedStatementCacheSizeMiB", settings.getInt("chat.db.prepStmtCacheSizeMiB", 5));
+        // Lets the driver send a JDBC batch of inserts as multi-row INSERT statements
+        config.addDataSourceProperty("reWriteBatchedInserts", "true");
         dataSource = new HikariDataSource(config);
     }
 
     public static DataSource getDataSource() {
         return dataSource;
     }
+
+    /**
+     * Closes the pooled connections. Connections still borrowed are closed
+     * as they are returned.
+     */
+    public static void close() {
+        dataSource.close();
+    }
 }
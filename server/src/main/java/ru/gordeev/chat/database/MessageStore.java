@@ -0,0 +1,29 @@
+package ru.gordeev.chat.database;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Persistent storage of the chat history.
+ */
+public interface MessageStore {
+
+    /**
+     * Stores the messages in one round trip. Either all of them are stored
+     * or none.
+     */
+    void saveAll(List<ChatMessage> messages);
+
+    /**
+     * Loads a page of the messages broadcast to a room older than the given
+     * position, newest first. Pages are cut by (created_at, id) rather than by offset,
+     * so going further back costs the same as reading the first page.
+     *
+     * @param room            the room
+     * @param beforeCreatedAt only messages created before this moment, or null to start from the newest
+     * @param beforeId        the id of the last message of the previous page, or 0 to take every
+     *                        message created before beforeCreatedAt
+     * @param limit           the maximum number of messages
+     */
+    List<ChatMessage> findBroadcasts(String room, LocalDateTime beforeCreatedAt, long beforeId, int limit);
+}
@@ -0,0 +1,16 @@
+package ru.gordeev.chat.database;
+
+/**
+ * Where bcrypt password hashes are computed and verified.
+ */
+public enum PasswordHashing {
+    /**
+     * By Postgres, through pgcrypto's crypt() and gen_salt('bf').
+     */
+    DATABASE,
+    /**
+     * In the server JVM with jBCrypt. The database only stores and returns
+     * the hash, so a login storm costs server CPU instead of database CPU.
+     */
+    JVM
+}
@@ -0,0 +1,54 @@
+package ru.gordeev.chat.database;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+import ru.gordeev.chat.metrics.Counter;
+import ru.gordeev.chat.metrics.Histogram;
+import ru.gordeev.chat.metrics.MetricsRegistry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds the Hikari pool events into the metrics registry: the time threads
+ * wait for a connection, how long they hold it, the acquisitions that timed
+ * out, and the connection counts of the pool.
+ */
+class PoolMetricsTracker implements IMetricsTracker {
+
+    private final Histogram waitTime;
+    private final Histogram usageTime;
+    private final Counter timeouts;
+
+    private PoolMetricsTracker(MetricsRegistry registry, PoolStats poolStats) {
+        this.waitTime = registry.histogram("chat_db_pool_wait_micros",
+                "Time to get a connection from the pool in microseconds");
+        this.usageTime = registry.histogram("chat_db_pool_usage_millis",
+                "Time a connection is borrowed from the pool in milliseconds");
+        this.timeouts = registry.counter("chat_db_pool_timeouts",
+                "Connection requests that timed out waiting for the pool");
+        registry.gauge("chat_db_pool_active", "Connections in use", poolStats::getActiveConnections);
+        registry.gauge("chat_db_pool_idle", "Idle connections in the pool", poolStats::getIdleConnections);
+        registry.gauge("chat_db_pool_pending", "Threads waiting for a connection", poolStats::getPendingThreads);
+        registry.gauge("chat_db_pool_size", "Connections in the pool", poolStats::getTotalConnections);
+    }
+
+    static MetricsTrackerFactory factory(MetricsRegistry registry) {
+        return (poolName, poolStats) -> new PoolMetricsTracker(registry, poolStats);
+    }
+
+    @Override
+    public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+        waitTime.record(TimeUnit.NANOSECONDS.toMicros(elapsedAcquiredNanos));
+    }
+
+    @Override
+    public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+        usageTime.record(elapsedBorrowedMillis);
+    }
+
+    @Override
+    public void recordConnectionTimeout() {
+        timeouts.increment();
+    }
+}
@@ -0,0 +1,100 @@
+package ru.gordeev.chat.database;
+
+import ru.gordeev.chat.database.utils.DaoUtils;
+
+import javax.sql.DataSource;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the chat history in the messages table. Messages are written with
+ * JDBC batches, see BatchingMessageWriter, and read back page by page with
+ * keyset pagination.
+ */
+public class PostgresMessageStore implements MessageStore {
+
+    private static final String INSERT_MESSAGE =
+            "INSERT INTO messages (created_at, room, sender, recipient, body) VALUES (?, ?, ?, ?, ?)";
+    private static final String SELECT_LATEST_BROADCASTS =
+            "SELECT id, created_at, sender, body FROM messages WHERE room = ? AND recipient IS NULL " +
+                    "ORDER BY created_at DESC, id DESC LIMIT ?";
+    private static final String SELECT_BROADCASTS_BEFORE =
+            "SELECT id, created_at, sender, body FROM messages WHERE room = ? AND recipient IS NULL AND (created_at, id) < (?, ?) " +
+                    "ORDER BY created_at DESC, id DESC LIMIT ?";
+
+    private final DataSource dataSource;
+
+    public PostgresMessageStore() {
+        this(null);
+    }
+
+    /**
+     * @param dataSource the DataSource to run queries against, or null to use
+     *                   the shared Hikari pool from DataBaseConnection
+     */
+    public PostgresMessageStore(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    private DataSource getDataSource() {
+        return dataSource != null ? dataSource : DataBaseConnection.getDataSource();
+    }
+
+    @Override
+    public void saveAll(List<ChatMessage> messages) {
+        DaoUtils.executeBatch(
+                getDataSource(),
+                INSERT_MESSAGE,
+                messages,
+                (st, message) -> {
+                    st.setTimestamp(1, Timestamp.valueOf(message.getCreatedAt()));
+                    if (message.getRoom() != null) {
+                        st.setString(2, message.getRoom());
+                    } else {
+                        st.setNull(2, Types.VARCHAR);
+                    }
+                    st.setString(3, message.getSender());
+                    if (message.getRecipient() != null) {
+                        st.setString(4, message.getRecipient());
+                    } else {
+                        st.setNull(4, Types.VARCHAR);
+                    }
+                    st.setString(5, message.getBody());
+                }
+        );
+    }
+
+    @Override
+    public List<ChatMessage> findBroadcasts(String room, LocalDateTime beforeCreatedAt, long beforeId, int limit) {
+        return DaoUtils.queryForObject(
+                getDataSource(),
+                beforeCreatedAt == null ? SELECT_LATEST_BROADCASTS : SELECT_BROADCASTS_BEFORE,
+                st -> {
+                    st.setString(1, room);
+                    if (beforeCreatedAt == null) {
+                        st.setInt(2, limit);
+                    } else {
+                        st.setTimestamp(2, Timestamp.valueOf(beforeCreatedAt));
+                        st.setLong(3, beforeId);
+                        st.setInt(4, limit);
+                    }
+                },
+                rs -> {
+                    List<ChatMessage> messages = new ArrayList<>();
+                    while (rs.next()) {
+                        messages.add(new ChatMessage(
+                                rs.getLong("id"),
+                                rs.getTimestamp("created_at").toLocalDateTime(),
+                                room,
+                                rs.getString("sender"),
+                                null,
+                                rs.getString("body")));
+                    }
+                    return messages;
+                }
+        );
+    }
+}
@@ -0,0 +1,79 @@
+package ru.gordeev.chat.database;
+
+import ru.gordeev.chat.database.utils.DaoUtils;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps room membership in the room_members table, keyed by login so it
+ * survives username changes.
+ */
+public class PostgresRoomService implements RoomService {
+
+    private static final String SELECT_ROOMS_BY_LOGIN =
+            "SELECT room FROM room_members WHERE login = ? ORDER BY joined_at";
+    private static final String INSERT_ROOM_MEMBER =
+            "INSERT INTO room_members (login, room) VALUES (?, ?) ON CONFLICT DO NOTHING";
+    private static final String DELETE_ROOM_MEMBER =
+            "DELETE FROM room_members WHERE login = ? AND room = ?";
+
+    private final DataSource dataSource;
+
+    public PostgresRoomService() {
+        this(null);
+    }
+
+    /**
+     * @param dataSource the DataSource to run queries against, or null to use
+     *                   the shared Hikari pool from DataBaseConnection
+     */
+    public PostgresRoomService(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    private DataSource getDataSource() {
+        return dataSource != null ? dataSource : DataBaseConnection.getDataSource();
+    }
+
+    @Override
+    public List<String> getRooms(String login) {
+        return DaoUtils.queryForObject(
+                getDataSource(),
+                SELECT_ROOMS_BY_LOGIN,
+                st -> st.setString(1, login),
+                rs -> {
+                    List<String> rooms = new ArrayList<>();
+                    while (rs.next()) {
+                        rooms.add(rs.getString("room"));
+                    }
+                    return rooms;
+                }
+        );
+    }
+
+    @Override
+    public void joinRoom(String login, String room) {
+        DaoUtils.executeUpdate(
+                getDataSource(),
+                INSERT_ROOM_MEMBER,
+                st -> {
+                    st.setString(1, login);
+                    st.setString(2, room);
+                }
+        );
+    }
+
+    @Override
+    public void leaveRoom(String login, String room) {
+        DaoUtils.executeUpdate(
+                getDataSource(),
+                DELETE_ROOM_MEMBER,
+                st -> {
+                    st.setString(1, login);
+                    st.setString(2, room);
+                }
+        );
+    }
+}
@@ -1,49 +1,113 @@
 package ru.gordeev.chat.database;
 
+import org.mindrot.jbcrypt.BCrypt;
+import ru.gordeev.chat.config.ServerConfig;
 import ru.gordeev.chat.database.utils.DaoUtils;
 import ru.gordeev.chat.handlers.UserRole;
 import ru.gordeev.chat.helpers.UserNotFoundException;
 
+import javax.sql.DataSource;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 /**
  * An example of a DAO (Data Access Object) implementation for Postgres
  * that handles user-related queries. It uses DaoUtils methods for
  * executing JDBC statements and performing queries.
+ * Queries run concurrently, each on its own pooled connection. Logins and
+ * usernames are unique indexes, so registration is a single INSERT that
+ * does nothing when either is taken, with no lock and no separate check.
+ * Password hashes are computed either by pgcrypto or in the JVM, depending
+ * on the PasswordHashing mode; both produce the same bcrypt format.
  */
 public class PostgresUserService implements UserService {
 
     private static final String SELECT_USER_BY_LOGIN_AND_PASSWORD =
             "SELECT username FROM users WHERE login = ? AND password = crypt(?, password)";
+    private static final String SELECT_PROFILE_BY_LOGIN_AND_PASSWORD =
+            "SELECT login, username, role, is_banned, ban_expiration FROM users WHERE login = ? AND password = crypt(?, password)";
+    private static final String SELECT_PROFILE_AND_PASSWORD_BY_LOGIN =
+            "SELECT login, username, role, is_banned, ban_expiration, password FROM users WHERE login = ?";
     private static final String SELECT_USER_BY_LOGIN_OR_USERNAME =
             "SELECT id FROM users WHERE login = ? OR username = ?";
     private static final String INSERT_USER_BY_LOGIN_PASSWORD_USERNAME =
-            "INSERT INTO users (login, password, username, role) VALUES (?, crypt(?, gen_salt('bf')), ?, 'user')";
+            "INSERT INTO users (login, password, username, role) VALUES (?, crypt(?, gen_salt('bf')), ?, 'user') ON CONFLICT DO NOTHING";
+    private static final String INSERT_USER_BY_LOGIN_HASH_USERNAME =
+            "INSERT INTO users (login, password, username, role) VALUES (?, ?, ?, 'user') ON CONFLICT DO NOTHING";
     private static final String SELECT_ROLE_BY_USERNAME =
             "SELECT role FROM users WHERE username = ?";
     private static final String SELECT_LOGIN_BY_USERNAME =
             "SELECT login FROM users WHERE username = ?";
     private static final String UPDATE_USERNAME =
-            "UPDATE users SET username = ? WHERE login = ?";
+            "UPDATE users SET username = ? WHERE login = ? AND username <> ?";
     private static final String BAN_USER_WITHOUT_DATE =
             "UPDATE users SET is_banned = TRUE, ban_expiration = NULL WHERE username = ?";
+    private static final String BAN_USER_WITH_DURATION =
+            "UPDATE users SET is_banned = TRUE, ban_expiration = NOW() + make_interval(mins => ?) WHERE username = ?";
     private static final String UNBAN_USER =
             "UPDATE users SET is_banned = FALSE, ban_expiration = NULL WHERE username = ?";
     private static final String SELECT_USER_BAN_STATE_BY_USERNAME =
-            "SELECT is_banned FROM users WHERE username = ?";
+            "SELECT is_banned AND (ban_expiration IS NULL OR ban_expiration > NOW()) AS is_banned FROM users WHERE username = ?";
+    private static final String SELECT_PROFILE_BY_USERNAME =
+            "SELECT login, username, role, is_banned, ban_expiration FROM users WHERE username = ?";
+    private static final String SELECT_BANNED_USERS =
+            "SELECT login, username, role, is_banned, ban_expiration FROM users WHERE is_banned = TRUE";
+    private static final String LIFT_EXPIRED_BAN =
+            "UPDATE users SET is_banned = FALSE, ban_expiration = NULL WHERE username = ? AND is_banned = TRUE AND ban_expiration <= NOW()";
 
+    /**
+     * Cost factor of hashes made in the JVM, the same as gen_salt('bf') uses.
+     */
+    private static final int BCRYPT_LOG_ROUNDS = 6;
+
+    private final DataSource dataSource;
+    private final PasswordHashing passwordHashing;
+
+    /**
+     * Uses the shared Hikari pool and the hashing mode from the
+     * chat.auth.hashing key of the server configuration (DATABASE by default).
+     */
+    public PostgresUserService() {
+        this(null, ServerConfig.get().getEnum("chat.auth.hashing", PasswordHashing.DATABASE));
+    }
+
+    /**
+     * @param dataSource the DataSource to run queries against, or null to use
+     *                   the shared Hikari pool from DataBaseConnection
+     */
+    public PostgresUserService(DataSource dataSource) {
+        this(dataSource, PasswordHashing.DATABASE);
+    }
+
+    /**
+     * @param dataSource      the DataSource to run queries against, or null to use
+     *                        the shared Hikari pool from DataBaseConnection
+     * @param passwordHashing where password hashes are computed and verified
+     */
+    public PostgresUserService(DataSource dataSource, PasswordHashing passwordHashing) {
+        this.dataSource = dataSource;
+        this.passwordHashing = passwordHashing;
+    }
 
     /**
      * Retrieves the Hikari DataSource connection pool.
      *
      * @return the DataSource object
      */
-    private javax.sql.DataSource getDataSource() {
-        return DataBaseConnection.getDataSource();
+    private DataSource getDataSource() {
+        return dataSource != null ? dataSource : DataBaseConnection.getDataSource();
     }
 
     @Override
-    public synchronized String getUsernameByLoginAndPassword(String login, String password) {
+    public String getUsernameByLoginAndPassword(String login, String password) {
+        if (passwordHashing == PasswordHashing.JVM) {
+            UserProfile profile = authenticate(login, password);
+            return profile != null ? profile.getUsername() : null;
+        }
         return DaoUtils.queryForObject(
                 getDataSource(),
                 SELECT_USER_BY_LOGIN_AND_PASSWORD,
@@ -61,7 +125,7 @@ public class PostgresUserService implements UserService {
     }
 
     @Override
-    public synchronized boolean isUserAlreadyRegistered(String login, String username) {
+    public boolean isUserAlreadyRegistered(String login, String username) {
         Integer userId = DaoUtils.queryForObject(
                 getDataSource(),
                 SELECT_USER_BY_LOGIN_OR_USERNAME,
@@ -75,55 +139,51 @@ public class PostgresUserService implements UserService {
     }
 
     @Override
-    public synchronized boolean registerUser(String login, String password, String newUsername) {
-        if (isUserAlreadyRegistered(login, newUsername)) {
-            return false;
-        }
+    public boolean registerUser(String login, String password, String newUsername) {
+        boolean hashInJvm = passwordHashing == PasswordHashing.JVM;
+        String passwordOrHash = hashInJvm ? BCrypt.hashpw(password, BCrypt.gensalt(BCRYPT_LOG_ROUNDS)) : password;
+
         int rows = DaoUtils.executeUpdate(
                 getDataSource(),
-                INSERT_USER_BY_LOGIN_PASSWORD_USERNAME,
+                hashInJvm ? INSERT_USER_BY_LOGIN_HASH_USERNAME : INSERT_USER_BY_LOGIN_PASSWORD_USERNAME,
                 st -> {
                     st.setString(1, login);
-                    st.setString(2, password);
+                    st.setString(2, passwordOrHash);
                     st.setString(3, newUsername);
                 }
         );
+        // No row inserted: the login or the username is taken
         return rows > 0;
     }
 
     @Override
-    public synchronized boolean changeUsername(String login, String newUsername) {
-        int rows = DaoUtils.executeUpdate(
+    public boolean changeUsername(String login, String newUsername) {
+        // The unique index on username decides, so a concurrent registration can't slip in
+        int rows = DaoUtils.executeUpdateUnlessDuplicate(
                 getDataSource(),
                 UPDATE_USERNAME,
                 st -> {
                     st.setString(1, newUsername);
                     st.setString(2, login);
+                    st.setString(3, newUsername);
                 }
         );
         return rows > 0;
     }
 
     @Override
-    public synchronized UserRole getUserRole(String username) {
+    public UserRole getUserRole(String username) {
         UserRole role = DaoUtils.queryForObject(
                 getDataSource(),
                 SELECT_ROLE_BY_USERNAME,
                 st -> st.setString(1, username),
-                rs -> {
-                    if (rs.next()) {
-                        String r = rs.getString("role");
-                        if ("USER".equalsIgnoreCase(r)) return UserRole.USER;
-                        if ("ADMIN".equalsIgnoreCase(r)) return UserRole.ADMIN;
-                    }
-                    return null;
-                }
+                rs -> rs.next() ? toUserRole(rs.getString("role")) : null
         );
         return Objects.requireNonNull(role);
     }
 
     @Override
-    public synchronized String getUserLogin(String username) {
+    public String getUserLogin(String username) {
         String login = DaoUtils.queryForObject(
                 getDataSource(),
                 SELECT_LOGIN_BY_USERNAME,
@@ -139,7 +199,7 @@ public class PostgresUserService implements UserService {
     }
 
     @Override
-    public synchronized boolean setBan(String username) {
+    public boolean setBan(String username) {
         int rows = DaoUtils.executeUpdate(
                 getDataSource(),
                 BAN_USER_WITHOUT_DATE,
@@ -149,18 +209,20 @@ public class PostgresUserService implements UserService {
     }
 
     @Override
-    public synchronized boolean setBan(String username, Integer durationMinutes) {
-        String sql = "UPDATE users SET is_banned = TRUE, ban_expiration = (NOW() + INTERVAL '" + durationMinutes + " minutes') WHERE username = ?";
+    public boolean setBan(String username, Integer durationMinutes) {
         int rows = DaoUtils.executeUpdate(
                 getDataSource(),
-                sql,
-                st -> st.setString(1, username)
+                BAN_USER_WITH_DURATION,
+                st -> {
+                    st.setInt(1, durationMinutes);
+                    st.setString(2, username);
+                }
         );
         return rows > 0;
     }
 
     @Override
-    public synchronized boolean unsetBan(String username) {
+    public boolean unsetBan(String username) {
         int rows = DaoUtils.executeUpdate(
                 getDataSource(),
                 UNBAN_USER,
@@ -170,7 +232,7 @@ public class PostgresUserService implements UserService {
     }
 
     @Override
-    public synchronized boolean isBanned(String username) throws UserNotFoundException {
+    public boolean isBanned(String username) throws UserNotFoundException {
         Boolean banned = DaoUtils.queryForObject(
                 getDataSource(),
                 SELECT_USER_BAN_STATE_BY_USERNAME,
@@ -187,4 +249,124 @@ public class PostgresUserService implements UserService {
         }
         return banned;
     }
+
+    /**
+     * Reads the rows through the partial index on ban_expiration, which only
+     * holds banned users.
+     */
+    @Override
+    public List<UserProfile> getBannedUsers() {
+        return DaoUtils.queryForObject(
+                getDataSource(),
+                SELECT_BANNED_USERS,
+                null,
+                rs -> {
+                    List<UserProfile> profiles = new ArrayList<>();
+                    while (rs.next()) {
+                        profiles.add(readUserProfile(rs));
+                    }
+                    return profiles;
+                }
+        );
+    }
+
+    @Override
+    public int liftExpiredBans(List<String> usernames) {
+        if (usernames.isEmpty()) {
+            return 0;
+        }
+        int[] counts = DaoUtils.executeBatch(
+                getDataSource(),
+                LIFT_EXPIRED_BAN,
+                usernames,
+                (st, username) -> st.setString(1, username)
+        );
+        int lifted = 0;
+        for (int count : counts) {
+            lifted += Math.max(count, 0);
+        }
+        return lifted;
+    }
+
+    @Override
+    public UserProfile getUserProfile(String username) {
+        return DaoUtils.queryForObject(
+                getDataSource(),
+                SELECT_PROFILE_BY_USERNAME,
+                st -> st.setString(1, username),
+                PostgresUserService::toUserProfile
+        );
+    }
+
+    @Override
+    public UserProfile authenticate(String login, String password) {
+        if (passwordHashing == PasswordHashing.JVM) {
+            return authenticateInJvm(login, password);
+        }
+        return DaoUtils.queryForObject(
+                getDataSource(),
+                SELECT_PROFILE_BY_LOGIN_AND_PASSWORD,
+                st -> {
+                    st.setString(1, login);
+                    st.setString(2, password);
+                },
+                PostgresUserService::toUserProfile
+        );
+    }
+
+    /**
+     * Loads the stored hash together with the profile and verifies the
+     * password with jBCrypt on the calling thread.
+     */
+    private UserProfile authenticateInJvm(String login, String password) {
+        StoredCredentials credentials = DaoUtils.queryForObject(
+                getDataSource(),
+                SELECT_PROFILE_AND_PASSWORD_BY_LOGIN,
+                st -> st.setString(1, login),
+                rs -> {
+                    UserProfile profile = toUserProfile(rs);
+                    return profile != null ? new StoredCredentials(profile, rs.getString("password")) : null;
+                }
+        );
+        // The hash is checked after the connection went back to the pool
+        if (credentials == null || credentials.hash == null) {
+            return null;
+        }
+        try {
+            return BCrypt.checkpw(password, credentials.hash) ? credentials.profile : null;
+        } catch (IllegalArgumentException e) {
+            // not a bcrypt hash
+            return null;
+        }
+    }
+
+    private static UserProfile toUserProfile(ResultSet rs) throws SQLException {
+        return rs.next() ? readUserProfile(rs) : null;
+    }
+
+    private static UserProfile readUserProfile(ResultSet rs) throws SQLException {
+        Timestamp banExpiration = rs.getTimestamp("ban_expiration");
+        return new UserProfile(
+                rs.getString("login"),
+                rs.getString("username"),
+                toUserRole(rs.getString("role")),
+                rs.getBoolean("is_banned"),
+                banExpiration != null ? banExpiration.toLocalDateTime() : null);
+    }
+
+    private static UserRole toUserRole(String role) {
+        if ("USER".equalsIgnoreCase(role)) return UserRole.USER;
+        if ("ADMIN".equalsIgnoreCase(role)) return UserRole.ADMIN;
+        return null;
+    }
+
+    private static final class StoredCredentials {
+        private final UserProfile profile;
+        private final String hash;
+
+        private StoredCredentials(UserProfile profile, String hash) {
+            this.profile = profile;
+            this.hash = hash;
+        }
+    }
 }
@@ -0,0 +1,19 @@
+package ru.gordeev.chat.database;
+
+import java.util.List;
+
+/**
+ * Persistent room membership. The default room is implicit and is never
+ * stored.
+ */
+public interface RoomService {
+
+    /**
+     * @return the rooms the user has joined, in the order they were joined
+     */
+    List<String> getRooms(String login);
+
+    void joinRoom(String login, String room);
+
+    void leaveRoom(String login, String room);
+}
@@ -0,0 +1,63 @@
+package ru.gordeev.chat.database;
+
+import ru.gordeev.chat.handlers.UserRole;
+
+import java.time.LocalDateTime;
+
+/**
+ * An immutable snapshot of the account data kept in a single users row.
+ */
+public final class UserProfile {
+
+    private final String login;
+    private final String username;
+    private final UserRole role;
+    private final boolean banned;
+    private final LocalDateTime banExpiration;
+
+    public UserProfile(String login, String username, UserRole role, boolean banned, LocalDateTime banExpiration) {
+        this.login = login;
+        this.username = username;
+        this.role = role;
+        this.banned = banned;
+        this.banExpiration = banExpiration;
+    }
+
+    public String getLogin() {
+        return login;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public UserRole getRole() {
+        return role;
+    }
+
+    /**
+     * Whether the user is banned right now. A temporary ban whose expiry has
+     * passed counts as lifted, even if BanManagementService has not reset
+     * the row yet.
+     */
+    public boolean isBanned() {
+        return isBannedAt(LocalDateTime.now());
+    }
+
+    public boolean isBannedAt(LocalDateTime moment) {
+        return banned && (banExpiration == null || banExpiration.isAfter(moment));
+    }
+
+    /**
+     * @return the end of a temporary ban, or null for a permanent ban or no ban
+     */
+    public LocalDateTime getBanExpiration() {
+        return banExpiration;
+    }
+
+    @Override
+    public String toString() {
+        return "UserProfile{login='" + login + "', username='" + username + "', role=" + role +
+                ", banned=" + banned + ", banExpiration=" + banExpiration + '}';
+    }
+}
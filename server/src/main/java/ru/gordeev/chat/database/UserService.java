@@ -3,10 +3,19 @@ package ru.gordeev.chat.database;
 import ru.gordeev.chat.handlers.UserRole;
 import ru.gordeev.chat.helpers.UserNotFoundException;
 
+import java.util.List;
+
 public interface UserService {
 
     String getUsernameByLoginAndPassword(String login, String password);
 
+    /**
+     * Checks the password and loads the user's profile with the same query.
+     *
+     * @return the profile, or null if the login and password don't match
+     */
+    UserProfile authenticate(String login, String password);
+
     boolean isUserAlreadyRegistered(String login, String username);
 
     boolean registerUser(String login, String password, String username);
@@ -24,4 +33,25 @@ public interface UserService {
     boolean unsetBan(String username);
 
     boolean isBanned(String username) throws UserNotFoundException;
+
+    /**
+     * Loads every user marked as banned, including temporary bans that have
+     * expired but were not lifted in the database yet.
+     */
+    List<UserProfile> getBannedUsers();
+
+    /**
+     * Lifts the temporary bans of the listed users that have expired. A user
+     * banned again in the meantime keeps the new ban.
+     *
+     * @return the number of bans lifted
+     */
+    int liftExpiredBans(List<String> usernames);
+
+    /**
+     * Loads the login, role and ban state of the user in one lookup.
+     *
+     * @return the profile, or null if there is no user with this name
+     */
+    UserProfile getUserProfile(String username);
 }
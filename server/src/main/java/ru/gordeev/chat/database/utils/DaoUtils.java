@@ -2,11 +2,15 @@ package ru.gordeev.chat.database.utils;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import ru.gordeev.chat.metrics.Histogram;
+import ru.gordeev.chat.metrics.MetricsRegistry;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Utility class for JDBC operations that hides the repetitive code
@@ -15,10 +19,19 @@ import java.sql.SQLException;
  * Methods:
  *  - queryForObject: For a SELECT returning one object (or null)
  *  - executeUpdate: For INSERT/UPDATE/DELETE
+ *  - executeUpdateUnlessDuplicate: For an UPDATE that may hit a unique index
+ *  - executeBatch: For the same INSERT/UPDATE/DELETE run for many items in one transaction
+ *
+ * Every statement is timed into the chat_db_statement_micros histogram of
+ * the default metrics registry, labelled with its SQL. The time runs from
+ * setting the parameters to reading the result; the wait for a pooled
+ * connection is measured by the pool itself.
  */
 public final class DaoUtils {
 
     private static final Logger logger = LogManager.getLogger(DaoUtils.class);
+    private static final String UNIQUE_VIOLATION = "23505";
+    private static final ConcurrentHashMap<String, Histogram> statementLatency = new ConcurrentHashMap<>();
 
     private DaoUtils() {}
 
@@ -41,12 +54,17 @@ public final class DaoUtils {
         try (Connection connection = dataSource.getConnection();
              PreparedStatement statement = connection.prepareStatement(sql)) {
 
-            if (paramSetter != null) {
-                paramSetter.accept(statement);
-            }
+            long start = System.nanoTime();
+            try {
+                if (paramSetter != null) {
+                    paramSetter.accept(statement);
+                }
 
-            try (ResultSet rs = statement.executeQuery()) {
-                return extractor.extract(rs);
+                try (ResultSet rs = statement.executeQuery()) {
+                    return extractor.extract(rs);
+                }
+            } finally {
+                latencyOf(sql).recordMicrosSince(start);
             }
 
         } catch (SQLException e) {
@@ -67,18 +85,108 @@ public final class DaoUtils {
             javax.sql.DataSource dataSource,
             String sql,
             SqlConsumer<PreparedStatement> paramSetter
+    ) {
+        return executeUpdate(dataSource, sql, paramSetter, false);
+    }
+
+    /**
+     * Executes an UPDATE whose new values may have been taken concurrently.
+     * Postgres has no ON CONFLICT for UPDATE, so a statement violating a
+     * unique index (SQLState 23505) is treated as one that matched no rows.
+     *
+     * @param dataSource  the DataSource (from your Hikari pool)
+     * @param sql         the SQL statement
+     * @param paramSetter a lambda for setting parameters on the PreparedStatement
+     * @return the number of rows affected by the statement, 0 if it violated a unique index
+     */
+    public static int executeUpdateUnlessDuplicate(
+            javax.sql.DataSource dataSource,
+            String sql,
+            SqlConsumer<PreparedStatement> paramSetter
+    ) {
+        return executeUpdate(dataSource, sql, paramSetter, true);
+    }
+
+    private static int executeUpdate(
+            javax.sql.DataSource dataSource,
+            String sql,
+            SqlConsumer<PreparedStatement> paramSetter,
+            boolean duplicateAllowed
     ) {
         try (Connection connection = dataSource.getConnection();
              PreparedStatement statement = connection.prepareStatement(sql)) {
 
-            if (paramSetter != null) {
-                paramSetter.accept(statement);
-            }
+            long start = System.nanoTime();
+            try {
+                if (paramSetter != null) {
+                    paramSetter.accept(statement);
+                }
 
-            return statement.executeUpdate();
+                return statement.executeUpdate();
+            } finally {
+                latencyOf(sql).recordMicrosSince(start);
+            }
         } catch (SQLException e) {
+            if (duplicateAllowed && UNIQUE_VIOLATION.equals(e.getSQLState())) {
+                logger.debug("Duplicate key in executeUpdate: {}", sql);
+                return 0;
+            }
             logger.error("Error in executeUpdate: {}", sql, e);
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Executes the statement once for every item as a single JDBC batch in one transaction.
+     *
+     * @param dataSource  the DataSource (from your Hikari pool)
+     * @param sql         the SQL statement
+     * @param items       the items to bind, one batch entry each
+     * @param paramSetter a lambda for setting the parameters of one item on the PreparedStatement
+     * @param <T>         the type of the items
+     * @return the update counts reported by the driver
+     */
+    public static <T> int[] executeBatch(
+            javax.sql.DataSource dataSource,
+            String sql,
+            List<T> items,
+            SqlBiConsumer<PreparedStatement, T> paramSetter
+    ) {
+        try (Connection connection = dataSource.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            long start = System.nanoTime();
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                for (T item : items) {
+                    paramSetter.accept(statement, item);
+                    statement.addBatch();
+                }
+                int[] counts = statement.executeBatch();
+                connection.commit();
+                return counts;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                latencyOf(sql).recordMicrosSince(start);
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            logger.error("Error in executeBatch: {} ({} items)", sql, items.size(), e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The histogram of the statement. Statements are constants, so there are
+     * as many histograms as there are distinct statements in the DAOs.
+     */
+    private static Histogram latencyOf(String sql) {
+        Histogram histogram = statementLatency.get(sql);
+        if (histogram == null) {
+            histogram = statementLatency.computeIfAbsent(sql, key -> MetricsRegistry.getDefault().histogram(
+                    "chat_db_statement_micros", "Time to run a SQL statement in microseconds", "sql", key));
+        }
+        return histogram;
+    }
 }
@@ -0,0 +1,15 @@
+package ru.gordeev.chat.database.utils;
+
+import java.sql.SQLException;
+
+/**
+ * A two-argument variant of SqlConsumer, used to bind one item of a batch
+ * to a PreparedStatement.
+ *
+ * @param <T> the type of the first argument (e.g., PreparedStatement)
+ * @param <U> the type of the second argument
+ */
+@FunctionalInterface
+public interface SqlBiConsumer<T, U> {
+    void accept(T t, U u) throws SQLException;
+}
@@ -0,0 +1,194 @@
+package ru.gordeev.chat.handlers;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ru.gordeev.chat.config.ServerConfig;
+import ru.gordeev.chat.database.UserProfile;
+import ru.gordeev.chat.database.UserService;
+import ru.gordeev.chat.metrics.Histogram;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Runs credential checks and registrations on a dedicated, bounded pool.
+ *
+ * Password hashing is expensive wherever it happens, so after a restart
+ * thousands of reconnecting clients could otherwise saturate the database
+ * (or the transport threads) with bcrypt work. At most a fixed number of
+ * checks run at the same time, a bounded admission queue absorbs bursts,
+ * and requests beyond it are rejected right away so the client can retry.
+ */
+public class AuthenticationService {
+
+    private final Logger logger;
+    private final UserService userService;
+    private final ThreadPoolExecutor executor;
+    private final int queueCapacity;
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder invalidCredentials = new LongAdder();
+    private final Histogram authenticationLatency = new Histogram();
+    private final Histogram registrationLatency = new Histogram();
+
+    /**
+     * @param userService   the service verifying credentials
+     * @param threads       the maximum number of checks running at the same time
+     * @param queueCapacity the number of checks allowed to wait for a free thread
+     */
+    public AuthenticationService(UserService userService, int threads, int queueCapacity) {
+        if (threads <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("Authentication threads and queue capacity must be positive");
+        }
+        this.logger = LogManager.getLogger(AuthenticationService.class);
+        this.userService = userService;
+        this.queueCapacity = queueCapacity;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "auth-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Reads the pool size and the admission queue capacity from the
+     * chat.auth.threads and chat.auth.queueCapacity keys.
+     */
+    public static AuthenticationService fromConfig(ServerConfig config, UserService userService) {
+        return new AuthenticationService(userService,
+                config.getInt("chat.auth.threads", Math.max(2, Runtime.getRuntime().availableProcessors())),
+                config.getInt("chat.auth.queueCapacity", 1000));
+    }
+
+    /**
+     * Checks the credentials on the authentication pool. The returned future
+     * completes on a pool thread with the user's profile, or with null if the
+     * login and password don't match.
+     *
+     * @throws RejectedExecutionException if the admission queue is full
+     */
+    public CompletableFuture<UserProfile> authenticate(String login, String password) {
+        return submit(() -> {
+            UserProfile profile = userService.authenticate(login, password);
+            if (profile == null) {
+                invalidCredentials.increment();
+            }
+            return profile;
+        }, authenticationLatency);
+    }
+
+    /**
+     * Registers the user on the authentication pool. The returned future
+     * completes with false if the login or username is already taken.
+     *
+     * @throws RejectedExecutionException if the admission queue is full
+     */
+    public CompletableFuture<Boolean> register(String login, String password, String username) {
+        return submit(() -> userService.registerUser(login, password, username), registrationLatency);
+    }
+
+    /**
+     * @param latency records the time from the submission to the result, the wait for a thread included
+     */
+    private <T> CompletableFuture<T> submit(Supplier<T> task, Histogram latency) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        long submittedAt = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                try {
+                    T result = task.get();
+                    latency.recordMicrosSince(submittedAt);
+                    future.complete(result);
+                    completed.increment();
+                } catch (RuntimeException e) {
+                    latency.recordMicrosSince(submittedAt);
+                    failed.increment();
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+        accepted.increment();
+        return future;
+    }
+
+    /**
+     * Number of requests waiting for a free authentication thread.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Number of credential checks running right now.
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * Number of logins refused because the login and password didn't match.
+     */
+    public long getInvalidCredentials() {
+        return invalidCredentials.sum();
+    }
+
+    /**
+     * Time to check credentials in microseconds, the wait in the admission queue included.
+     */
+    public Histogram getAuthenticationLatency() {
+        return authenticationLatency;
+    }
+
+    public Histogram getRegistrationLatency() {
+        return registrationLatency;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        logger.info("Authentication pool stopped: {}", this);
+    }
+
+    @Override
+    public String toString() {
+        return "AuthenticationService{queued=" + getQueueDepth() + "/" + queueCapacity +
+                ", active=" + getActiveCount() +
+                ", accepted=" + getAccepted() +
+                ", rejected=" + getRejected() +
+                ", completed=" + getCompleted() +
+                ", failed=" + getFailed() +
+                ", invalidCredentials=" + getInvalidCredentials() + '}';
+    }
+}
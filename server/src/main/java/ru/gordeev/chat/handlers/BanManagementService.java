@@ -2,38 +2,191 @@ package ru.gordeev.chat.handlers;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import ru.gordeev.chat.database.DataBaseConnection;
+import ru.gordeev.chat.config.ServerConfig;
+import ru.gordeev.chat.database.UserProfile;
+import ru.gordeev.chat.database.UserService;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.SQLException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Keeps the bans of all users in memory, so the login check never goes to
+ * the database.
+ *
+ * The index is loaded from the database at startup and then kept current
+ * by the bans and unbans of this and the other nodes. Every temporary ban
+ * is queued in the delay queue of a scheduled executor and lifted at the
+ * moment it expires. Lifted bans are written to the database lazily, in
+ * one batch every few seconds; until then the row still says banned, but
+ * its expiry has passed, so it is read as not banned anyway.
+ */
 public class BanManagementService {
 
+    private static final long PERMANENT = Long.MAX_VALUE;
+
     private final Logger logger;
-    private final ScheduledExecutorService scheduler;
-    private static final String UPDATE_USERS = "UPDATE users SET is_banned = FALSE, ban_expiration = NULL WHERE ban_expiration <= NOW() AND is_banned = TRUE";
+    private final UserService userService;
+    private final long flushMillis;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final ConcurrentHashMap<String, Ban> bans = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<String> expiredBans = new ConcurrentLinkedQueue<>();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder written = new LongAdder();
 
-    public BanManagementService() {
+    /**
+     * @param flushMillis how often expired bans are written to the database
+     */
+    public BanManagementService(UserService userService, long flushMillis) {
         this.logger = LogManager.getLogger(BanManagementService.class);
-        scheduler = Executors.newSingleThreadScheduledExecutor();
+        this.userService = userService;
+        this.flushMillis = flushMillis;
+        this.scheduler = new ScheduledThreadPoolExecutor(1);
+        // Unbans and repeated bans cancel their expiry, don't keep it queued
+        this.scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Reads the flush interval from the chat.bans.flushSeconds key (5 seconds
+     * by default).
+     */
+    public static BanManagementService fromConfig(ServerConfig config, UserService userService) {
+        return new BanManagementService(userService,
+                TimeUnit.SECONDS.toMillis(config.getInt("chat.bans.flushSeconds", 5)));
     }
 
-    public void startBanCheck() {
-        Runnable checkBans = () -> {
-            try (Connection connection = DataBaseConnection.getDataSource().getConnection();
-                 PreparedStatement statement = connection.prepareStatement(UPDATE_USERS)) {
-                if (statement.executeUpdate() > 0) {
-                    logger.info("Ban statuses for expired bans has been updated");
+    /**
+     * Loads the bans stored in the database and starts writing the expired
+     * ones back. Bans that expired while the server was down are lifted
+     * with the first batch.
+     */
+    public void start() {
+        try {
+            long now = System.currentTimeMillis();
+            int loaded = 0;
+            for (UserProfile profile : userService.getBannedUsers()) {
+                long expiresAt = profile.getBanExpiration() == null ? PERMANENT :
+                        profile.getBanExpiration().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                if (expiresAt > now) {
+                    put(profile.getUsername(), expiresAt);
+                    loaded++;
+                } else {
+                    expiredBans.add(profile.getUsername());
                 }
-            } catch (SQLException e) {
-                logger.error("Error while starting ban check service", e);
             }
-        };
+            logger.info("Loaded {} bans, {} expired while the server was down", loaded, expiredBans.size());
+        } catch (RuntimeException e) {
+            logger.error("Error while loading bans", e);
+        }
+        scheduler.scheduleWithFixedDelay(this::writeExpiredBans, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes the expired bans left and stops the expiry thread.
+     */
+    public void stop() {
+        scheduler.shutdownNow();
+        writeExpiredBans();
+    }
+
+    /**
+     * Records a ban already stored in the database.
+     *
+     * @param durationMinutes the duration of the ban, or null for a permanent ban
+     */
+    public void ban(String username, Integer durationMinutes) {
+        put(username, durationMinutes == null ? PERMANENT :
+                System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(durationMinutes));
+    }
+
+    /**
+     * Forgets a ban already lifted in the database.
+     */
+    public void unban(String username) {
+        Ban ban = bans.remove(username);
+        if (ban != null) {
+            ban.cancel();
+        }
+    }
+
+    public boolean isBanned(String username) {
+        Ban ban = bans.get(username);
+        // The expiry may run a little late, the deadline is exact
+        return ban != null && ban.expiresAt > System.currentTimeMillis();
+    }
+
+    public int getBanCount() {
+        return bans.size();
+    }
+
+    private void put(String username, long expiresAt) {
+        Ban ban = new Ban(expiresAt);
+        Ban previous = bans.put(username, ban);
+        if (previous != null) {
+            previous.cancel();
+        }
+        if (expiresAt != PERMANENT) {
+            try {
+                ban.expiry = scheduler.schedule(() -> expire(username, ban),
+                        expiresAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Stopped: the database keeps the expiry for the next start
+            }
+        }
+    }
 
-        scheduler.scheduleWithFixedDelay(checkBans, 0, 1, TimeUnit.MINUTES);
+    private void expire(String username, Ban ban) {
+        // A ban replaced in the meantime has its own expiry
+        if (bans.remove(username, ban)) {
+            expired.increment();
+            expiredBans.add(username);
+            logger.info("The ban of {} has expired", username);
+        }
+    }
+
+    private void writeExpiredBans() {
+        List<String> usernames = new ArrayList<>();
+        String username;
+        while ((username = expiredBans.poll()) != null) {
+            usernames.add(username);
+        }
+        if (usernames.isEmpty()) {
+            return;
+        }
+        try {
+            written.add(userService.liftExpiredBans(usernames));
+        } catch (RuntimeException e) {
+            logger.error("Error while lifting {} expired bans, retrying with the next batch", usernames.size(), e);
+            expiredBans.addAll(usernames);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Bans{active=" + bans.size() + ", expired=" + expired.sum() + ", written=" + written.sum() +
+                ", pending=" + expiredBans.size() + '}';
+    }
+
+    private static final class Ban {
+        private final long expiresAt;
+        private volatile ScheduledFuture<?> expiry;
+
+        private Ban(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+
+        private void cancel() {
+            ScheduledFuture<?> future = expiry;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
     }
-}
\ No newline at end of file
+}
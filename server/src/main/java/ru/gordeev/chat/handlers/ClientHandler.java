@@ -3,15 +3,22 @@ package ru.gordeev.chat.handlers;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import ru.gordeev.chat.Server;
-import ru.gordeev.chat.helpers.UserNotFoundException;
-
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.EOFException;
-import java.io.IOException;
-import java.net.Socket;
+import ru.gordeev.chat.database.UserProfile;
+import ru.gordeev.chat.helpers.TimestampCache;
+import ru.gordeev.chat.metrics.Counter;
+import ru.gordeev.chat.network.BinaryFrameType;
+import ru.gordeev.chat.network.ClientConnection;
+import ru.gordeev.chat.network.ConnectionListener;
+import ru.gordeev.chat.network.ControlSignal;
+import ru.gordeev.chat.network.Frame;
+import ru.gordeev.chat.network.InboundFrame;
+
+import java.io.UTFDataFormatException;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.time.ZoneId;
+import java.util.Locale;
+import java.util.concurrent.RejectedExecutionException;
 
 import static ru.gordeev.chat.helpers.ServerMessages.*;
 
@@ -19,18 +26,49 @@ import static ru.gordeev.chat.helpers.ServerMessages.*;
  * Manages interaction with a single connected client.
  * Handles commands, message input, and user authentication.
  * Uses the associated Server instance for high-level actions.
+ * Messages arrive from the transport through the ConnectionListener
+ * callbacks, one at a time. Credentials are checked asynchronously on the
+ * server's AuthenticationService; until the check completes, further
+ * messages of the client are answered with a request to wait.
+ * A client can be in several rooms at once; plain messages go to its active
+ * room, the one it joined last.
+ * Clients speaking the binary protocol send typed frames: chat and private
+ * messages are handled without parsing the text, other commands go through
+ * the same path as legacy messages.
+ * Commands are dispatched by name through a CommandRegistry, which checks
+ * the role of the user and the number of arguments before running them.
+ * Chat messages, private messages and login attempts are charged to the
+ * client's RateLimiter quota before they are handled.
+ * The IdleMonitor disconnects the client when it stays silent for too long.
+ * Legacy clients turn heartbeats on by sending "/heartbeat" and answer each
+ * "/ping" with "/pong"; binary clients ask for them in the handshake.
  */
-public class ClientHandler {
+public class ClientHandler implements ConnectionListener {
+
+    private static final int DEFAULT_HISTORY_SIZE = 20;
+    private static final int MAX_HISTORY_SIZE = 100;
+    private static final String HEARTBEAT_OPT_IN = "/heartbeat";
+    private static final String HEARTBEAT_REPLY = "/pong";
+    private static final CommandRegistry LOGIN_COMMANDS = createLoginCommands();
+    private static final CommandRegistry CHAT_COMMANDS = createChatCommands();
 
     private final Logger logger;
     private final Server server;
-    private final Socket socket;
-    private final DataInputStream in;
-    private final DataOutputStream out;
+    private final ClientConnection connection;
     private volatile long lastActivityTime;
+    private volatile long lastReadTime;
+    private volatile boolean heartbeatRequested;
+    private volatile TimingWheel<ClientHandler>.Timeout idleTimeout;
+    private volatile boolean authenticated;
+    private volatile boolean authenticationPending;
+    private volatile boolean disconnected;
     private String login;
-    private String username;
+    private volatile String username;
     private UserRole userRole;
+    private volatile Room activeRoom;
+    private final RateLimiter.Quota quota;
+    private final Counter messagesReceived;
+    private int rateLimitedInARow;
 
     public String getUsername() {
         return username;
@@ -50,104 +88,391 @@ public class ClientHandler {
 
     public long getLastActivityTime() { return lastActivityTime; }
 
-    public ClientHandler(Server server, Socket socket) throws IOException {
+    /**
+     * @return the time anything, heartbeats included, was last received from the client
+     */
+    public long getLastReadTime() {
+        return lastReadTime;
+    }
+
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    boolean isDisconnected() {
+        return disconnected;
+    }
+
+    boolean isHeartbeatEnabled() {
+        return heartbeatRequested || connection.isHeartbeatEnabled();
+    }
+
+    String getRemoteAddress() {
+        return connection.getRemoteAddress();
+    }
+
+    /**
+     * @return the number of frames waiting to be written to the client
+     */
+    public int getQueuedFrames() {
+        return connection.getQueuedFrames();
+    }
+
+    /**
+     * @return true once the connection is closed, after disconnect() when the queued frames have been written
+     */
+    public boolean isConnectionClosed() {
+        return connection.isClosed();
+    }
+
+    /**
+     * Closes the connection without writing the frames still queued.
+     */
+    public void abortConnection() {
+        connection.abort();
+    }
+
+    void setIdleTimeout(TimingWheel<ClientHandler>.Timeout timeout) {
+        idleTimeout = timeout;
+    }
+
+    void cancelIdleTimeout() {
+        TimingWheel<ClientHandler>.Timeout timeout = idleTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * @return the room plain messages of the client are sent to
+     */
+    public Room getActiveRoom() {
+        Room room = activeRoom;
+        return room != null ? room : server.getRooms().getDefaultRoom();
+    }
+
+    public ClientHandler(Server server, ClientConnection connection) {
         this.logger = LogManager.getLogger(ClientHandler.class);
         this.server = server;
-        this.socket = socket;
-        this.in = new DataInputStream(socket.getInputStream());
-        this.out = new DataOutputStream(socket.getOutputStream());
+        this.connection = connection;
+        this.lastActivityTime = System.currentTimeMillis();
+        this.lastReadTime = lastActivityTime;
+        this.quota = server.getRateLimiter().newQuota(connection.getRemoteHost());
+        this.messagesReceived = server.getMessagesReceived();
+    }
 
-        Thread clientThread = new Thread(() -> {
-            try {
-                sendMessage("Server: please login or register");
-                authentication();
-                processClientsChatMessages();
-            } catch (EOFException e) {
-                logger.info("Client {} disconnected (EOF)", username);
-            } catch (IOException e) {
-                logger.error("Error while reading from client {}", username, e);
-            } finally {
-                disconnect();
+    @Override
+    public void onConnected() {
+        server.getIdleMonitor().register(this);
+        sendMessage("Server: please login or register");
+    }
+
+    @Override
+    public boolean onMessage(String message) {
+        lastReadTime = System.currentTimeMillis();
+        messagesReceived.increment();
+        return handleMessage(message);
+    }
+
+    private boolean handleMessage(String message) {
+        if (!message.isEmpty() && message.charAt(0) == '/' && handleHeartbeat(message)) {
+            return true;
+        }
+        if (!authenticated) {
+            if (authenticationPending) {
+                sendMessage("Server: please wait, your credentials are being checked");
+            } else {
+                authentication(message);
             }
-        });
+            return true;
+        }
+        return processClientsChatMessages(message);
+    }
 
-        clientThread.start();
+    /**
+     * Heartbeat messages only show that the client is alive; they don't count
+     * as activity of the user.
+     *
+     * @return true if the message was a heartbeat message
+     */
+    private boolean handleHeartbeat(String message) {
+        if (message.equals(HEARTBEAT_REPLY)) {
+            return true;
+        }
+        if (message.equals(HEARTBEAT_OPT_IN)) {
+            if (!heartbeatRequested) {
+                heartbeatRequested = true;
+                server.getIdleMonitor().recheck(this);
+            }
+            return true;
+        }
+        return false;
     }
 
-    private void processClientsChatMessages() throws IOException {
-        while (true) {
-            String message = in.readUTF();
-            lastActivityTime = System.currentTimeMillis();
+    @Override
+    public void onHeartbeatEnabled() {
+        server.getIdleMonitor().recheck(this);
+    }
 
-            if (message.startsWith("/")) {
-                if (message.equals("/exit")) {
-                    break;
-                }
-                if (message.startsWith("/w ")) {
-                    sendPrivateMessage(message);
-                    continue;
-                }
-                if (message.startsWith("/kick ")) {
-                    executeKickCommand(message);
-                    continue;
-                }
-                if (message.startsWith("/changenick ")) {
-                    executeChangeUsernameCommand(message);
-                    continue;
-                }
-                if (message.startsWith("/activelist") && message.equals("/activelist")) {
-                    server.printActiveUsersList(this);
-                    continue;
-                }
-                if (message.startsWith("/ban")) {
-                    executeBanCommand(message);
-                    continue;
-                }
-                if (message.startsWith("/unban")) {
-                    executeUnbanCommand(message);
-                    continue;
+    @Override
+    public boolean onFrame(InboundFrame frame) {
+        lastReadTime = System.currentTimeMillis();
+        messagesReceived.increment();
+        switch (frame.getType()) {
+            case PONG:
+                return true;
+            case AUTH:
+            case REGISTER:
+                if (authenticated) {
+                    sendMessage("Server: you are already logged in");
+                } else if (authenticationPending) {
+                    sendMessage("Server: please wait, your credentials are being checked");
+                } else if (frame.getType() == BinaryFrameType.AUTH) {
+                    authenticate(frame.getField(0), frame.getField(1));
+                } else {
+                    register(frame.getField(0), frame.getField(1), frame.getField(2));
                 }
-                if (message.startsWith("/shutdown")) {
-                    executeShutdownCommand(message);
-                    break;
+                return true;
+            case CHAT:
+                if (checkAuthenticated()) {
+                    lastActivityTime = System.currentTimeMillis();
+                    if (checkRateLimit(RateLimiter.Kind.CHAT)) {
+                        server.broadcastChatMessage(this, frame.getField(0));
+                    }
                 }
-                if (message.startsWith("/help") && message.equals("/help")) {
-                    server.printServerCommandsListList(username);
-                    continue;
+                return true;
+            case PRIVATE:
+                if (checkAuthenticated()) {
+                    lastActivityTime = System.currentTimeMillis();
+                    if (checkRateLimit(RateLimiter.Kind.PRIVATE)) {
+                        server.sendPrivateMessage(this, frame.getField(0), frame.getField(1));
+                    }
                 }
+                return true;
+            default:
+                return handleMessage(frame.getField(0));
+        }
+    }
+
+    private boolean checkAuthenticated() {
+        if (authenticated) {
+            return true;
+        }
+        if (authenticationPending) {
+            sendMessage("Server: please wait, your credentials are being checked");
+        } else {
+            sendMessage("Server: please login or register using\n%s".formatted(NEW_USER_HELP));
+        }
+        return false;
+    }
+
+    @Override
+    public void onDisconnected() {
+        server.connectionClosed(this);
+        if (username != null) {
+            logger.info("Client {} disconnected", username);
+        }
+        disconnect();
+    }
+
+    /**
+     * Handles a single chat message or command of an authenticated user.
+     * Plain messages are broadcast as they are, without being parsed.
+     *
+     * @return false if the client has to be disconnected
+     */
+    private boolean processClientsChatMessages(String message) {
+        lastActivityTime = System.currentTimeMillis();
+
+        if (message.isEmpty() || message.charAt(0) != '/') {
+            if (checkRateLimit(RateLimiter.Kind.CHAT)) {
+                server.broadcastChatMessage(this, message);
             }
-            server.broadcastMessage(username + ": " + message);
+            return true;
         }
+        // Other commands share the budget of chat messages
+        if (!checkRateLimit(message.startsWith("/w ") ? RateLimiter.Kind.PRIVATE : RateLimiter.Kind.CHAT)) {
+            return true;
+        }
+        return CHAT_COMMANDS.dispatch(this, message);
     }
 
-    private void executeShutdownCommand(String message) {
-        if (!"/shutdown".equals(message.trim())) {
-            sendMessage(getIncorrectCommandFormatMessage("/shutdown"));
-            return;
+    /**
+     * Charges a message to the rate limits of the client and, if they are
+     * exceeded, responds as configured.
+     *
+     * @return true if the message may be handled
+     */
+    private boolean checkRateLimit(RateLimiter.Kind kind) {
+        if (quota.tryAcquire(kind)) {
+            rateLimitedInARow = 0;
+            return true;
+        }
+        RateLimiter rateLimiter = server.getRateLimiter();
+        RateLimitSettings settings = rateLimiter.getSettings();
+        rateLimitedInARow++;
+        if (settings.getAction() == RateLimitAction.DROP) {
+            return false;
+        }
+        if (rateLimitedInARow == 1) {
+            rateLimiter.warned();
+            sendMessage(kind == RateLimiter.Kind.AUTH ? TOO_MANY_LOGIN_ATTEMPTS : SENDING_TOO_FAST);
+        }
+        if (settings.getAction() == RateLimitAction.TEMP_BAN && rateLimitedInARow == settings.getBanAfter()) {
+            if (authenticated) {
+                logger.warn("Client {} exceeded its rate limit, banning it for {} minutes", username,
+                        settings.getBanMinutes());
+                rateLimiter.banned();
+                server.banUser(username, settings.getBanMinutes());
+            } else {
+                logger.warn("Client {} exceeded its login attempts limit, disconnecting", connection.getRemoteAddress());
+                rateLimiter.disconnected();
+                disconnect();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the commands of logged in users, with their statistics
+     */
+    public static CommandRegistry getChatCommands() {
+        return CHAT_COMMANDS;
+    }
+
+    UserRole getUserRole() {
+        return userRole;
+    }
+
+    private static CommandRegistry createLoginCommands() {
+        return new CommandRegistry((client, line) -> client.sendMessage(
+                        "Server: please login or register using\n%s".formatted(NEW_USER_HELP)))
+                .register(Command.of("auth", 2, 2, null, (client, args) -> {
+                    client.authenticate(args[0], args[1]);
+                    return true;
+                }))
+                .register(Command.of("register", 3, 3, null, (client, args) -> {
+                    client.register(args[0], args[1], args[2]);
+                    return true;
+                }));
+    }
+
+    private static CommandRegistry createChatCommands() {
+        return new CommandRegistry()
+                .register(Command.of("exit", 0, 0, null, (client, args) -> false))
+                .register(Command.withText("w", 2, null, (client, args) -> {
+                    client.server.sendPrivateMessage(client, args[0], args[1]);
+                    return true;
+                }))
+                .register(Command.of("kick", 1, 1, UserRole.ADMIN, (client, args) -> {
+                    client.executeKickCommand(args[0]);
+                    return true;
+                }))
+                .register(Command.of("changenick", 2, 2, UserRole.ADMIN, (client, args) -> {
+                    client.executeChangeUsernameCommand(args[0], args[1]);
+                    return true;
+                }))
+                .register(Command.of("activelist", 0, 0, null, (client, args) -> {
+                    client.server.printActiveUsersList(client);
+                    return true;
+                }))
+                .register(Command.of("ban", 1, 2, UserRole.ADMIN, (client, args) -> {
+                    client.executeBanCommand(args[0], args.length == 2 ? args[1] : null);
+                    return true;
+                }))
+                .register(Command.of("unban", 1, 1, UserRole.ADMIN, (client, args) -> {
+                    client.executeUnbanCommand(args[0]);
+                    return true;
+                }))
+                .register(Command.of("shutdown", 0, 0, UserRole.ADMIN, (client, args) -> {
+                    client.server.broadcastMessage("Server: is shutting down...");
+                    // Not on this connection's thread: the shutdown waits for the connections to drain
+                    new Thread(client.server::shutdown, "shutdown").start();
+                    return false;
+                }))
+                .register(Command.of("join", 1, 1, null, (client, args) -> {
+                    client.executeJoinCommand(args[0]);
+                    return true;
+                }))
+                .register(Command.of("leave", 0, 1, null, (client, args) -> {
+                    client.executeLeaveCommand(args.length == 1 ? args[0] : null);
+                    return true;
+                }))
+                .register(Command.of("rooms", 0, 0, null, (client, args) -> {
+                    client.server.printRoomsList(client);
+                    return true;
+                }))
+                .register(Command.of("history", 0, 1, null, (client, args) -> {
+                    client.executeHistoryCommand(args.length == 1 ? args[0] : null);
+                    return true;
+                }))
+                .register(Command.of("help", 0, 0, null, (client, args) -> {
+                    client.server.printServerCommandsListList(client.username);
+                    return true;
+                }))
+                .register(Command.withText("auth", 1, null, ClientHandler::alreadyLoggedIn))
+                .register(Command.withText("register", 1, null, ClientHandler::alreadyLoggedIn));
+    }
+
+    private static boolean alreadyLoggedIn(ClientHandler client, String[] args) {
+        client.sendMessage("Server: you are already logged in");
+        return true;
+    }
+
+    /**
+     * @param argument the number of messages, or null for the default
+     */
+    private void executeHistoryCommand(String argument) {
+        int count = DEFAULT_HISTORY_SIZE;
+        if (argument != null) {
+            try {
+                count = Integer.parseInt(argument);
+            } catch (NumberFormatException e) {
+                count = 0;
+            }
+            if (count <= 0 || count > MAX_HISTORY_SIZE) {
+                sendMessage("Server: please specify a number of messages from 1 to " + MAX_HISTORY_SIZE);
+                return;
+            }
         }
+        server.sendHistory(this, count);
+    }
 
-        if (userRole == UserRole.ADMIN) {
-            server.broadcastMessage("Server: is shutting down...");
-            server.shutdown();
-        } else {
-            sendMessage(YOU_DONT_HAVE_RIGHTS);
+    private void executeJoinCommand(String argument) {
+        String roomName = argument.toLowerCase(Locale.ROOT);
+        if (!RoomRegistry.isValidName(roomName)) {
+            sendMessage(INCORRECT_ROOM_NAME);
+            return;
         }
+        activeRoom = server.joinRoom(this, roomName);
+        sendMessage("Server: you are now chatting in #" + roomName);
     }
 
-    private void executeKickCommand(String message) {
-        String[] splitMessage = message.trim().split(" ", 2);
-        if (splitMessage.length != 2 || splitMessage[1].isEmpty()) {
-            sendMessage(getIncorrectCommandFormatMessage("/kick"));
+    /**
+     * @param argument the room to leave, or null for the active one
+     */
+    private void executeLeaveCommand(String argument) {
+        Room current = getActiveRoom();
+        String roomName = argument != null ? argument.toLowerCase(Locale.ROOT) : current.getName();
+        if (RoomRegistry.DEFAULT_ROOM.equals(roomName)) {
+            sendMessage("Server: you cannot leave #" + RoomRegistry.DEFAULT_ROOM);
             return;
         }
-        String userToBeKicked = splitMessage[1];
-        if (username.equals(userToBeKicked)) {
-            sendMessage("Server: you cannot kick yourself");
+        if (!server.leaveRoom(this, roomName)) {
+            sendMessage("Server: you are not in #" + roomName);
             return;
         }
+        if (roomName.equals(current.getName())) {
+            activeRoom = null;
+            sendMessage("Server: you left #" + roomName + ", you are now chatting in #" + RoomRegistry.DEFAULT_ROOM);
+        } else {
+            sendMessage("Server: you left #" + roomName);
+        }
+    }
 
-        if (userRole != UserRole.ADMIN) {
-            sendMessage(YOU_DONT_HAVE_RIGHTS);
+    private void executeKickCommand(String userToBeKicked) {
+        if (username.equals(userToBeKicked)) {
+            sendMessage("Server: you cannot kick yourself");
             return;
         }
 
@@ -158,30 +483,20 @@ public class ClientHandler {
         }
     }
 
-    private void executeBanCommand(String message) {
-        String[] splitMessage = message.trim().split(" ", 3);
-        if (splitMessage.length < 2 || splitMessage[1].isEmpty()) {
-            sendMessage(getIncorrectCommandFormatMessage("/ban"));
-            return;
-        }
-
-        String username = splitMessage[1];
+    /**
+     * @param duration the ban duration in minutes, or null for a permanent ban
+     */
+    private void executeBanCommand(String username, String duration) {
         Integer banDuration = null;
-
-        if (splitMessage.length == 3 && !splitMessage[2].isEmpty()) {
+        if (duration != null) {
             try {
-                banDuration = Integer.parseInt(splitMessage[2]);
+                banDuration = Integer.parseInt(duration);
             } catch (NumberFormatException e) {
                 sendMessage("Server: incorrect ban duration. Please specify the number of minutes");
                 return;
             }
         }
 
-        if (userRole != UserRole.ADMIN) {
-            sendMessage(YOU_DONT_HAVE_RIGHTS);
-            return;
-        }
-
         boolean banResult;
         if (banDuration == null) {
             banResult = server.banUser(username);
@@ -195,19 +510,7 @@ public class ClientHandler {
         }
     }
 
-    private void executeUnbanCommand(String message) {
-        String[] splitMessage = message.trim().split(" ", 2);
-        if (splitMessage.length != 2 || splitMessage[1].isEmpty()) {
-            sendMessage(getIncorrectCommandFormatMessage("/unban"));
-            return;
-        }
-
-        String usernameToUnban = splitMessage[1];
-        if (userRole != UserRole.ADMIN) {
-            sendMessage(YOU_DONT_HAVE_RIGHTS);
-            return;
-        }
-
+    private void executeUnbanCommand(String usernameToUnban) {
         if (server.unbanUser(usernameToUnban)) {
             sendMessage("Server: user " + usernameToUnban + " has been unbanned successfully");
         } else {
@@ -215,20 +518,7 @@ public class ClientHandler {
         }
     }
 
-    private void executeChangeUsernameCommand(String message) {
-        String[] splitMessage = message.trim().split(" ", 4);
-        if (splitMessage.length != 3 || splitMessage[1].isEmpty() || splitMessage[2].isEmpty()) {
-            sendMessage(getIncorrectCommandFormatMessage("/changenick"));
-            return;
-        }
-
-        String oldUsername = splitMessage[1];
-        String newUsername = splitMessage[2];
-        if (userRole != UserRole.ADMIN) {
-            sendMessage(YOU_DONT_HAVE_RIGHTS);
-            return;
-        }
-
+    private void executeChangeUsernameCommand(String oldUsername, String newUsername) {
         if (server.changeUsername(oldUsername, newUsername)) {
             sendMessage("Server: successful name change");
         } else {
@@ -236,126 +526,275 @@ public class ClientHandler {
         }
     }
 
-    private void sendPrivateMessage(String message) {
-        String[] splitMessage = message.split(" ", 3);
-        if (splitMessage.length != 3) {
-            sendMessage(getIncorrectCommandFormatMessage("/w"));
+    /**
+     * Handles a message of a client that has not logged in yet. Credential
+     * checks are submitted to the AuthenticationService and completed on its
+     * threads.
+     */
+    private void authentication(String message) {
+        if (message.isEmpty() || message.charAt(0) != '/') {
+            sendMessage("Server: please login or register using\n%s".formatted(NEW_USER_HELP));
             return;
         }
-        server.sendPrivateMessage(this, splitMessage[1], splitMessage[2]);
+        LOGIN_COMMANDS.dispatch(this, message);
     }
 
-    private void authentication() throws IOException {
-        while (true) {
-            String message = in.readUTF();
-            boolean isSucceed = false;
+    private void authenticate(String login, String password) {
+        if (!checkRateLimit(RateLimiter.Kind.AUTH)) {
+            return;
+        }
+        authenticationPending = true;
+        try {
+            server.getAuthenticationService().authenticate(login, password)
+                    .whenComplete(this::completeAuthentication);
+        } catch (RejectedExecutionException e) {
+            authenticationPending = false;
+            sendMessage(SERVER_IS_BUSY);
+        }
+    }
 
-            if (message.startsWith("/auth")) {
-                isSucceed = tryToAuthenticate(message);
-            } else if (message.startsWith("/register")) {
-                isSucceed = tryToRegister(message);
-            } else {
-                sendMessage("Server: please login or register using\n%s".formatted(NEW_USER_HELP));
+    private void completeAuthentication(UserProfile profile, Throwable error) {
+        try {
+            if (error != null) {
+                logger.error("Error while authenticating client {}", connection.getRemoteAddress(), error);
+                sendMessage("Server: authentication failed, please try again later");
+                return;
             }
-
-            if (isSucceed) {
-                break;
+            if (profile == null) {
+                sendMessage("Server: user doesn't exist with such login and password");
+                return;
             }
+            if (server.isUserBusy(profile.getUsername())) {
+                sendMessage("Server: user is already logged in");
+                return;
+            }
+            // The row covers the bans the index missed: a failed load or a lost cluster event
+            if (profile.isBanned() || server.isBanned(profile.getUsername())) {
+                sendMessage("Server: user is currently banned");
+                return;
+            }
+            this.username = profile.getUsername();
+            this.login = profile.getLogin();
+            this.userRole = profile.getRole();
+            quota.bindUser(username);
+            authenticated = true;
+            sendMessage(String.format(
+                    "\nServer: welcome to the chat, %s!\n" +
+                            "Server: you can find out the list of server commands by calling '/help'", username));
+            subscribe();
+        } finally {
+            authenticationPending = false;
         }
     }
 
-    private boolean tryToAuthenticate(String message) {
-        String[] elements = message.split(" ");
-        if (elements.length != 3) {
-            sendMessage(getIncorrectCommandFormatMessage("/auth"));
-            return false;
-        }
-        String usernameFromService = server.getUserService().getUsernameByLoginAndPassword(elements[1], elements[2]);
-        if (usernameFromService == null) {
-            sendMessage("Server: user doesn't exist with such login and password");
-            return false;
-        }
-        if (server.isUserBusy(usernameFromService)) {
-            sendMessage("Server: user is already logged in");
-            return false;
+    private void register(String login, String password, String usernameFromRegister) {
+        if (!checkRateLimit(RateLimiter.Kind.AUTH)) {
+            return;
         }
+        authenticationPending = true;
         try {
-            if (server.isBanned(usernameFromService)) {
-                sendMessage("Server: user is currently banned");
-                return false;
-            }
-        } catch (UserNotFoundException e) {
-            logger.error("Error when searching for a user by the ban service", e);
-            sendMessage("Server: it's impossible to identify the user's status");
-            return false;
+            server.getAuthenticationService().register(login, password, usernameFromRegister)
+                    .whenComplete((registered, error) -> completeRegistration(login, usernameFromRegister, registered, error));
+        } catch (RejectedExecutionException e) {
+            authenticationPending = false;
+            sendMessage(SERVER_IS_BUSY);
         }
-        this.username = usernameFromService;
-        this.login = server.getUserService().getUserLogin(username);
-        this.userRole = server.getUserService().getUserRole(username);
-        sendMessage(String.format(
-                "\nServer: welcome to the chat, %s!\n" +
-                        "Server: you can find out the list of server commands by calling '/help'", username));
-        server.subscribe(this);
-        return true;
     }
 
-    private boolean tryToRegister(String message) {
-        String[] elements = message.split(" ");
-        if (elements.length != 4) {
-            sendMessage(getIncorrectCommandFormatMessage("/register"));
-            return false;
-        }
-        String login = elements[1];
-        String password = elements[2];
-        String usernameFromRegister = elements[3];
-        if (server.getUserService().registerUser(login, password, usernameFromRegister)) {
+    private void completeRegistration(String login, String usernameFromRegister, Boolean registered, Throwable error) {
+        try {
+            if (error != null) {
+                logger.error("Error while registering client {}", connection.getRemoteAddress(), error);
+                sendMessage("Server: registration failed, please try again later");
+                return;
+            }
+            if (!registered) {
+                sendMessage("Server: login or username is already taken");
+                return;
+            }
             this.username = usernameFromRegister;
             this.login = login;
+            quota.bindUser(username);
+            authenticated = true;
             sendMessage("Server: registration was successful");
-            server.subscribe(this);
-            return true;
-        } else {
-            sendMessage("Server: login or username is already taken");
-            return false;
+            subscribe();
+        } finally {
+            authenticationPending = false;
         }
     }
 
+    /**
+     * Joins the chat once the credentials have been accepted. The client is
+     * marked as authenticated before the welcome message has been sent, so
+     * it can start chatting as soon as it reads it. If the client went away
+     * while the credentials were being checked, the session is removed again.
+     */
+    private void subscribe() {
+        if (!server.subscribe(this)) {
+            authenticated = false;
+            sendMessage("Server: user is already logged in");
+            return;
+        }
+        if (disconnected) {
+            server.unsubscribe(this);
+            return;
+        }
+        // The idle timeout of the role replaces the login timeout
+        server.getIdleMonitor().recheck(this);
+    }
+
     public void sendMessage(String message) {
-        LocalDateTime now = LocalDateTime.now();
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-        String formattedDateTime = now.format(formatter);
+        Frame frame = encodeMessage(message);
+        if (frame != null) {
+            sendFrame(frame);
+        }
+    }
+
+    /**
+     * Sends a frame prepared with one of the encode methods. Used to
+     * deliver one encoded message to many clients.
+     */
+    public void sendFrame(Frame frame) {
+        connection.send(frame);
+    }
 
+    /**
+     * Tells the client that its session ends and why. The caller closes the
+     * connection.
+     *
+     * @param argument details of the signal, e.g. the ban duration, or an empty string
+     */
+    public void sendControl(ControlSignal signal, String argument) {
+        Frame frame = encodeControl(signal, argument);
+        if (frame != null) {
+            sendFrame(frame);
+        }
+    }
+
+    /**
+     * Encodes a control signal into a frame that can be sent to any number of clients.
+     *
+     * @return the frame, or null if the argument is too long to be sent
+     */
+    public static Frame encodeControl(ControlSignal signal, String argument) {
         try {
-            out.writeUTF("[" + formattedDateTime + "] " + message);
-        } catch (IOException e) {
-            logger.error("Error while sending message", e);
+            return Frame.control(TimestampCache.shared().prefix(), signal, argument);
+        } catch (UTFDataFormatException e) {
+            LogManager.getLogger(ClientHandler.class).error("Error while encoding control signal {}", signal, e);
+            return null;
         }
     }
 
-    public void disconnect() {
-        server.unsubscribe(this);
+    /**
+     * Prefixes the message with the current time and encodes it into a frame
+     * that can be sent to any number of clients. The frame array is the only
+     * allocation: the timestamp prefix is cached per second and the message
+     * is encoded straight into the frame.
+     *
+     * @return the frame, or null if the message is too long to be sent
+     */
+    public static Frame encodeMessage(String message) {
         try {
-            if (in != null) {
-                in.close();
-            }
-        } catch (IOException e) {
-            logger.error(e);
+            TimestampCache.Stamp stamp = TimestampCache.shared().stamp();
+            return Frame.system(stamp.getPrefix(), stamp.getEpochSecond(), message);
+        } catch (UTFDataFormatException e) {
+            LogManager.getLogger(ClientHandler.class).error("Error while sending message", e);
+            return null;
         }
+    }
 
+    /**
+     * Encodes a message with the time it was originally sent, e.g. a message
+     * loaded from the history.
+     *
+     * @return the frame, or null if the message is too long to be sent
+     */
+    public static Frame encodeMessage(LocalDateTime sentAt, String message) {
         try {
-            if (out != null) {
-                out.close();
-            }
-        } catch (IOException e) {
-            logger.error(e);
+            return Frame.system(prefixOf(sentAt), epochSecondOf(sentAt), message);
+        } catch (UTFDataFormatException e) {
+            LogManager.getLogger(ClientHandler.class).error("Error while sending message", e);
+            return null;
         }
+    }
 
+    /**
+     * Encodes a message a user sent to a room, stamped with the current time.
+     *
+     * @return the frame, or null if the message is too long to be sent
+     */
+    public static Frame encodeChatMessage(String room, String sender, String message) {
         try {
-            if (socket != null) {
-                socket.close();
-            }
-        } catch (IOException e) {
-            logger.error(e);
+            TimestampCache.Stamp stamp = TimestampCache.shared().stamp();
+            return Frame.chat(stamp.getPrefix(), stamp.getEpochSecond(),
+                    formatChatMessage(room, sender, message), room, sender, message);
+        } catch (UTFDataFormatException e) {
+            LogManager.getLogger(ClientHandler.class).error("Error while sending message", e);
+            return null;
         }
     }
+
+    /**
+     * Encodes a message a user sent to a room with the time it was sent.
+     *
+     * @return the frame, or null if the message is too long to be sent
+     */
+    public static Frame encodeChatMessage(LocalDateTime sentAt, String room, String sender, String message) {
+        try {
+            return Frame.chat(prefixOf(sentAt), epochSecondOf(sentAt),
+                    formatChatMessage(room, sender, message), room, sender, message);
+        } catch (UTFDataFormatException e) {
+            LogManager.getLogger(ClientHandler.class).error("Error while sending message", e);
+            return null;
+        }
+    }
+
+    /**
+     * Encodes a private message for its recipient.
+     *
+     * @return the frame, or null if the message is too long to be sent
+     */
+    public static Frame encodePrivateMessage(String sender, String message) {
+        try {
+            TimestampCache.Stamp stamp = TimestampCache.shared().stamp();
+            return Frame.privateMessage(stamp.getPrefix(), stamp.getEpochSecond(),
+                    "Private message from " + sender + ": " + message, sender, message);
+        } catch (UTFDataFormatException e) {
+            LogManager.getLogger(ClientHandler.class).error("Error while sending message", e);
+            return null;
+        }
+    }
+
+    /**
+     * Messages of the default room keep the original "user: text" format,
+     * messages of other rooms are tagged with the room name.
+     */
+    private static String formatChatMessage(String room, String sender, String message) {
+        if (RoomRegistry.DEFAULT_ROOM.equals(room)) {
+            return sender + ": " + message;
+        }
+        return "[#" + room + "] " + sender + ": " + message;
+    }
+
+    private static byte[] prefixOf(LocalDateTime dateTime) {
+        return TimestampCache.format(dateTime).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static long epochSecondOf(LocalDateTime dateTime) {
+        return dateTime.atZone(ZoneId.systemDefault()).toEpochSecond();
+    }
+
+    /**
+     * Sends a heartbeat the client has to answer.
+     */
+    public void sendHeartbeat() {
+        sendFrame(Frame.heartbeat());
+    }
+
+    public void disconnect() {
+        disconnected = true;
+        cancelIdleTimeout();
+        server.unsubscribe(this);
+        connection.close();
+    }
 }
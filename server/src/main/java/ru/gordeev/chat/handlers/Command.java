@@ -0,0 +1,156 @@
+package ru.gordeev.chat.handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A chat command: its name (without the '/'), the number of arguments it
+ * takes, the role needed to run it and the handler. Invocations and their
+ * latency are counted per command.
+ */
+public final class Command {
+
+    /**
+     * Runs a command whose arguments have already been checked against its arity.
+     */
+    @FunctionalInterface
+    public interface Handler {
+        /**
+         * @return false if the client has to be disconnected
+         */
+        boolean execute(ClientHandler client, String[] args);
+    }
+
+    private static final String[] NO_ARGUMENTS = new String[0];
+
+    private final String name;
+    private final int minArguments;
+    private final int maxArguments;
+    private final boolean lastArgumentTakesRest;
+    private final UserRole requiredRole;
+    private final Handler handler;
+    private final LongAdder invocations = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    private Command(String name, int minArguments, int maxArguments, boolean lastArgumentTakesRest,
+                    UserRole requiredRole, Handler handler) {
+        this.name = name;
+        this.minArguments = minArguments;
+        this.maxArguments = maxArguments;
+        this.lastArgumentTakesRest = lastArgumentTakesRest;
+        this.requiredRole = requiredRole;
+        this.handler = handler;
+    }
+
+    /**
+     * A command taking from minArguments to maxArguments space-separated arguments.
+     *
+     * @param requiredRole the role needed to run it, or null if anyone may
+     */
+    public static Command of(String name, int minArguments, int maxArguments, UserRole requiredRole, Handler handler) {
+        return new Command(name, minArguments, maxArguments, false, requiredRole, handler);
+    }
+
+    /**
+     * A command whose last argument is the rest of the line, spaces included,
+     * e.g. the text of a private message.
+     *
+     * @param requiredRole the role needed to run it, or null if anyone may
+     */
+    public static Command withText(String name, int arguments, UserRole requiredRole, Handler handler) {
+        return new Command(name, arguments, arguments, true, requiredRole, handler);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    UserRole getRequiredRole() {
+        return requiredRole;
+    }
+
+    boolean run(ClientHandler client, String[] args) {
+        long start = System.nanoTime();
+        try {
+            return handler.execute(client, args);
+        } finally {
+            long nanos = System.nanoTime() - start;
+            invocations.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+    }
+
+    void rejected() {
+        rejections.increment();
+    }
+
+    /**
+     * Splits the arguments following the command name.
+     *
+     * @param line  the whole line, starting with '/'
+     * @param start the index right after the command name
+     * @return the arguments, or null if their number doesn't match the arity
+     */
+    String[] parseArguments(String line, int start) {
+        if (maxArguments == 0) {
+            return line.substring(start).isBlank() ? NO_ARGUMENTS : null;
+        }
+        List<String> args = new ArrayList<>(Math.min(maxArguments, 4));
+        int position = start;
+        int length = line.length();
+        while (true) {
+            while (position < length && line.charAt(position) == ' ') {
+                position++;
+            }
+            if (position == length) {
+                break;
+            }
+            if (args.size() == maxArguments) {
+                return null;
+            }
+            if (lastArgumentTakesRest && args.size() == maxArguments - 1) {
+                args.add(line.substring(position));
+                break;
+            }
+            int end = line.indexOf(' ', position);
+            if (end < 0) {
+                end = length;
+            }
+            args.add(line.substring(position, end));
+            position = end;
+        }
+        return args.size() >= minArguments ? args.toArray(NO_ARGUMENTS) : null;
+    }
+
+    public long getInvocations() {
+        return invocations.sum();
+    }
+
+    /**
+     * Calls refused because of the arguments or the role of the user.
+     */
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    public long getAverageMicros() {
+        long count = getInvocations();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalNanos.sum() / count);
+    }
+
+    public long getMaxMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return "/" + name + "{calls=" + getInvocations() + ", rejected=" + getRejections()
+                + ", avgMicros=" + getAverageMicros() + ", maxMicros=" + getMaxMicros() + "}";
+    }
+}
@@ -0,0 +1,122 @@
+package ru.gordeev.chat.handlers;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.concurrent.atomic.LongAdder;
+
+import static ru.gordeev.chat.helpers.ServerMessages.YOU_DONT_HAVE_RIGHTS;
+import static ru.gordeev.chat.helpers.ServerMessages.getIncorrectCommandFormatMessage;
+
+/**
+ * Dispatches command lines to Commands. The command name is cut out of the
+ * line once and looked up in a hash table; the role of the user and the
+ * number of arguments are checked before the handler runs, so handlers
+ * only deal with valid calls. A name matches only as a whole word: "/banxyz"
+ * is an unknown command, not "/ban".
+ *
+ * Commands are registered before the registry is shared and never change
+ * afterwards.
+ */
+public final class CommandRegistry {
+
+    private final Map<String, Command> commands = new HashMap<>();
+    private final LongAdder unknownCommands = new LongAdder();
+    private final BiConsumer<ClientHandler, String> unknownCommandHandler;
+
+    /**
+     * A registry answering unknown commands with a pointer to '/help'.
+     */
+    public CommandRegistry() {
+        this((client, line) -> client.sendMessage("Server: unknown command '" + commandName(line)
+                + "', see the list of commands with '/help'"));
+    }
+
+    /**
+     * @param unknownCommandHandler receives the client and the line of a command that isn't registered
+     */
+    public CommandRegistry(BiConsumer<ClientHandler, String> unknownCommandHandler) {
+        this.unknownCommandHandler = unknownCommandHandler;
+    }
+
+    public CommandRegistry register(Command command) {
+        if (commands.putIfAbsent(command.getName(), command) != null) {
+            throw new IllegalArgumentException("Command /" + command.getName() + " is already registered");
+        }
+        return this;
+    }
+
+    /**
+     * @return the command, or null if there is none with this name
+     */
+    public Command find(String name) {
+        return commands.get(name);
+    }
+
+    /**
+     * Runs the command of the line.
+     *
+     * @param line a line starting with '/'
+     * @return false if the client has to be disconnected
+     */
+    public boolean dispatch(ClientHandler client, String line) {
+        int nameEnd = line.indexOf(' ');
+        if (nameEnd < 0) {
+            nameEnd = line.length();
+        }
+        Command command = commands.get(line.substring(1, nameEnd));
+        if (command == null) {
+            unknownCommands.increment();
+            unknownCommandHandler.accept(client, line);
+            return true;
+        }
+
+        UserRole requiredRole = command.getRequiredRole();
+        if (requiredRole != null && client.getUserRole() != requiredRole) {
+            command.rejected();
+            client.sendMessage(YOU_DONT_HAVE_RIGHTS);
+            return true;
+        }
+        String[] args = command.parseArguments(line, nameEnd);
+        if (args == null) {
+            command.rejected();
+            client.sendMessage(getIncorrectCommandFormatMessage("/" + command.getName()));
+            return true;
+        }
+        return command.run(client, args);
+    }
+
+    private static String commandName(String line) {
+        int nameEnd = line.indexOf(' ');
+        return nameEnd < 0 ? line : line.substring(0, nameEnd);
+    }
+
+    public Collection<Command> getCommands() {
+        return Collections.unmodifiableCollection(commands.values());
+    }
+
+    public long getUnknownCommands() {
+        return unknownCommands.sum();
+    }
+
+    public long getInvocations() {
+        long total = 0;
+        for (Command command : commands.values()) {
+            total += command.getInvocations() + command.getRejections();
+        }
+        return total + getUnknownCommands();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Command command : commands.values()) {
+            if (command.getInvocations() > 0 || command.getRejections() > 0) {
+                builder.append(command).append(", ");
+            }
+        }
+        return builder.append("unknown=").append(getUnknownCommands()).toString();
+    }
+}
@@ -0,0 +1,168 @@
+package ru.gordeev.chat.handlers;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ru.gordeev.chat.Server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Disconnects clients that stay silent for too long: users idle longer
+ * than the timeout of their role, clients that don't log in in time, and
+ * clients supporting heartbeats that stop answering them.
+ *
+ * Every client has one timeout in a TimingWheel, set to the earliest of its
+ * deadlines. Sending a message only moves the client's activity time; when
+ * the timeout fires, the deadlines are computed again from the current
+ * times and the client is either disconnected, pinged or rescheduled. So a
+ * tick costs in proportion to the clients whose timeout fires, not to the
+ * clients connected. A client without any deadline isn't scheduled at all.
+ *
+ * Logging in and turning heartbeats on change the deadlines of a client, so
+ * they ask for the client to be checked again: its timeout is replaced on
+ * the next tick, by the thread advancing the wheel.
+ */
+public class IdleMonitor {
+
+    public static final long TICK_MILLIS = 1000;
+    private static final int WHEEL_SLOTS = 512;
+
+    private final Logger logger;
+    private final Server server;
+    private final IdleSettings settings;
+    private final TimingWheel<ClientHandler> wheel;
+    private final Queue<ClientHandler> rechecks = new ConcurrentLinkedQueue<>();
+    private final LongAdder heartbeatsSent = new LongAdder();
+    private final LongAdder deadClients = new LongAdder();
+    private final LongAdder idleUsers = new LongAdder();
+    private final LongAdder loginTimeouts = new LongAdder();
+
+    public IdleMonitor(Server server, IdleSettings settings) {
+        this.logger = LogManager.getLogger(IdleMonitor.class);
+        this.server = server;
+        this.settings = settings;
+        this.wheel = new TimingWheel<>(TICK_MILLIS, WHEEL_SLOTS, System.currentTimeMillis());
+    }
+
+    public IdleSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Starts watching a newly connected client.
+     */
+    void register(ClientHandler client) {
+        schedule(client, System.currentTimeMillis());
+    }
+
+    /**
+     * Checks the client again on the next tick, after its deadlines changed.
+     */
+    void recheck(ClientHandler client) {
+        rechecks.add(client);
+    }
+
+    /**
+     * Expires the timeouts due by now. Called every TICK_MILLIS by one thread.
+     */
+    public void tick() {
+        try {
+            ClientHandler client;
+            while ((client = rechecks.poll()) != null) {
+                client.cancelIdleTimeout();
+                check(client);
+            }
+            wheel.advance(System.currentTimeMillis(), this::check);
+        } catch (RuntimeException e) {
+            logger.error("Error while checking idle clients", e);
+        }
+    }
+
+    private void check(ClientHandler client) {
+        if (client.isDisconnected()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+
+        long heartbeatInterval = settings.getHeartbeatIntervalMillis();
+        if (heartbeatInterval > 0 && client.isHeartbeatEnabled()) {
+            long lastRead = client.getLastReadTime();
+            if (now - lastRead >= settings.getHeartbeatTimeoutMillis()) {
+                deadClients.increment();
+                logger.info("Client {} stopped answering heartbeats, disconnecting", describe(client));
+                client.disconnect();
+                return;
+            }
+            if (now - lastRead >= heartbeatInterval) {
+                heartbeatsSent.increment();
+                client.sendHeartbeat();
+                next = Math.min(now + heartbeatInterval, lastRead + settings.getHeartbeatTimeoutMillis());
+            } else {
+                next = lastRead + heartbeatInterval;
+            }
+        }
+
+        boolean authenticated = client.isAuthenticated();
+        long idleTimeout = authenticated
+                ? settings.getIdleTimeoutMillis(client.getUserRole())
+                : settings.getLoginTimeoutMillis();
+        if (idleTimeout > 0) {
+            long deadline = client.getLastActivityTime() + idleTimeout;
+            if (now >= deadline) {
+                if (authenticated) {
+                    idleUsers.increment();
+                    logger.info("Disconnecting user {} due to inactivity", client.getUsername());
+                    server.disconnectUserDueToInactivity(client);
+                } else {
+                    loginTimeouts.increment();
+                    logger.info("Client {} didn't log in in time, disconnecting", describe(client));
+                    client.sendMessage("Server: you have been disconnected, please log in within "
+                            + TimeUnit.MILLISECONDS.toSeconds(idleTimeout) + " seconds");
+                    client.disconnect();
+                }
+                return;
+            }
+            next = Math.min(next, deadline);
+        }
+        if (next != Long.MAX_VALUE) {
+            schedule(client, next);
+        }
+    }
+
+    private void schedule(ClientHandler client, long deadline) {
+        client.setIdleTimeout(wheel.schedule(client, deadline));
+    }
+
+    private static String describe(ClientHandler client) {
+        String username = client.getUsername();
+        return username != null ? username : client.getRemoteAddress();
+    }
+
+    public long getHeartbeatsSent() {
+        return heartbeatsSent.sum();
+    }
+
+    public long getDeadClients() {
+        return deadClients.sum();
+    }
+
+    public long getIdleUsers() {
+        return idleUsers.sum();
+    }
+
+    public long getLoginTimeouts() {
+        return loginTimeouts.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "IdleMonitor{heartbeatsSent=" + getHeartbeatsSent()
+                + ", deadClients=" + getDeadClients()
+                + ", idleUsers=" + getIdleUsers()
+                + ", loginTimeouts=" + getLoginTimeouts() + "}";
+    }
+}
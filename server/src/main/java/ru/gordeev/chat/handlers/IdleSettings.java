@@ -0,0 +1,85 @@
+package ru.gordeev.chat.handlers;
+
+import ru.gordeev.chat.config.ServerConfig;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timeouts of the IdleMonitor. A timeout of 0 turns the check off.
+ */
+public class IdleSettings {
+
+    private final Map<UserRole, Long> idleTimeoutMillis = new EnumMap<>(UserRole.class);
+    private final long loginTimeoutMillis;
+    private final long heartbeatIntervalMillis;
+    private final long heartbeatTimeoutMillis;
+
+    /**
+     * @param loginTimeoutMillis      the time a client has to log in
+     * @param heartbeatIntervalMillis the silence after which a client supporting heartbeats is pinged
+     * @param heartbeatTimeoutMillis  the silence after which it is considered dead
+     */
+    public IdleSettings(long loginTimeoutMillis, long heartbeatIntervalMillis, long heartbeatTimeoutMillis) {
+        if (loginTimeoutMillis < 0 || heartbeatIntervalMillis < 0 || heartbeatTimeoutMillis < heartbeatIntervalMillis) {
+            throw new IllegalArgumentException("Timeouts must not be negative, and the heartbeat timeout must not be "
+                    + "shorter than the heartbeat interval");
+        }
+        this.loginTimeoutMillis = loginTimeoutMillis;
+        this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+        this.heartbeatTimeoutMillis = heartbeatTimeoutMillis;
+        for (UserRole role : UserRole.values()) {
+            idleTimeoutMillis.put(role, 0L);
+        }
+    }
+
+    /**
+     * Sets the time users with the role may stay without sending anything.
+     */
+    public IdleSettings withIdleTimeout(UserRole role, long timeoutMillis) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("Idle timeout of " + role + " must not be negative");
+        }
+        idleTimeoutMillis.put(role, timeoutMillis);
+        return this;
+    }
+
+    /**
+     * Reads the settings from the chat.idle.loginTimeoutSeconds,
+     * chat.heartbeat.intervalSeconds and chat.heartbeat.timeoutSeconds
+     * keys, and the idle timeout of each role from
+     * chat.idle.timeoutSeconds.{role}.
+     */
+    public static IdleSettings fromConfig(ServerConfig config) {
+        IdleSettings settings = new IdleSettings(
+                TimeUnit.SECONDS.toMillis(config.getInt("chat.idle.loginTimeoutSeconds", 120)),
+                TimeUnit.SECONDS.toMillis(config.getInt("chat.heartbeat.intervalSeconds", 15)),
+                TimeUnit.SECONDS.toMillis(config.getInt("chat.heartbeat.timeoutSeconds", 45)));
+        for (UserRole role : UserRole.values()) {
+            settings.withIdleTimeout(role, TimeUnit.SECONDS.toMillis(config.getInt(
+                    "chat.idle.timeoutSeconds." + role.name().toLowerCase(Locale.ROOT), 20 * 60)));
+        }
+        return settings;
+    }
+
+    /**
+     * @param role the role of the user, null for users without one
+     */
+    public long getIdleTimeoutMillis(UserRole role) {
+        return idleTimeoutMillis.get(role != null ? role : UserRole.USER);
+    }
+
+    public long getLoginTimeoutMillis() {
+        return loginTimeoutMillis;
+    }
+
+    public long getHeartbeatIntervalMillis() {
+        return heartbeatIntervalMillis;
+    }
+
+    public long getHeartbeatTimeoutMillis() {
+        return heartbeatTimeoutMillis;
+    }
+}
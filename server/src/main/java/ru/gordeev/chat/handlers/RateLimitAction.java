@@ -0,0 +1,21 @@
+package ru.gordeev.chat.handlers;
+
+/**
+ * What the server does with a message of a client that exceeded its rate
+ * limit. The message itself is never delivered.
+ */
+public enum RateLimitAction {
+    /**
+     * Drop the message silently.
+     */
+    DROP,
+    /**
+     * Drop the message and tell the client, once per run of rejected messages.
+     */
+    WARN,
+    /**
+     * Warn the client, and ban it for a while if it keeps sending. Clients
+     * that are not logged in yet are disconnected instead.
+     */
+    TEMP_BAN
+}
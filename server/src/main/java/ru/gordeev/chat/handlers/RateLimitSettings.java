@@ -0,0 +1,96 @@
+package ru.gordeev.chat.handlers;
+
+import ru.gordeev.chat.config.ServerConfig;
+
+/**
+ * Budgets of the RateLimiter. Each kind of message has a rate per minute
+ * and a burst; the budgets of a source address are those of a single user
+ * multiplied by the address factor, as several users may share an address.
+ */
+public class RateLimitSettings {
+
+    private final boolean enabled;
+    private final int[] perMinute = new int[RateLimiter.Kind.values().length];
+    private final int[] burst = new int[RateLimiter.Kind.values().length];
+    private final int addressFactor;
+    private final RateLimitAction action;
+    private final int banAfter;
+    private final int banMinutes;
+
+    public RateLimitSettings(boolean enabled, int addressFactor, RateLimitAction action, int banAfter, int banMinutes) {
+        if (addressFactor <= 0 || banAfter <= 0 || banMinutes <= 0) {
+            throw new IllegalArgumentException("Rate limit factor, ban threshold and ban duration must be positive");
+        }
+        this.enabled = enabled;
+        this.addressFactor = addressFactor;
+        this.action = action;
+        this.banAfter = banAfter;
+        this.banMinutes = banMinutes;
+    }
+
+    /**
+     * Sets the budget of one kind of message.
+     */
+    public RateLimitSettings withBudget(RateLimiter.Kind kind, int perMinute, int burst) {
+        if (perMinute <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("Rate limit budget of " + kind + " must be positive");
+        }
+        this.perMinute[kind.ordinal()] = perMinute;
+        this.burst[kind.ordinal()] = burst;
+        return this;
+    }
+
+    /**
+     * Reads the settings from the chat.rateLimit.enabled, .addressFactor,
+     * .action, .banAfter and .banMinutes keys, and the budgets from
+     * chat.rateLimit.{chat,private,auth}.perMinute and .burst.
+     */
+    public static RateLimitSettings fromConfig(ServerConfig config) {
+        return new RateLimitSettings(
+                config.getBoolean("chat.rateLimit.enabled", true),
+                config.getInt("chat.rateLimit.addressFactor", 10),
+                config.getEnum("chat.rateLimit.action", RateLimitAction.WARN),
+                config.getInt("chat.rateLimit.banAfter", 50),
+                config.getInt("chat.rateLimit.banMinutes", 10))
+                .withBudget(RateLimiter.Kind.CHAT,
+                        config.getInt("chat.rateLimit.chat.perMinute", 120),
+                        config.getInt("chat.rateLimit.chat.burst", 20))
+                .withBudget(RateLimiter.Kind.PRIVATE,
+                        config.getInt("chat.rateLimit.private.perMinute", 60),
+                        config.getInt("chat.rateLimit.private.burst", 10))
+                .withBudget(RateLimiter.Kind.AUTH,
+                        config.getInt("chat.rateLimit.auth.perMinute", 10),
+                        config.getInt("chat.rateLimit.auth.burst", 5));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getPerMinute(RateLimiter.Kind kind) {
+        return perMinute[kind.ordinal()];
+    }
+
+    public int getBurst(RateLimiter.Kind kind) {
+        return burst[kind.ordinal()];
+    }
+
+    public int getAddressFactor() {
+        return addressFactor;
+    }
+
+    public RateLimitAction getAction() {
+        return action;
+    }
+
+    /**
+     * The number of rejected messages in a row after which TEMP_BAN bans the user.
+     */
+    public int getBanAfter() {
+        return banAfter;
+    }
+
+    public int getBanMinutes() {
+        return banMinutes;
+    }
+}
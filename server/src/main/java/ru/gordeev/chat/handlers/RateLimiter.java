@@ -0,0 +1,230 @@
+package ru.gordeev.chat.handlers;
+
+import ru.gordeev.chat.config.ServerConfig;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits how fast clients send chat messages, private messages and login
+ * attempts, with TokenBuckets per connection (login attempts), per user
+ * (chat and private messages) and per source address (all of them).
+ *
+ * Every connection gets a Quota holding its own bucket and the keys of its
+ * user and address. Their buckets are looked up on every check, a lock-free
+ * map read, so the idle ones can be dropped while connections are open and
+ * all connections of an address always share one bucket. Checking a message
+ * takes a CAS per bucket and no lock. User buckets outlive the connection,
+ * so reconnecting doesn't refill them.
+ */
+public class RateLimiter {
+
+    /**
+     * The budgets a message can be charged to.
+     */
+    public enum Kind {
+        CHAT,
+        PRIVATE,
+        AUTH
+    }
+
+    private static final Kind[] KINDS = Kind.values();
+
+    private final RateLimitSettings settings;
+    private final Map<String, TokenBucket[]> userBuckets = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket[]> addressBuckets = new ConcurrentHashMap<>();
+    private final LongAdder[] rejectedByConnection = newCounters();
+    private final LongAdder[] rejectedByUser = newCounters();
+    private final LongAdder[] rejectedByAddress = newCounters();
+    private final LongAdder warnings = new LongAdder();
+    private final LongAdder bans = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+
+    public RateLimiter(RateLimitSettings settings) {
+        this.settings = settings;
+    }
+
+    public static RateLimiter fromConfig(ServerConfig config) {
+        return new RateLimiter(RateLimitSettings.fromConfig(config));
+    }
+
+    public RateLimitSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * @param address the source address of the connection
+     */
+    public Quota newQuota(String address) {
+        if (!settings.isEnabled()) {
+            return new Quota(null, null);
+        }
+        TokenBucket connectionAuth = new TokenBucket(settings.getPerMinute(Kind.AUTH), settings.getBurst(Kind.AUTH));
+        return new Quota(connectionAuth, address);
+    }
+
+    /**
+     * Drops the buckets that have refilled completely, so the maps only
+     * hold users and addresses that sent something recently. The next
+     * message of such a user or address gets a full bucket, which is what
+     * the dropped one held.
+     */
+    public void removeIdleBuckets() {
+        long now = System.nanoTime();
+        userBuckets.values().removeIf(buckets -> isFull(buckets, now));
+        addressBuckets.values().removeIf(buckets -> isFull(buckets, now));
+    }
+
+    private static boolean isFull(TokenBucket[] buckets, long now) {
+        for (TokenBucket bucket : buckets) {
+            if (bucket != null && !bucket.isFull(now)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private TokenBucket[] addressBuckets(String address) {
+        TokenBucket[] buckets = addressBuckets.get(address);
+        return buckets != null
+                ? buckets
+                : addressBuckets.computeIfAbsent(address, key -> newBuckets(settings.getAddressFactor()));
+    }
+
+    private TokenBucket[] userBuckets(String username) {
+        TokenBucket[] buckets = userBuckets.get(username);
+        return buckets != null ? buckets : userBuckets.computeIfAbsent(username, key -> newBuckets(1));
+    }
+
+    private TokenBucket[] newBuckets(int factor) {
+        TokenBucket[] buckets = new TokenBucket[KINDS.length];
+        for (Kind kind : KINDS) {
+            buckets[kind.ordinal()] = new TokenBucket(scale(settings.getPerMinute(kind), factor),
+                    scale(settings.getBurst(kind), factor));
+        }
+        return buckets;
+    }
+
+    private static int scale(int value, int factor) {
+        return (int) Math.min((long) value * factor, Integer.MAX_VALUE);
+    }
+
+    private static LongAdder[] newCounters() {
+        LongAdder[] counters = new LongAdder[KINDS.length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    void warned() {
+        warnings.increment();
+    }
+
+    void banned() {
+        bans.increment();
+    }
+
+    void disconnected() {
+        disconnects.increment();
+    }
+
+    public long getRejected(Kind kind) {
+        int i = kind.ordinal();
+        return rejectedByConnection[i].sum() + rejectedByUser[i].sum() + rejectedByAddress[i].sum();
+    }
+
+    public long getRejected() {
+        long total = 0;
+        for (Kind kind : KINDS) {
+            total += getRejected(kind);
+        }
+        return total;
+    }
+
+    public long getWarnings() {
+        return warnings.sum();
+    }
+
+    public long getBans() {
+        return bans.sum();
+    }
+
+    public long getDisconnects() {
+        return disconnects.sum();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("RateLimiter{");
+        for (Kind kind : KINDS) {
+            int i = kind.ordinal();
+            builder.append(kind.name().toLowerCase()).append("Rejected=")
+                    .append(rejectedByConnection[i].sum()).append('/')
+                    .append(rejectedByUser[i].sum()).append('/')
+                    .append(rejectedByAddress[i].sum()).append(", ");
+        }
+        return builder.append("warnings=").append(getWarnings())
+                .append(", bans=").append(getBans())
+                .append(", disconnects=").append(getDisconnects())
+                .append(", users=").append(userBuckets.size())
+                .append(", addresses=").append(addressBuckets.size())
+                .append('}').toString();
+    }
+
+    /**
+     * The buckets a connection is charged to. Checked by the reader of the
+     * connection, one message at a time.
+     */
+    public final class Quota {
+
+        private final TokenBucket connectionAuth;
+        private final String address;
+        private volatile String username;
+
+        private Quota(TokenBucket connectionAuth, String address) {
+            this.connectionAuth = connectionAuth;
+            this.address = address;
+        }
+
+        /**
+         * Charges the following messages to the budget of the user too.
+         */
+        public void bindUser(String username) {
+            if (connectionAuth != null) {
+                this.username = username;
+            }
+        }
+
+        /**
+         * Takes a token from every bucket of the connection for this kind of message.
+         *
+         * @return false if one of them is empty
+         */
+        public boolean tryAcquire(Kind kind) {
+            if (connectionAuth == null) {
+                return true;
+            }
+            String user = username;
+            TokenBucket[] userBuckets = kind != Kind.AUTH && user != null ? userBuckets(user) : null;
+            TokenBucket[] addressBuckets = addressBuckets(address);
+            // Read the clock after the lookup: a bucket created by it must not look refilled in the future
+            long now = System.nanoTime();
+            int i = kind.ordinal();
+            if (kind == Kind.AUTH && !connectionAuth.tryAcquire(now)) {
+                rejectedByConnection[i].increment();
+                return false;
+            }
+            if (userBuckets != null && !userBuckets[i].tryAcquire(now)) {
+                rejectedByUser[i].increment();
+                return false;
+            }
+            if (!addressBuckets[i].tryAcquire(now)) {
+                rejectedByAddress[i].increment();
+                return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package ru.gordeev.chat.handlers;
+
+import ru.gordeev.chat.network.Frame;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A chat room: its own concurrent subscriber set and scrollback. A message
+ * sent to a room is only fanned out to the room's members.
+ */
+public class Room {
+
+    private final String name;
+    private final Set<ClientHandler> members = ConcurrentHashMap.newKeySet();
+    private final ScrollbackBuffer scrollback;
+
+    public Room(String name, int scrollbackCapacity) {
+        this.name = name;
+        this.scrollback = new ScrollbackBuffer(scrollbackCapacity);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    boolean add(ClientHandler client) {
+        return members.add(client);
+    }
+
+    boolean remove(ClientHandler client) {
+        return members.remove(client);
+    }
+
+    public boolean isMember(ClientHandler client) {
+        return members.contains(client);
+    }
+
+    public Collection<ClientHandler> getMembers() {
+        return Collections.unmodifiableSet(members);
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    public boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    public ScrollbackBuffer getScrollback() {
+        return scrollback;
+    }
+
+    /**
+     * Queues the frame for every member of the room.
+     */
+    public void broadcast(Frame frame) {
+        for (ClientHandler member : members) {
+            member.sendFrame(frame);
+        }
+    }
+}
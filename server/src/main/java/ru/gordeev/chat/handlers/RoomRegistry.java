@@ -0,0 +1,118 @@
+package ru.gordeev.chat.handlers;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * All rooms by name. Rooms are created by the first member joining and
+ * removed when the last one leaves, except for the default room, which
+ * always exists. Joins and leaves of the same room are atomic with respect
+ * to each other, so a member is never added to a room that is being removed.
+ * The registry also remembers which rooms each client is in, so leaving all
+ * of them on disconnect doesn't scan every room. The rooms and the
+ * memberships of one client change together, under the client's entry in
+ * the membership map, so a join racing with leaveAll either happens before
+ * it and is undone by it, or after it and leaves a membership behind that
+ * the caller has to clear.
+ */
+public class RoomRegistry {
+
+    public static final String DEFAULT_ROOM = "general";
+
+    private static final Pattern ROOM_NAME = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+
+    private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ClientHandler, Set<String>> memberships = new ConcurrentHashMap<>();
+    private final int scrollbackCapacity;
+    private final Room defaultRoom;
+
+    public RoomRegistry(int scrollbackCapacity) {
+        this.scrollbackCapacity = scrollbackCapacity;
+        this.defaultRoom = new Room(DEFAULT_ROOM, scrollbackCapacity);
+        rooms.put(DEFAULT_ROOM, defaultRoom);
+    }
+
+    public static boolean isValidName(String name) {
+        return ROOM_NAME.matcher(name).matches();
+    }
+
+    public Room getDefaultRoom() {
+        return defaultRoom;
+    }
+
+    public Room find(String name) {
+        return rooms.get(name);
+    }
+
+    /**
+     * Adds the client to the room, creating the room if needed.
+     *
+     * @return the room
+     */
+    public Room join(String name, ClientHandler client) {
+        Room[] joined = new Room[1];
+        memberships.compute(client, (key, names) -> {
+            Set<String> current = names != null ? names : ConcurrentHashMap.newKeySet();
+            current.add(name);
+            joined[0] = rooms.compute(name, (roomName, room) -> {
+                Room target = room != null ? room : new Room(roomName, scrollbackCapacity);
+                target.add(client);
+                return target;
+            });
+            return current;
+        });
+        return joined[0];
+    }
+
+    /**
+     * Removes the client from the room and drops the room if it became empty.
+     *
+     * @return false if the client was not a member of the room
+     */
+    public boolean leave(String name, ClientHandler client) {
+        boolean[] removed = new boolean[1];
+        memberships.computeIfPresent(client, (key, names) -> {
+            names.remove(name);
+            removed[0] = removeMember(name, client);
+            return names.isEmpty() ? null : names;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Removes the client from every room it is in.
+     */
+    public void leaveAll(ClientHandler client) {
+        memberships.computeIfPresent(client, (key, names) -> {
+            for (String name : names) {
+                removeMember(name, client);
+            }
+            return null;
+        });
+    }
+
+    private boolean removeMember(String name, ClientHandler client) {
+        boolean[] removed = new boolean[1];
+        rooms.computeIfPresent(name, (key, room) -> {
+            removed[0] = room.remove(client);
+            return room.isEmpty() && room != defaultRoom ? null : room;
+        });
+        return removed[0];
+    }
+
+    public Collection<Room> all() {
+        return rooms.values();
+    }
+
+    /**
+     * @return the names of the rooms the client is a member of
+     */
+    public Set<String> roomsOf(ClientHandler client) {
+        Set<String> joined = memberships.get(client);
+        return joined != null ? Collections.unmodifiableSet(joined) : Collections.emptySet();
+    }
+}
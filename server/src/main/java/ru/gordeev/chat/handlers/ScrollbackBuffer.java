@@ -0,0 +1,90 @@
+package ru.gordeev.chat.handlers;
+
+import ru.gordeev.chat.network.Frame;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The most recent broadcast messages, kept as already encoded frames in a
+ * fixed-size ring.
+ *
+ * Writers claim a sequence number with one atomic increment and publish
+ * the entry into its slot; readers copy a consistent tail without taking
+ * any lock, skipping slots that have already been overwritten by newer
+ * messages or are still being written.
+ */
+public class ScrollbackBuffer {
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    /**
+     * @param capacity the number of messages kept, rounded up to a power of two
+     */
+    public ScrollbackBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Scrollback capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    public void add(LocalDateTime createdAt, Frame frame) {
+        long sequence = nextSequence.getAndIncrement();
+        slots.set((int) (sequence & mask), new Entry(sequence, createdAt, frame));
+    }
+
+    /**
+     * Returns up to limit of the most recent entries, oldest first.
+     */
+    public List<Entry> latest(int limit) {
+        long end = nextSequence.get();
+        long start = Math.max(0, end - Math.min(limit, slots.length()));
+        if (start >= end) {
+            return Collections.emptyList();
+        }
+
+        List<Entry> entries = new ArrayList<>((int) (end - start));
+        for (long sequence = start; sequence < end; sequence++) {
+            Entry entry = slots.get((int) (sequence & mask));
+            if (entry != null && entry.sequence == sequence) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    public int capacity() {
+        return slots.length();
+    }
+
+    public static final class Entry {
+        private final long sequence;
+        private final LocalDateTime createdAt;
+        private final Frame frame;
+
+        private Entry(long sequence, LocalDateTime createdAt, Frame frame) {
+            this.sequence = sequence;
+            this.createdAt = createdAt;
+            this.frame = frame;
+        }
+
+        public LocalDateTime getCreatedAt() {
+            return createdAt;
+        }
+
+        public Frame getFrame() {
+            return frame;
+        }
+    }
+}
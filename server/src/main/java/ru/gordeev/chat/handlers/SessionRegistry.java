@@ -0,0 +1,105 @@
+package ru.gordeev.chat.handlers;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Index of the authenticated clients by username and by login.
+ *
+ * Lookups and iteration are lock-free. Only membership changes (subscribe,
+ * unsubscribe, rename) take a lock, so that both indexes stay consistent
+ * while a username is being changed.
+ */
+public class SessionRegistry {
+
+    private final ConcurrentMap<String, ClientHandler> byUsername = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ClientHandler> byLogin = new ConcurrentHashMap<>();
+    private final ReentrantLock membershipLock = new ReentrantLock();
+
+    /**
+     * Registers the client under its current username and login.
+     *
+     * @return false if another client is already registered with the same username or login
+     */
+    public boolean add(ClientHandler client) {
+        membershipLock.lock();
+        try {
+            if (byUsername.containsKey(client.getUsername()) || byLogin.containsKey(client.getLogin())) {
+                return false;
+            }
+            byUsername.put(client.getUsername(), client);
+            byLogin.put(client.getLogin(), client);
+            return true;
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the client was registered and has been removed
+     */
+    public boolean remove(ClientHandler client) {
+        if (client.getUsername() == null) {
+            return false;
+        }
+        membershipLock.lock();
+        try {
+            boolean removed = byUsername.remove(client.getUsername(), client);
+            if (client.getLogin() != null) {
+                byLogin.remove(client.getLogin(), client);
+            }
+            return removed;
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /**
+     * Moves the client to a new username in the index and on the client itself.
+     *
+     * @return false if the client is not registered or the new username is taken
+     */
+    public boolean rename(ClientHandler client, String newUsername) {
+        membershipLock.lock();
+        try {
+            String oldUsername = client.getUsername();
+            if (byUsername.get(oldUsername) != client || byUsername.putIfAbsent(newUsername, client) != null) {
+                return false;
+            }
+            client.setUsername(newUsername);
+            byUsername.remove(oldUsername, client);
+            return true;
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the client is registered, false once it has been removed
+     */
+    public boolean contains(ClientHandler client) {
+        return client.getLogin() != null && byLogin.get(client.getLogin()) == client;
+    }
+
+    public ClientHandler findByUsername(String username) {
+        return byUsername.get(username);
+    }
+
+    public ClientHandler findByLogin(String login) {
+        return byLogin.get(login);
+    }
+
+    /**
+     * Returns a weakly consistent live view of the registered clients.
+     * Iterating it never blocks and never throws ConcurrentModificationException.
+     */
+    public Collection<ClientHandler> all() {
+        return byLogin.values();
+    }
+
+    public int size() {
+        return byLogin.size();
+    }
+}
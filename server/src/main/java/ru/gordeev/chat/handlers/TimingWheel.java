@@ -0,0 +1,135 @@
+package ru.gordeev.chat.handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timing wheel: timeouts are put into the slot of their deadline
+ * tick, so advancing the wheel by a tick only looks at the timeouts of one
+ * slot. The cost of expiry is proportional to the number of timeouts
+ * expiring, not to the number scheduled. Deadlines further away than one
+ * turn of the wheel wait for the number of turns they need.
+ *
+ * Timeouts may be scheduled and cancelled from any thread; they reach the
+ * wheel on the next advance. The wheel itself is advanced by one thread.
+ */
+public final class TimingWheel<T> {
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final List<Timeout>[] slots;
+    private final int mask;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final List<T> expired = new ArrayList<>();
+    private long tick;
+
+    /**
+     * @param tickMillis  the resolution of the wheel
+     * @param slots       the number of slots, rounded up to a power of two
+     * @param startMillis the time of the first tick
+     */
+    public TimingWheel(long tickMillis, int slots, long startMillis) {
+        if (tickMillis <= 0 || slots <= 0) {
+            throw new IllegalArgumentException("Timing wheel tick and slots must be positive");
+        }
+        int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.tickMillis = tickMillis;
+        this.startMillis = startMillis;
+        // Arrays can't be created with a generic component type; every element is set right below
+        @SuppressWarnings("unchecked")
+        List<Timeout>[] wheel = (List<Timeout>[]) new List<?>[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+        this.slots = wheel;
+        this.mask = size - 1;
+    }
+
+    /**
+     * Schedules the task to expire at the first tick at or after the deadline.
+     */
+    public Timeout schedule(T task, long deadlineMillis) {
+        Timeout timeout = new Timeout(task, deadlineMillis);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Processes the ticks up to the given time and hands the tasks that
+     * expired to the consumer, after the wheel has been updated, so the
+     * consumer may schedule them again.
+     */
+    public void advance(long nowMillis, Consumer<? super T> consumer) {
+        long lastTick = Math.floorDiv(nowMillis - startMillis, tickMillis);
+        while (tick <= lastTick) {
+            transferPending();
+            expireSlot(slots[(int) (tick & mask)]);
+            tick++;
+        }
+        try {
+            for (T task : expired) {
+                consumer.accept(task);
+            }
+        } finally {
+            expired.clear();
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.task == null) {
+                continue;
+            }
+            long deadlineTick = Math.max(tick, -Math.floorDiv(startMillis - timeout.deadlineMillis, tickMillis));
+            long ticksAway = deadlineTick - tick;
+            timeout.rounds = ticksAway / slots.length;
+            slots[(int) (deadlineTick & mask)].add(timeout);
+        }
+    }
+
+    private void expireSlot(List<Timeout> slot) {
+        int kept = 0;
+        for (int i = 0; i < slot.size(); i++) {
+            Timeout timeout = slot.get(i);
+            T task = timeout.task;
+            if (task == null) {
+                continue;
+            }
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                slot.set(kept++, timeout);
+            } else {
+                expired.add(task);
+            }
+        }
+        slot.subList(kept, slot.size()).clear();
+    }
+
+    /**
+     * A scheduled task. A cancelled timeout releases its task right away
+     * and leaves the wheel when its slot comes up.
+     */
+    public final class Timeout {
+
+        private final long deadlineMillis;
+        private volatile T task;
+        private long rounds;
+
+        private Timeout(T task, long deadlineMillis) {
+            this.task = task;
+            this.deadlineMillis = deadlineMillis;
+        }
+
+        public long getDeadlineMillis() {
+            return deadlineMillis;
+        }
+
+        public void cancel() {
+            task = null;
+        }
+    }
+}
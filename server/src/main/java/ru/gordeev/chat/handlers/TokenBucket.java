@@ -0,0 +1,59 @@
+package ru.gordeev.chat.handlers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket. Instead of a token count it keeps the time at
+ * which the bucket will be full again (the generic cell rate algorithm):
+ * taking a token moves that time one refill interval forward, and a token
+ * is refused if the time would get more than burst intervals ahead of now.
+ * The whole state is one long, so taking a token is a read and a CAS, and
+ * concurrent callers never block each other.
+ */
+public final class TokenBucket {
+
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final AtomicLong fullAt;
+
+    /**
+     * @param perMinute the number of tokens added per minute
+     * @param burst     the capacity of the bucket
+     */
+    public TokenBucket(int perMinute, int burst) {
+        if (perMinute <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("Token bucket rate and burst must be positive");
+        }
+        this.intervalNanos = TimeUnit.MINUTES.toNanos(1) / perMinute;
+        this.burstNanos = intervalNanos * burst;
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes a token if there is one.
+     *
+     * @param nowNanos the current System.nanoTime()
+     * @return false if the bucket is empty
+     */
+    public boolean tryAcquire(long nowNanos) {
+        while (true) {
+            long current = fullAt.get();
+            long next = (current - nowNanos > 0 ? current : nowNanos) + intervalNanos;
+            if (next - nowNanos > burstNanos) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return true if the bucket has refilled completely, i.e. it can be
+     * dropped and recreated without changing the limit
+     */
+    public boolean isFull(long nowNanos) {
+        return fullAt.get() - nowNanos <= 0;
+    }
+}
@@ -8,6 +8,16 @@ public class ServerMessages {
 
     public static final String COULD_NOT_FIND_USER = "Server: couldn't find such user";
 
+    public static final String INCORRECT_ROOM_NAME =
+            "Server: a room name can contain only latin letters, digits, '-' and '_' (up to 32 characters)";
+
+    public static final String SERVER_IS_BUSY = "Server: too many login attempts right now, please try again later";
+
+    public static final String SENDING_TOO_FAST =
+            "Server: you are sending messages too fast, some of them were not delivered";
+
+    public static final String TOO_MANY_LOGIN_ATTEMPTS = "Server: too many login attempts, please wait a minute";
+
     public static final String NEW_USER_HELP = """
             /register {login} {password} {username} – registration
             /auth {login} {password} – authentication
@@ -17,13 +27,20 @@ public class ServerMessages {
             Commands list (put a '/' before the name):
             - register {login} {password} {username} – registration
             - auth {login} {password} – authentication
-            - w {username} – private message
+            - w {username} {message} – private message
             - exit – exit (for client)
             - shutdown – stop the server (for admin)
-            - ban – ban user
-            - ban {time in minutes} – ban user for some time
+            - kick {username} – disconnect user (for admin)
+            - ban {username} – ban user (for admin)
+            - ban {username} {time in minutes} – ban user for some time (for admin)
+            - unban {username} – unban user (for admin)
             - activelist – active clients list
-            - changenick – change nickname (for admin)
+            - join {room} – join a room and send your messages there
+            - leave {room} – leave a room (the current one by default)
+            - rooms – list of rooms
+            - history {count} – recent messages of the current room (20 by default, up to 100)
+            - changenick {old username} {new username} – change nickname (for admin)
+            - help – this list
             """;
 
     private static final String INCORRECT_COMMAND_FORMAT = "Server: incorrect '%s' command format";
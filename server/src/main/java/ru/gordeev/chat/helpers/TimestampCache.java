@@ -0,0 +1,91 @@
+package ru.gordeev.chat.helpers;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Supplies the "[yyyy-MM-dd HH:mm:ss] " prefix of outgoing messages.
+ *
+ * Messages only carry second resolution, so the formatted prefix is cached
+ * and rebuilt at most once per second; within a second every call returns
+ * the same byte array without allocating.
+ */
+public final class TimestampCache {
+
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final TimestampCache SHARED = new TimestampCache(Clock.systemDefaultZone());
+
+    private final Clock clock;
+    private volatile Stamp current = new Stamp(Long.MIN_VALUE, new byte[0]);
+
+    public TimestampCache(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * The instance used for all outgoing messages, backed by the system clock.
+     */
+    public static TimestampCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns the prefix for the current second as US-ASCII bytes. The array
+     * is shared and must not be modified.
+     */
+    public byte[] prefix() {
+        return stamp().getPrefix();
+    }
+
+    /**
+     * Returns the current second along with its prefix, for encodings that
+     * carry the time as a number.
+     */
+    public Stamp stamp() {
+        long epochSecond = Math.floorDiv(clock.millis(), 1000L);
+        Stamp stamp = current;
+        if (stamp.epochSecond != epochSecond) {
+            // Several threads may rebuild the same second concurrently; any of the results is fine
+            stamp = new Stamp(epochSecond, format(epochSecond));
+            current = stamp;
+        }
+        return stamp;
+    }
+
+    /**
+     * Formats the prefix for the given moment, e.g. for a message loaded
+     * from the history. Not cached.
+     */
+    public static String format(LocalDateTime dateTime) {
+        return "[" + FORMATTER.format(dateTime) + "] ";
+    }
+
+    private byte[] format(long epochSecond) {
+        LocalDateTime dateTime = LocalDateTime.ofInstant(Instant.ofEpochSecond(epochSecond), clock.getZone());
+        return format(dateTime).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public static final class Stamp {
+        private final long epochSecond;
+        private final byte[] prefix;
+
+        private Stamp(long epochSecond, byte[] prefix) {
+            this.epochSecond = epochSecond;
+            this.prefix = prefix;
+        }
+
+        public long getEpochSecond() {
+            return epochSecond;
+        }
+
+        /**
+         * @return the shared prefix bytes, must not be modified
+         */
+        public byte[] getPrefix() {
+            return prefix;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package ru.gordeev.chat.helpers;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to virtual threads without compiling against a JDK that has them.
+ * The project targets an older language level, so the Thread.Builder API
+ * is looked up reflectively at runtime.
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() {}
+
+    /**
+     * Creates a factory for virtual threads named {@code prefix0}, {@code prefix1}, ...
+     *
+     * @param prefix the thread name prefix
+     * @return the factory, or null if the running JDK cannot create virtual threads
+     */
+    public static ThreadFactory factory(String prefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package ru.gordeev.chat.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonically increasing count. Updates from many threads don't
+ * contend: each of them adds to its own cell of a LongAdder.
+ */
+public final class Counter {
+
+    private final LongAdder count = new LongAdder();
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(long amount) {
+        count.add(amount);
+    }
+
+    public long get() {
+        return count.sum();
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(get());
+    }
+}
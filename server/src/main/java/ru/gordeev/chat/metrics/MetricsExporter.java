@@ -0,0 +1,163 @@
+package ru.gordeev.chat.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ru.gordeev.chat.config.ServerConfig;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Exposes a registry through JMX, as the ru.gordeev.chat:type=Metrics
+ * bean, and over HTTP: GET /metrics returns the Prometheus text format.
+ * The HTTP endpoint listens on the loopback interface by default and is
+ * served by a single daemon thread, away from the chat threads.
+ *
+ * Neither is essential to the chat: failing to start them is logged and
+ * the server runs without them.
+ */
+public class MetricsExporter {
+
+    public static final String OBJECT_NAME = "ru.gordeev.chat:type=Metrics";
+
+    private final Logger logger;
+    private final MetricsRegistry registry;
+    private final boolean jmxEnabled;
+    private final boolean httpEnabled;
+    private final String host;
+    private final int port;
+    private ObjectName objectName;
+    private HttpServer httpServer;
+    private ExecutorService httpExecutor;
+
+    /**
+     * @param port the port of the HTTP endpoint, 0 for any free port
+     */
+    public MetricsExporter(MetricsRegistry registry, boolean jmxEnabled, boolean httpEnabled, String host, int port) {
+        this.logger = LogManager.getLogger(MetricsExporter.class);
+        this.registry = registry;
+        this.jmxEnabled = jmxEnabled;
+        this.httpEnabled = httpEnabled;
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Reads the chat.metrics.jmx and chat.metrics.http switches (both on by
+     * default) and the chat.metrics.host and chat.metrics.port of the
+     * endpoint (127.0.0.1:9404). chat.metrics.enabled=false turns both off.
+     */
+    public static MetricsExporter fromConfig(ServerConfig config, MetricsRegistry registry) {
+        boolean enabled = config.getBoolean("chat.metrics.enabled", true);
+        return new MetricsExporter(registry,
+                enabled && config.getBoolean("chat.metrics.jmx", true),
+                enabled && config.getBoolean("chat.metrics.http", true),
+                config.getString("chat.metrics.host", "127.0.0.1"),
+                config.getInt("chat.metrics.port", 9404));
+    }
+
+    public synchronized void start() {
+        if (jmxEnabled) {
+            registerMBean();
+        }
+        if (httpEnabled) {
+            startHttp();
+        }
+    }
+
+    public synchronized void stop() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (InstanceNotFoundException e) {
+                // Replaced by another server in the same JVM and already unregistered
+            } catch (JMException e) {
+                logger.warn("Error while unregistering the metrics bean", e);
+            }
+            objectName = null;
+        }
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpExecutor.shutdownNow();
+            httpServer = null;
+        }
+    }
+
+    /**
+     * @return the port the HTTP endpoint listens on, or -1 if it isn't running
+     */
+    public synchronized int getPort() {
+        return httpServer == null ? -1 : httpServer.getAddress().getPort();
+    }
+
+    private void registerMBean() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            if (mBeanServer.isRegistered(name)) {
+                mBeanServer.unregisterMBean(name);
+            }
+            mBeanServer.registerMBean(new MetricsMBean(registry), name);
+            objectName = name;
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalStateException(e);
+        } catch (JMException e) {
+            logger.warn("Error while registering the metrics bean", e);
+        }
+    }
+
+    private void startHttp() {
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+            server.createContext("/metrics", this::handle);
+            httpExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics-http");
+                thread.setDaemon(true);
+                return thread;
+            });
+            server.setExecutor(httpExecutor);
+            server.start();
+            httpServer = server;
+            logger.info("Metrics are served at http://{}:{}/metrics", host, server.getAddress().getPort());
+        } catch (IOException e) {
+            logger.warn("Error while starting the metrics endpoint on {}:{}, serving metrics through JMX only",
+                    host, port, e);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            StringBuilder text = new StringBuilder(8192);
+            registry.writeText(text);
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Error while serving metrics", e);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package ru.gordeev.chat.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shows the registry as read-only JMX attributes: one per counter and
+ * gauge, and count, p50, p99 and max per histogram, e.g.
+ * chat_auth_latency_micros.p99. The attribute set follows the registry,
+ * so statements first run after the bean was registered show up too.
+ */
+class MetricsMBean implements DynamicMBean {
+
+    private final MetricsRegistry registry;
+
+    MetricsMBean(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = values().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Long> values = values();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Long value = values.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String name : values().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+        }
+        return new MBeanInfo(MetricsMBean.class.getName(), "Chat server metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0],
+                new MBeanNotificationInfo[0]);
+    }
+
+    private Map<String, Long> values() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (MetricsRegistry.Metric metric : registry.snapshot()) {
+            if (metric.source instanceof Histogram histogram) {
+                long[] percentiles = histogram.getPercentiles(50, 99);
+                values.put(metric.key() + ".count", histogram.getCount());
+                values.put(metric.key() + ".p50", percentiles[0]);
+                values.put(metric.key() + ".p99", percentiles[1]);
+                values.put(metric.key() + ".max", histogram.getMax());
+            } else {
+                values.put(metric.key(), metric.value());
+            }
+        }
+        return values;
+    }
+}
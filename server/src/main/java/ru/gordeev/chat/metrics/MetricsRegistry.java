@@ -0,0 +1,183 @@
+package ru.gordeev.chat.metrics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * The named instruments of the server: counters, gauges and histograms,
+ * each with an optional label. Instruments are created once and then
+ * updated without going through the registry, so the registry itself is
+ * never on a hot path.
+ *
+ * The counter and histogram methods return the instrument already
+ * registered under the name and label, if there is one. Registering a
+ * supplier or an existing histogram replaces the previous one, so the
+ * last server started in the JVM is the one reported.
+ */
+public final class MetricsRegistry {
+
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+    private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private final ConcurrentHashMap<String, Metric> metrics = new ConcurrentHashMap<>();
+
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    public Counter counter(String name, String help) {
+        return (Counter) metrics.computeIfAbsent(key(name, ""),
+                k -> new Metric(name, "", help, Type.COUNTER, new Counter())).source;
+    }
+
+    /**
+     * Reports a count kept elsewhere, e.g. in a LongAdder of the component.
+     */
+    public void counter(String name, String help, LongSupplier count) {
+        register(new Metric(name, "", help, Type.COUNTER, count));
+    }
+
+    public void gauge(String name, String help, LongSupplier value) {
+        register(new Metric(name, "", help, Type.GAUGE, value));
+    }
+
+    public Histogram histogram(String name, String help) {
+        return histogram(name, help, null, null);
+    }
+
+    /**
+     * @param label the name of the label, or null for none
+     */
+    public Histogram histogram(String name, String help, String label, String value) {
+        String labels = labels(label, value);
+        return (Histogram) metrics.computeIfAbsent(key(name, labels),
+                k -> new Metric(name, labels, help, Type.SUMMARY, new Histogram())).source;
+    }
+
+    public void register(String name, String help, Histogram histogram) {
+        register(new Metric(name, "", help, Type.SUMMARY, histogram));
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text format, the histograms as
+     * summaries with their maximum as a separate gauge.
+     */
+    public void writeText(StringBuilder out) {
+        List<Metric> sorted = snapshot();
+        String family = null;
+        for (Metric metric : sorted) {
+            if (!metric.name.equals(family)) {
+                family = metric.name;
+                header(out, metric.name, metric.help, metric.type.prometheusName);
+            }
+            switch (metric.type) {
+                case SUMMARY -> {
+                    Histogram histogram = (Histogram) metric.source;
+                    long[] values = histogram.getPercentiles(PERCENTILES);
+                    for (int i = 0; i < QUANTILES.length; i++) {
+                        sample(out, metric.name, withLabel(metric.labels, "quantile=\"" + QUANTILES[i] + '"'),
+                                values[i]);
+                    }
+                    sample(out, metric.name + "_sum", metric.labels, histogram.getSum());
+                    sample(out, metric.name + "_count", metric.labels, histogram.getCount());
+                }
+                case COUNTER -> sample(out, metric.name + "_total", metric.labels, metric.value());
+                case GAUGE -> sample(out, metric.name, metric.labels, metric.value());
+            }
+        }
+        family = null;
+        for (Metric metric : sorted) {
+            if (metric.type != Type.SUMMARY) {
+                continue;
+            }
+            if (!metric.name.equals(family)) {
+                family = metric.name;
+                header(out, metric.name + "_max", "The largest value of " + metric.name, "gauge");
+            }
+            sample(out, metric.name + "_max", metric.labels, ((Histogram) metric.source).getMax());
+        }
+    }
+
+    /**
+     * The metrics sorted by name and labels.
+     */
+    List<Metric> snapshot() {
+        List<Metric> sorted = new ArrayList<>(metrics.values());
+        sorted.sort(Comparator.comparing((Metric metric) -> metric.name).thenComparing(metric -> metric.labels));
+        return sorted;
+    }
+
+    private void register(Metric metric) {
+        metrics.put(key(metric.name, metric.labels), metric);
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ')
+                .append(help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static String withLabel(String labels, String label) {
+        return labels.isEmpty() ? label : labels + ',' + label;
+    }
+
+    private static String labels(String label, String value) {
+        if (label == null) {
+            return "";
+        }
+        return label + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + '"';
+    }
+
+    private static String key(String name, String labels) {
+        return labels.isEmpty() ? name : name + '{' + labels + '}';
+    }
+
+    enum Type {
+        COUNTER("counter"), GAUGE("gauge"), SUMMARY("summary");
+
+        private final String prometheusName;
+
+        Type(String prometheusName) {
+            this.prometheusName = prometheusName;
+        }
+    }
+
+    static final class Metric {
+        final String name;
+        final String labels;
+        final String help;
+        final Type type;
+        final Object source;
+
+        private Metric(String name, String labels, String help, Type type, Object source) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+            this.type = type;
+            this.source = source;
+        }
+
+        String key() {
+            return MetricsRegistry.key(name, labels);
+        }
+
+        /**
+         * The value of a counter or a gauge.
+         */
+        long value() {
+            return source instanceof Counter counter ? counter.get() : ((LongSupplier) source).getAsLong();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package ru.gordeev.chat.network;
+
+/**
+ * Frame types of the binary protocol. The first byte of every frame body
+ * holds the code; the fields that follow are listed with each type.
+ * Strings are a varint byte length followed by UTF-8, numbers are varints
+ * and times are seconds since the epoch.
+ */
+public enum BinaryFrameType {
+
+    // Client to server
+
+    /** login, password */
+    AUTH(0x01, 2),
+    /** login, password, username */
+    REGISTER(0x02, 3),
+    /** text, sent to the active room */
+    CHAT(0x03, 1),
+    /** recipient username, text */
+    PRIVATE(0x04, 2),
+    /** any other command line, e.g. "/history 50" */
+    COMMAND(0x05, 1),
+    /** no fields: the answer to a PING */
+    PONG(0x06, 0),
+
+    // Server to client
+
+    /** time, text */
+    SYSTEM(0x10, -1),
+    /** time, room id, sender user id, text */
+    ROOM_CHAT(0x11, -1),
+    /** time, sender user id, text */
+    PRIVATE_CHAT(0x12, -1),
+    /** signal code (see ControlSignal), argument */
+    CONTROL(0x13, -1),
+    /** user id, username: defines an id before its first use on the connection */
+    USER(0x14, -1),
+    /** room id, room name: defines an id before its first use on the connection */
+    ROOM(0x15, -1),
+    /** raw deflate data (sync flushed, window kept across frames) holding whole frames */
+    COMPRESSED(0x16, -1),
+    /** no fields: a heartbeat the client answers with a PONG */
+    PING(0x17, -1);
+
+    private static final BinaryFrameType[] BY_CODE = new BinaryFrameType[0x20];
+
+    static {
+        for (BinaryFrameType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    private final int code;
+    private final int inboundFields;
+
+    BinaryFrameType(int code, int inboundFields) {
+        this.code = code;
+        this.inboundFields = inboundFields;
+    }
+
+    public int code() {
+        return code;
+    }
+
+    /**
+     * @return the number of string fields of a client frame, -1 for server frames
+     */
+    int inboundFields() {
+        return inboundFields;
+    }
+
+    /**
+     * @return the type, or null for an unknown code
+     */
+    public static BinaryFrameType fromCode(int code) {
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+}
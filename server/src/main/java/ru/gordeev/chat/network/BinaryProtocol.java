@@ -0,0 +1,172 @@
+package ru.gordeev.chat.network;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The versioned binary protocol spoken next to the legacy writeUTF one.
+ *
+ * A binary client opens the connection with {@link #MAGIC} followed by one
+ * byte holding the highest version it supports and, since version 2, a byte
+ * of feature flags it asks for. The server answers with the magic, the
+ * version it picked (0 if none fits, then it closes) and, for version 2, the
+ * flags it accepted. From then on both sides exchange binary frames: a
+ * varint length, the type code (see BinaryFrameType) and the fields.
+ * Anything the server sent before the answer, i.e. the greeting, is in the
+ * legacy format.
+ *
+ * With {@link #FLAG_DEFLATE} accepted, the server may send COMPRESSED frames
+ * (see FrameCompressor). With {@link #FLAG_HEARTBEAT} accepted, the server
+ * sends a PING when the client has been silent for a while, and the client
+ * answers with a PONG.
+ *
+ * Legacy clients never send the magic: a writeUTF frame starting with its
+ * first byte would be longer than 49 KB.
+ */
+public final class BinaryProtocol {
+
+    public static final byte[] MAGIC = {(byte) 0xC3, 'C', 'H', 'T'};
+    public static final int VERSION = 2;
+    /** The first version with the flags byte in the handshake. */
+    public static final int FLAGS_VERSION = 2;
+    public static final int FLAG_DEFLATE = 0x01;
+    public static final int FLAG_HEARTBEAT = 0x02;
+    public static final int MAX_FRAME_LENGTH = 1024 * 1024;
+    /** The longest varint length prefix of a frame. */
+    public static final int MAX_HEADER_LENGTH = 3;
+
+    private BinaryProtocol() {}
+
+    /**
+     * @return the version to use with a client supporting versions up to clientVersion, or 0 if none
+     */
+    public static int negotiate(int clientVersion) {
+        return Math.min(clientVersion, VERSION);
+    }
+
+    /**
+     * @return the flags the server accepts out of the ones the client asked for
+     */
+    public static int negotiateFlags(int clientFlags, CompressionSettings compression) {
+        int accepted = clientFlags & FLAG_HEARTBEAT;
+        if (compression.isEnabled()) {
+            accepted |= clientFlags & FLAG_DEFLATE;
+        }
+        return accepted;
+    }
+
+    /**
+     * @return true if the negotiated version and flags turn heartbeats on
+     */
+    static boolean isHeartbeatEnabled(int version, int flags) {
+        return version >= FLAGS_VERSION && (flags & FLAG_HEARTBEAT) != 0;
+    }
+
+    /**
+     * @return the length of the handshake of a client supporting versions up to clientVersion
+     */
+    static int handshakeLength(int clientVersion) {
+        return MAGIC.length + (clientVersion >= FLAGS_VERSION ? 2 : 1);
+    }
+
+    public static Frame acknowledgement(int version, int flags) {
+        byte[] bytes = Arrays.copyOf(MAGIC, MAGIC.length + (version >= FLAGS_VERSION ? 2 : 1));
+        bytes[MAGIC.length] = (byte) version;
+        if (version >= FLAGS_VERSION) {
+            bytes[MAGIC.length + 1] = (byte) flags;
+        }
+        return Frame.wrap(bytes);
+    }
+
+    /**
+     * Checks whether the buffer starts with the magic.
+     *
+     * @return true or false, or null if there are not enough bytes to tell yet
+     */
+    static Boolean startsWithMagic(ByteBuffer buffer) {
+        int position = buffer.position();
+        if (buffer.remaining() > 0 && buffer.get(position) != MAGIC[0]) {
+            return false;
+        }
+        if (buffer.remaining() < MAGIC.length + 1) {
+            return null;
+        }
+        for (int i = 1; i < MAGIC.length; i++) {
+            if (buffer.get(position + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * @return the position right after the varint
+     */
+    public static int putVarint(byte[] target, int offset, long value) {
+        while ((value & ~0x7FL) != 0) {
+            target[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        target[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * Reads the length prefix of a frame from a stream.
+     *
+     * @throws ProtocolException if the length is malformed or exceeds MAX_FRAME_LENGTH
+     */
+    static int readFrameLength(DataInput in) throws IOException {
+        int length = 0;
+        for (int shift = 0; shift < 7 * MAX_HEADER_LENGTH; shift += 7) {
+            byte b = in.readByte();
+            length |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return checkFrameLength(length);
+            }
+        }
+        throw new ProtocolException("Malformed frame length");
+    }
+
+    /**
+     * Reads the length prefix of a frame at the buffer position without moving it.
+     *
+     * @return the length of the header and the frame length packed as
+     *         {@code headerLength << 32 | frameLength}, or -1 if the header is incomplete
+     * @throws ProtocolException if the length is malformed or exceeds MAX_FRAME_LENGTH
+     */
+    static long peekFrameLength(ByteBuffer buffer) throws ProtocolException {
+        int position = buffer.position();
+        int length = 0;
+        for (int i = 0; i < MAX_HEADER_LENGTH; i++) {
+            if (position + i >= buffer.limit()) {
+                return -1;
+            }
+            byte b = buffer.get(position + i);
+            length |= (b & 0x7F) << (7 * i);
+            if (b >= 0) {
+                return ((long) (i + 1) << 32) | checkFrameLength(length);
+            }
+        }
+        throw new ProtocolException("Malformed frame length");
+    }
+
+    private static int checkFrameLength(int length) throws ProtocolException {
+        if (length < 1 || length > MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Invalid frame length: " + length);
+        }
+        return length;
+    }
+}
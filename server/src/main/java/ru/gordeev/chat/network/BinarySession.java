@@ -0,0 +1,68 @@
+package ru.gordeev.chat.network;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The binary protocol state of one connection: which user and room ids the
+ * client has already been told the names of. A frame referring to an id the
+ * client may not know is preceded by a USER or ROOM definition.
+ *
+ * The known ids are kept in small direct-mapped caches, so the state stays
+ * a few kilobytes no matter how many users there are; an id pushed out of
+ * its slot is simply defined again when it is used the next time.
+ */
+final class BinarySession {
+
+    private static final int USER_SLOTS = 512;
+    private static final int ROOM_SLOTS = 64;
+
+    private final int version;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int[] knownUsers = new int[USER_SLOTS];
+    private final int[] knownRooms = new int[ROOM_SLOTS];
+
+    BinarySession(int version) {
+        this.version = version;
+    }
+
+    int getVersion() {
+        return version;
+    }
+
+    /**
+     * Queues the binary encoding of the frame along with the definitions it
+     * needs, as a single entry, so a slow consumer policy drops them together.
+     * A dropped entry may have held definitions the client still needs, so
+     * after a drop every id is defined again.
+     *
+     * A lock rather than a monitor: under the BLOCK policy the offer waits
+     * for room, and a virtual thread must not be pinned while it does.
+     *
+     * @return false if the queue is full
+     */
+    boolean offer(OutboundQueue queue, Frame frame) {
+        lock.lock();
+        try {
+            if (queue.dropOldestIfFull()) {
+                Arrays.fill(knownRooms, 0);
+                Arrays.fill(knownUsers, 0);
+            }
+            Frame binary = frame.forBinary();
+            Frame entry = binary;
+            int userId = binary.getUserId();
+            if (userId != 0 && knownUsers[userId & (USER_SLOTS - 1)] != userId) {
+                entry = Frame.concat(Frame.userDefinition(userId, binary.getUserName()), entry);
+                knownUsers[userId & (USER_SLOTS - 1)] = userId;
+            }
+            int roomId = binary.getRoomId();
+            if (roomId != 0 && knownRooms[roomId & (ROOM_SLOTS - 1)] != roomId) {
+                entry = Frame.concat(Frame.roomDefinition(roomId, binary.getRoomName()), entry);
+                knownRooms[roomId & (ROOM_SLOTS - 1)] = roomId;
+            }
+            return queue.offer(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
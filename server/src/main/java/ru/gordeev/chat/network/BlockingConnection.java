@@ -0,0 +1,280 @@
+package ru.gordeev.chat.network;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A connection served by a dedicated thread that blocks on the socket
+ * input stream.
+ *
+ * Outgoing frames are put into a bounded OutboundQueue and written by a
+ * writer task running on a shared executor, so senders never block on the
+ * socket. The writer drains everything queued so far into a buffered
+ * stream and flushes once per batch.
+ *
+ * The first bytes sent by the client decide the protocol: binary clients
+ * open with the BinaryProtocol magic, anything else is read as writeUTF
+ * frames. Binary clients may ask for compression, which is then applied
+ * by the writer to every batch after the acknowledgement of the handshake.
+ */
+public class BlockingConnection implements ClientConnection {
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 8 * 1024;
+
+    private final Logger logger;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final OutboundQueue outboundQueue;
+    private final CompressionSettings compressionSettings;
+    private final Executor writerExecutor;
+    private final Runnable writerTask = this::writeQueuedFrames;
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile boolean closeRequested;
+    private volatile BinarySession binarySession;
+    private volatile Frame compressionStart;
+    private volatile boolean heartbeatEnabled;
+    private volatile FrameCompressor compressor;
+
+    public BlockingConnection(Socket socket, OutboundSettings outboundSettings, Executor writerExecutor) throws IOException {
+        this.logger = LogManager.getLogger(BlockingConnection.class);
+        this.socket = socket;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), READ_BUFFER_SIZE));
+        this.out = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE);
+        this.outboundQueue = new OutboundQueue(outboundSettings);
+        this.compressionSettings = outboundSettings.getCompression();
+        this.writerExecutor = writerExecutor;
+    }
+
+    /**
+     * Starts the reader thread that feeds incoming frames to the listener.
+     *
+     * @param listener      the receiver of connection events
+     * @param threadFactory the factory creating the reader thread
+     */
+    public void start(ConnectionListener listener, ThreadFactory threadFactory) {
+        threadFactory.newThread(() -> readMessages(listener)).start();
+    }
+
+    private void readMessages(ConnectionListener listener) {
+        try {
+            listener.onConnected();
+            if (readBinaryHandshake(listener)) {
+                if (binarySession == null) {
+                    // No common version: the acknowledgement says so, then the connection is closed
+                    return;
+                }
+                while (listener.onFrame(readBinaryFrame())) {
+                    // keep reading until the listener asks to stop
+                }
+            } else {
+                while (listener.onMessage(in.readUTF())) {
+                    // keep reading until the listener asks to stop
+                }
+            }
+        } catch (EOFException e) {
+            logger.debug("Client {} closed the connection (EOF)", getRemoteAddress());
+        } catch (ProtocolException e) {
+            logger.warn("Client {} sent a malformed frame: {}", getRemoteAddress(), e.getMessage());
+        } catch (IOException e) {
+            if (!closeRequested) {
+                logger.error("Error while reading from client {}", getRemoteAddress(), e);
+            }
+        } finally {
+            close();
+            listener.onDisconnected();
+        }
+    }
+
+    /**
+     * Checks whether the client opens with the binary protocol magic and
+     * answers it. Otherwise the peeked bytes are put back for readUTF.
+     *
+     * @return true if the client asked for the binary protocol
+     */
+    private boolean readBinaryHandshake(ConnectionListener listener) throws IOException {
+        byte[] magic = new byte[BinaryProtocol.MAGIC.length];
+        in.mark(magic.length);
+        magic[0] = in.readByte();
+        if (magic[0] != BinaryProtocol.MAGIC[0]) {
+            in.reset();
+            return false;
+        }
+        in.readFully(magic, 1, magic.length - 1);
+        if (!Arrays.equals(magic, BinaryProtocol.MAGIC)) {
+            in.reset();
+            return false;
+        }
+
+        int clientVersion = in.readUnsignedByte();
+        int clientFlags = clientVersion >= BinaryProtocol.FLAGS_VERSION ? in.readUnsignedByte() : 0;
+        int version = BinaryProtocol.negotiate(clientVersion);
+        int flags = BinaryProtocol.negotiateFlags(clientFlags, compressionSettings);
+        Frame acknowledgement = BinaryProtocol.acknowledgement(version, flags);
+        if (version >= BinaryProtocol.FLAGS_VERSION && (flags & BinaryProtocol.FLAG_DEFLATE) != 0) {
+            compressionStart = acknowledgement;
+        }
+        heartbeatEnabled = BinaryProtocol.isHeartbeatEnabled(version, flags);
+        send(acknowledgement);
+        if (version > 0) {
+            binarySession = new BinarySession(version);
+            if (heartbeatEnabled) {
+                listener.onHeartbeatEnabled();
+            }
+        }
+        return true;
+    }
+
+    private InboundFrame readBinaryFrame() throws IOException {
+        int length = BinaryProtocol.readFrameLength(in);
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return InboundFrame.decode(body, 0, length);
+    }
+
+    @Override
+    public void send(Frame frame) {
+        if (closeRequested) {
+            return;
+        }
+        BinarySession session = binarySession;
+        boolean queued = session != null ? session.offer(outboundQueue, frame) : outboundQueue.offer(frame);
+        if (!queued) {
+            logger.warn("Client {} doesn't read its messages, disconnecting", getRemoteAddress());
+            closeNow();
+            return;
+        }
+        scheduleWriter();
+    }
+
+    /**
+     * Requests a graceful close: frames queued so far are written out
+     * first, then the socket is closed.
+     */
+    @Override
+    public void close() {
+        if (!closeRequested) {
+            closeRequested = true;
+            scheduleWriter();
+        }
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return String.valueOf(socket.getRemoteSocketAddress());
+    }
+
+    @Override
+    public String getRemoteHost() {
+        return socket.getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public boolean isHeartbeatEnabled() {
+        return heartbeatEnabled;
+    }
+
+    @Override
+    public int getQueuedFrames() {
+        return outboundQueue.size();
+    }
+
+    @Override
+    public void abort() {
+        closeNow();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    private void scheduleWriter() {
+        if (writing.compareAndSet(false, true)) {
+            try {
+                writerExecutor.execute(writerTask);
+            } catch (RejectedExecutionException e) {
+                writing.set(false);
+                closeNow();
+            }
+        }
+    }
+
+    private void writeQueuedFrames() {
+        try {
+            int written = 0;
+            Frame frame;
+            while ((frame = outboundQueue.poll()) != null) {
+                FrameCompressor currentCompressor = compressor;
+                if (currentCompressor != null) {
+                    currentCompressor.add(frame);
+                    if (currentCompressor.isFull()) {
+                        currentCompressor.writeTo(out);
+                    }
+                } else {
+                    frame.writeTo(out);
+                    if (frame == compressionStart) {
+                        // The client inflates everything after the acknowledgement of the handshake
+                        compressor = new FrameCompressor(compressionSettings);
+                    }
+                }
+                written++;
+            }
+            FrameCompressor currentCompressor = compressor;
+            if (currentCompressor != null && !currentCompressor.isEmpty()) {
+                currentCompressor.writeTo(out);
+            }
+            if (written > 0) {
+                out.flush();
+                outboundQueue.batchWritten(written);
+            }
+        } catch (IOException e) {
+            if (!closed.get()) {
+                logger.debug("Error while writing to client {}", getRemoteAddress(), e);
+            }
+            closeNow();
+        } finally {
+            writing.set(false);
+        }
+
+        if (!outboundQueue.isEmpty()) {
+            scheduleWriter();
+        } else if (closeRequested) {
+            closeNow();
+        }
+    }
+
+    private void closeNow() {
+        closeRequested = true;
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        outboundQueue.clear();
+        FrameCompressor currentCompressor = compressor;
+        if (currentCompressor != null) {
+            currentCompressor.close();
+        }
+
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.error(e);
+        }
+    }
+}
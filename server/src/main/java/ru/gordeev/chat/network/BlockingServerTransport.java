@@ -0,0 +1,95 @@
+package ru.gordeev.chat.network;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Function;
+
+/**
+ * The classic transport: a ServerSocket accept loop and one reader thread
+ * per accepted client. Outgoing frames are written by tasks on the writer
+ * executor.
+ */
+public class BlockingServerTransport implements ServerTransport {
+
+    private final Logger logger;
+    private final int port;
+    private final int backlog;
+    private final ThreadFactory readerThreadFactory;
+    private final Executor writerExecutor;
+    private final OutboundSettings outboundSettings;
+    private final Function<ClientConnection, ConnectionListener> listenerFactory;
+    private volatile ServerSocket serverSocket;
+
+    /**
+     * @param backlog the length of the queue of connections not accepted yet
+     */
+    public BlockingServerTransport(int port,
+                                   int backlog,
+                                   ThreadFactory readerThreadFactory,
+                                   Executor writerExecutor,
+                                   OutboundSettings outboundSettings,
+                                   Function<ClientConnection, ConnectionListener> listenerFactory) {
+        this.logger = LogManager.getLogger(BlockingServerTransport.class);
+        this.port = port;
+        this.backlog = backlog;
+        this.readerThreadFactory = readerThreadFactory;
+        this.writerExecutor = writerExecutor;
+        this.outboundSettings = outboundSettings;
+        this.listenerFactory = listenerFactory;
+    }
+
+    @Override
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(port, backlog);
+        logger.info("Blocking transport is listening at port {}", port);
+
+        while (!serverSocket.isClosed()) {
+            Socket clientSocket;
+            try {
+                clientSocket = serverSocket.accept();
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) {
+                    break;
+                }
+                throw e;
+            }
+            connectUser(clientSocket);
+        }
+    }
+
+    private void connectUser(Socket clientSocket) {
+        try {
+            BlockingConnection connection = new BlockingConnection(clientSocket, outboundSettings, writerExecutor);
+            connection.start(listenerFactory.apply(connection), readerThreadFactory);
+        } catch (IOException e) {
+            logger.error("Failed to connect user", e);
+        }
+    }
+
+    @Override
+    public void stopAccepting() {
+        try {
+            if (serverSocket != null && !serverSocket.isClosed()) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            logger.error("Error closing server socket", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        stopAccepting();
+        // Idle pooled writer threads would otherwise keep the JVM alive for a minute
+        if (writerExecutor instanceof ExecutorService executorService) {
+            executorService.shutdown();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package ru.gordeev.chat.network;
+
+/**
+ * Transport-level view of a single client connection. ClientHandler talks
+ * to the client only through this interface, so the same chat logic runs
+ * on top of the blocking and the non-blocking transports.
+ */
+public interface ClientConnection {
+
+    /**
+     * Queues an encoded frame for the client. The frame may be shared with
+     * other connections.
+     *
+     * @param frame the frame to send
+     */
+    void send(Frame frame);
+
+    /**
+     * Closes the underlying channel once the frames queued so far have been
+     * written. Safe to call more than once.
+     */
+    void close();
+
+    /**
+     * Closes the underlying channel right away, dropping the frames not
+     * written yet.
+     */
+    void abort();
+
+    /**
+     * @return true once the channel is closed
+     */
+    boolean isClosed();
+
+    String getRemoteAddress();
+
+    /**
+     * @return the address of the client without the port, e.g. for limits per source address
+     */
+    String getRemoteHost();
+
+    /**
+     * @return true if the client asked for heartbeats in the handshake
+     */
+    default boolean isHeartbeatEnabled() {
+        return false;
+    }
+
+    /**
+     * @return the number of frames waiting to be written to the client
+     */
+    default int getQueuedFrames() {
+        return 0;
+    }
+}
@@ -0,0 +1,59 @@
+package ru.gordeev.chat.network;
+
+import ru.gordeev.chat.config.ServerConfig;
+
+import java.util.zip.Deflater;
+
+/**
+ * Compression of the outbound stream of binary protocol connections that
+ * ask for it in the handshake.
+ */
+public class CompressionSettings {
+
+    private final boolean enabled;
+    private final int threshold;
+    private final int level;
+    private final CompressionStats stats = new CompressionStats();
+
+    public CompressionSettings(boolean enabled, int threshold, int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be from 1 to 9: " + level);
+        }
+        this.enabled = enabled;
+        this.threshold = threshold;
+        this.level = level;
+    }
+
+    /**
+     * Reads the settings from the chat.compression.enabled,
+     * chat.compression.threshold and chat.compression.level keys.
+     */
+    public static CompressionSettings fromConfig(ServerConfig config) {
+        return new CompressionSettings(
+                config.getBoolean("chat.compression.enabled", true),
+                config.getInt("chat.compression.threshold", 512),
+                config.getInt("chat.compression.level", Deflater.BEST_SPEED));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Write batches smaller than this number of bytes are sent uncompressed.
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Counters shared by all connections created with these settings.
+     */
+    public CompressionStats getStats() {
+        return stats;
+    }
+}
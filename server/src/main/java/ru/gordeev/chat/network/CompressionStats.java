@@ -0,0 +1,87 @@
+package ru.gordeev.chat.network;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-wide counters of outbound compression.
+ */
+public class CompressionStats {
+
+    private final LongAdder batchesCompressed = new LongAdder();
+    private final LongAdder framesCompressed = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder batchesUncompressed = new LongAdder();
+    private final LongAdder bytesUncompressed = new LongAdder();
+
+    void batchCompressed(int frames, int inputBytes, int outputBytes, long nanos) {
+        batchesCompressed.increment();
+        framesCompressed.add(frames);
+        bytesIn.add(inputBytes);
+        bytesOut.add(outputBytes);
+        compressNanos.add(nanos);
+    }
+
+    void batchUncompressed(int bytes) {
+        batchesUncompressed.increment();
+        bytesUncompressed.add(bytes);
+    }
+
+    public long getBatchesCompressed() {
+        return batchesCompressed.sum();
+    }
+
+    public long getFramesCompressed() {
+        return framesCompressed.sum();
+    }
+
+    /**
+     * Bytes of frames before compression.
+     */
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    /**
+     * Bytes of the compressed frames written instead.
+     */
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /**
+     * Compressed size relative to the original one, e.g. 0.25; 1 if nothing was compressed.
+     */
+    public double getRatio() {
+        long in = getBytesIn();
+        return in == 0 ? 1 : (double) getBytesOut() / in;
+    }
+
+    /**
+     * Average time spent compressing, per message.
+     */
+    public long getNanosPerFrame() {
+        long frames = getFramesCompressed();
+        return frames == 0 ? 0 : compressNanos.sum() / frames;
+    }
+
+    /**
+     * Batches of compressing connections sent as they are because they were below the threshold.
+     */
+    public long getBatchesUncompressed() {
+        return batchesUncompressed.sum();
+    }
+
+    public long getBytesUncompressed() {
+        return bytesUncompressed.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CompressionStats{batches=%d, frames=%d, in=%d, out=%d, ratio=%.3f, nanosPerFrame=%d, "
+                        + "uncompressedBatches=%d, uncompressedBytes=%d}",
+                getBatchesCompressed(), getFramesCompressed(), getBytesIn(), getBytesOut(), getRatio(),
+                getNanosPerFrame(), getBatchesUncompressed(), getBytesUncompressed());
+    }
+}
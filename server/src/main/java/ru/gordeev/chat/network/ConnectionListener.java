@@ -0,0 +1,41 @@
+package ru.gordeev.chat.network;
+
+/**
+ * Receives events from a ClientConnection. Transports guarantee that the
+ * callbacks of one connection are never invoked concurrently.
+ */
+public interface ConnectionListener {
+
+    /**
+     * Called once, before any message is delivered.
+     */
+    void onConnected();
+
+    /**
+     * Called for every frame received from the client.
+     *
+     * @param message the decoded message
+     * @return false if the connection should be closed
+     */
+    boolean onMessage(String message);
+
+    /**
+     * Called for every frame received from a client that negotiated the
+     * binary protocol, instead of onMessage.
+     *
+     * @param frame the decoded frame
+     * @return false if the connection should be closed
+     */
+    boolean onFrame(InboundFrame frame);
+
+    /**
+     * Called when the client asked for heartbeats in the binary handshake,
+     * before its first frame is delivered.
+     */
+    void onHeartbeatEnabled();
+
+    /**
+     * Called once when the connection has been closed by either side.
+     */
+    void onDisconnected();
+}
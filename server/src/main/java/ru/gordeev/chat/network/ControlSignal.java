@@ -0,0 +1,34 @@
+package ru.gordeev.chat.network;
+
+/**
+ * Signals that end the session of a client. Legacy clients receive them as
+ * text commands (e.g. "/kicked") and look for them in every message;
+ * binary clients get a CONTROL frame with the code.
+ */
+public enum ControlSignal {
+
+    KICKED(1, "/kicked"),
+    BANNED(2, "/banned"),
+    TEMP_BANNED(3, "/tempBanned"),
+    INACTIVE(4, "/inactive"),
+    SHUTDOWN(5, "/shutdown");
+
+    private final int code;
+    private final String command;
+
+    ControlSignal(int code, String command) {
+        this.code = code;
+        this.command = command;
+    }
+
+    public int code() {
+        return code;
+    }
+
+    /**
+     * @return the text sent to legacy clients
+     */
+    public String command() {
+        return command;
+    }
+}
@@ -0,0 +1,292 @@
+package ru.gordeev.chat.network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An immutable, fully encoded frame (length header included) ready to be
+ * written to any number of connections. A broadcast encodes the message
+ * once and hands the same Frame to every recipient; writers only copy its
+ * bytes into their socket buffers.
+ *
+ * Frames built from a message description (system, chat, private, control)
+ * hold the legacy writeUTF encoding and build the binary protocol encoding
+ * on first use, so it is also shared by all binary recipients. Wrapped frames
+ * are written as they are to every connection.
+ */
+public final class Frame {
+
+    /**
+     * The text legacy clients receive as a heartbeat, without a timestamp.
+     */
+    public static final String HEARTBEAT_REQUEST = "/ping";
+    private static final Frame HEARTBEAT = createHeartbeat();
+
+    private final byte[] bytes;
+    private final BinaryFrameType binaryType;
+    private final long epochSecond;
+    private final int code;
+    private final String roomName;
+    private final String userName;
+    // Ids of the names, set on binary encodings only
+    private final int roomId;
+    private final int userId;
+    private final String text;
+    private volatile Frame binary;
+
+    private Frame(byte[] bytes) {
+        this(bytes, null, 0, 0, null, null, null);
+    }
+
+    private Frame(byte[] bytes, BinaryFrameType binaryType, long epochSecond, int code,
+                  String roomName, String userName, String text) {
+        this.bytes = bytes;
+        this.binaryType = binaryType;
+        this.epochSecond = epochSecond;
+        this.code = code;
+        this.roomName = roomName;
+        this.userName = userName;
+        this.text = text;
+        this.roomId = 0;
+        this.userId = 0;
+    }
+
+    /**
+     * A binary encoding, along with the ids it refers to and their names.
+     */
+    private Frame(byte[] bytes, int roomId, String roomName, int userId, String userName) {
+        this.bytes = bytes;
+        this.binaryType = null;
+        this.epochSecond = 0;
+        this.code = 0;
+        this.roomName = roomName;
+        this.userName = userName;
+        this.text = null;
+        this.roomId = roomId;
+        this.userId = userId;
+    }
+
+    /**
+     * Encodes the message into a writeUTF-compatible frame. Binary clients
+     * receive it as a system message without a time.
+     *
+     * @throws UTFDataFormatException if the encoded message exceeds 65535 bytes
+     */
+    public static Frame of(String message) throws UTFDataFormatException {
+        return new Frame(FrameCodec.encode(message), BinaryFrameType.SYSTEM, 0, 0, null, null, message);
+    }
+
+    /**
+     * A server message. Legacy clients receive the prefix (single-byte
+     * characters only, e.g. the formatted time) followed by the message.
+     *
+     * @throws UTFDataFormatException if the encoded payload exceeds 65535 bytes
+     */
+    public static Frame system(byte[] asciiPrefix, long epochSecond, String message) throws UTFDataFormatException {
+        return new Frame(FrameCodec.encode(asciiPrefix, message), BinaryFrameType.SYSTEM,
+                epochSecond, 0, null, null, message);
+    }
+
+    /**
+     * A message sent by a user to a room.
+     *
+     * @param legacyMessage the message as legacy clients see it, without the prefix
+     * @throws UTFDataFormatException if the encoded payload exceeds 65535 bytes
+     */
+    public static Frame chat(byte[] asciiPrefix, long epochSecond, String legacyMessage,
+                             String room, String sender, String text) throws UTFDataFormatException {
+        return new Frame(FrameCodec.encode(asciiPrefix, legacyMessage), BinaryFrameType.ROOM_CHAT,
+                epochSecond, 0, room, sender, text);
+    }
+
+    /**
+     * A private message received from a user.
+     *
+     * @param legacyMessage the message as legacy clients see it, without the prefix
+     * @throws UTFDataFormatException if the encoded payload exceeds 65535 bytes
+     */
+    public static Frame privateMessage(byte[] asciiPrefix, long epochSecond, String legacyMessage,
+                                       String sender, String text) throws UTFDataFormatException {
+        return new Frame(FrameCodec.encode(asciiPrefix, legacyMessage), BinaryFrameType.PRIVATE_CHAT,
+                epochSecond, 0, null, sender, text);
+    }
+
+    /**
+     * A signal ending the session. Legacy clients receive its command,
+     * followed by the argument if there is one.
+     *
+     * @throws UTFDataFormatException if the encoded payload exceeds 65535 bytes
+     */
+    public static Frame control(byte[] asciiPrefix, ControlSignal signal, String argument)
+            throws UTFDataFormatException {
+        String command = argument.isEmpty() ? signal.command() : signal.command() + " " + argument;
+        return new Frame(FrameCodec.encode(asciiPrefix, command), BinaryFrameType.CONTROL,
+                0, signal.code(), null, null, argument);
+    }
+
+    /**
+     * @return the shared heartbeat frame: "/ping" for legacy clients and a
+     * PING frame for binary ones
+     */
+    public static Frame heartbeat() {
+        return HEARTBEAT;
+    }
+
+    private static Frame createHeartbeat() {
+        try {
+            return new Frame(FrameCodec.encode(HEARTBEAT_REQUEST), BinaryFrameType.PING, 0, 0, null, null, null);
+        } catch (UTFDataFormatException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Wraps an already encoded frame. The array must not be modified afterwards.
+     */
+    public static Frame wrap(byte[] encodedFrame) {
+        return new Frame(encodedFrame);
+    }
+
+    static Frame userDefinition(int userId, String userName) {
+        return wrap(new BinaryFrameBuilder(BinaryFrameType.USER).varint(userId).string(userName).build());
+    }
+
+    static Frame roomDefinition(int roomId, String roomName) {
+        return wrap(new BinaryFrameBuilder(BinaryFrameType.ROOM).varint(roomId).string(roomName).build());
+    }
+
+    /**
+     * Joins two frames into one, so they are queued, dropped and written together.
+     */
+    static Frame concat(Frame first, Frame second) {
+        byte[] joined = new byte[first.bytes.length + second.bytes.length];
+        first.copyTo(joined, 0);
+        second.copyTo(joined, first.bytes.length);
+        return wrap(joined);
+    }
+
+    /**
+     * @return the frame to write to binary protocol connections
+     */
+    public Frame forBinary() {
+        if (binaryType == null) {
+            return this;
+        }
+        Frame encoded = binary;
+        if (encoded == null) {
+            // Concurrent senders may encode the frame twice; either copy is fine, each carries its own ids
+            encoded = encodeBinary();
+            binary = encoded;
+        }
+        return encoded;
+    }
+
+    /**
+     * Builds the binary encoding. The names are turned into ids here, so
+     * frames only legacy clients receive never touch the id tables.
+     */
+    private Frame encodeBinary() {
+        int roomId = roomName != null ? NameIds.ROOMS.idOf(roomName) : 0;
+        int userId = userName != null ? NameIds.USERS.idOf(userName) : 0;
+        return new Frame(encodeBinary(roomId, userId), roomId, roomName, userId, userName);
+    }
+
+    private byte[] encodeBinary(int roomId, int userId) {
+        BinaryFrameBuilder builder = new BinaryFrameBuilder(binaryType);
+        switch (binaryType) {
+            case SYSTEM:
+                return builder.varint(epochSecond).string(text).build();
+            case ROOM_CHAT:
+                return builder.varint(epochSecond).varint(roomId).varint(userId).string(text).build();
+            case PRIVATE_CHAT:
+                return builder.varint(epochSecond).varint(userId).string(text).build();
+            case CONTROL:
+                return builder.varint(code).string(text).build();
+            case PING:
+                return builder.build();
+            default:
+                throw new IllegalStateException("Not an outbound frame type: " + binaryType);
+        }
+    }
+
+    int getRoomId() {
+        return roomId;
+    }
+
+    String getRoomName() {
+        return roomName;
+    }
+
+    int getUserId() {
+        return userId;
+    }
+
+    String getUserName() {
+        return userName;
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    /**
+     * Copies the encoded bytes into the buffer, heap or direct.
+     */
+    public void writeTo(ByteBuffer target) {
+        target.put(bytes);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+
+    void copyTo(byte[] target, int offset) {
+        System.arraycopy(bytes, 0, target, offset, bytes.length);
+    }
+
+    /**
+     * Assembles a binary protocol frame: the varint length followed by the
+     * type code and the fields.
+     */
+    static final class BinaryFrameBuilder {
+
+        private byte[] body = new byte[64];
+        private int length;
+
+        BinaryFrameBuilder(BinaryFrameType type) {
+            body[length++] = (byte) type.code();
+        }
+
+        BinaryFrameBuilder varint(long value) {
+            ensureCapacity(BinaryProtocol.varintSize(value));
+            length = BinaryProtocol.putVarint(body, length, value);
+            return this;
+        }
+
+        BinaryFrameBuilder string(String value) {
+            byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+            varint(encoded.length);
+            ensureCapacity(encoded.length);
+            System.arraycopy(encoded, 0, body, length, encoded.length);
+            length += encoded.length;
+            return this;
+        }
+
+        byte[] build() {
+            byte[] frame = new byte[BinaryProtocol.varintSize(length) + length];
+            int offset = BinaryProtocol.putVarint(frame, 0, length);
+            System.arraycopy(body, 0, frame, offset, length);
+            return frame;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > body.length) {
+                body = Arrays.copyOf(body, Math.max(body.length * 2, length + extra));
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package ru.gordeev.chat.network;
+
+import java.io.UTFDataFormatException;
+
+/**
+ * Encodes and decodes frames in the format produced by
+ * {@link java.io.DataOutputStream#writeUTF(String)}: a two-byte unsigned
+ * big-endian length followed by the string in modified UTF-8.
+ *
+ * Having the codec outside of the stream classes lets the non-blocking
+ * transport work on raw byte buffers while staying wire-compatible with
+ * the existing client.
+ */
+public final class FrameCodec {
+
+    public static final int HEADER_LENGTH = 2;
+    public static final int MAX_PAYLOAD_LENGTH = 65535;
+
+    private FrameCodec() {}
+
+    /**
+     * Encodes the message into a complete frame including the length header.
+     *
+     * @param message the message to encode
+     * @return a new array holding the frame
+     * @throws UTFDataFormatException if the encoded message exceeds 65535 bytes
+     */
+    public static byte[] encode(String message) throws UTFDataFormatException {
+        int payloadLength = encodedLength(message);
+        if (payloadLength > MAX_PAYLOAD_LENGTH) {
+            throw new UTFDataFormatException("Encoded string too long: " + payloadLength + " bytes");
+        }
+
+        byte[] frame = new byte[HEADER_LENGTH + payloadLength];
+        frame[0] = (byte) (payloadLength >>> 8);
+        frame[1] = (byte) payloadLength;
+        encodeTo(message, frame, HEADER_LENGTH);
+        return frame;
+    }
+
+    /**
+     * Encodes the message preceded by a prefix of single-byte characters
+     * (e.g. a timestamp) straight into a frame of the exact size, without
+     * building the concatenated string first.
+     *
+     * @param asciiPrefix prefix bytes, must be in the 0x01-0x7F range
+     * @param message     the message to append after the prefix
+     * @return a new array holding the frame
+     * @throws UTFDataFormatException if the encoded payload exceeds 65535 bytes
+     */
+    public static byte[] encode(byte[] asciiPrefix, String message) throws UTFDataFormatException {
+        int payloadLength = asciiPrefix.length + encodedLength(message);
+        if (payloadLength > MAX_PAYLOAD_LENGTH) {
+            throw new UTFDataFormatException("Encoded string too long: " + payloadLength + " bytes");
+        }
+
+        byte[] frame = new byte[HEADER_LENGTH + payloadLength];
+        frame[0] = (byte) (payloadLength >>> 8);
+        frame[1] = (byte) payloadLength;
+        System.arraycopy(asciiPrefix, 0, frame, HEADER_LENGTH, asciiPrefix.length);
+        encodeTo(message, frame, HEADER_LENGTH + asciiPrefix.length);
+        return frame;
+    }
+
+    /**
+     * Decodes a modified UTF-8 payload (without the length header).
+     *
+     * @param bytes  the source array
+     * @param offset the offset of the first payload byte
+     * @param length the payload length
+     * @return the decoded string
+     * @throws UTFDataFormatException if the payload is malformed
+     */
+    public static String decode(byte[] bytes, int offset, int length) throws UTFDataFormatException {
+        char[] chars = new char[length];
+        int charCount = 0;
+        int position = offset;
+        int end = offset + length;
+
+        while (position < end) {
+            int b = bytes[position] & 0xff;
+            if (b < 0x80) {
+                chars[charCount++] = (char) b;
+                position++;
+            } else if ((b & 0xe0) == 0xc0) {
+                if (position + 2 > end) {
+                    throw new UTFDataFormatException("Malformed input: partial character at end");
+                }
+                int b2 = bytes[position + 1];
+                if ((b2 & 0xc0) != 0x80) {
+                    throw new UTFDataFormatException("Malformed input around byte " + (position - offset));
+                }
+                chars[charCount++] = (char) (((b & 0x1f) << 6) | (b2 & 0x3f));
+                position += 2;
+            } else if ((b & 0xf0) == 0xe0) {
+                if (position + 3 > end) {
+                    throw new UTFDataFormatException("Malformed input: partial character at end");
+                }
+                int b2 = bytes[position + 1];
+                int b3 = bytes[position + 2];
+                if ((b2 & 0xc0) != 0x80 || (b3 & 0xc0) != 0x80) {
+                    throw new UTFDataFormatException("Malformed input around byte " + (position - offset));
+                }
+                chars[charCount++] = (char) (((b & 0x0f) << 12) | ((b2 & 0x3f) << 6) | (b3 & 0x3f));
+                position += 3;
+            } else {
+                throw new UTFDataFormatException("Malformed input around byte " + (position - offset));
+            }
+        }
+        return new String(chars, 0, charCount);
+    }
+
+    /**
+     * Returns the number of bytes the message occupies in modified UTF-8.
+     */
+    public static int encodedLength(String message) {
+        int length = message.length();
+        int encoded = length;
+        for (int i = 0; i < length; i++) {
+            char c = message.charAt(i);
+            if (c >= 0x80 || c == 0) {
+                encoded += (c >= 0x800) ? 2 : 1;
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Writes the modified UTF-8 representation of the message into the target
+     * array. The caller is responsible for making sure it fits.
+     *
+     * @return the position right after the last written byte
+     */
+    public static int encodeTo(String message, byte[] target, int offset) {
+        int position = offset;
+        int length = message.length();
+        for (int i = 0; i < length; i++) {
+            char c = message.charAt(i);
+            if (c != 0 && c < 0x80) {
+                target[position++] = (byte) c;
+            } else if (c >= 0x800) {
+                target[position++] = (byte) (0xe0 | ((c >> 12) & 0x0f));
+                target[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                target[position++] = (byte) (0x80 | (c & 0x3f));
+            } else {
+                target[position++] = (byte) (0xc0 | ((c >> 6) & 0x1f));
+                target[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return position;
+    }
+}
@@ -0,0 +1,174 @@
+package ru.gordeev.chat.network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the outbound stream of one binary protocol connection.
+ *
+ * The writer collects the frames of a write batch here. A batch of at
+ * least the threshold size is deflated into a single COMPRESSED frame,
+ * smaller batches are written as they are. All batches of the connection
+ * go through one Deflater that keeps its window between them (each batch
+ * ends with a sync flush), so a message repeating what was sent before,
+ * e.g. the next page of the history, compresses well even if it is small.
+ *
+ * Frames are compressed when they are written rather than when they are
+ * queued, so dropping queued frames never breaks the stream, and a shared
+ * broadcast frame stays shared. The Deflater (about 256 KB of native
+ * memory) is created with the first compressed batch and released on close.
+ */
+public final class FrameCompressor {
+
+    /** A batch is written once it holds this many bytes. */
+    public static final int MAX_BATCH_BYTES = 32 * 1024;
+
+    private static final int COMPRESSED_HEADER_LENGTH = BinaryProtocol.MAX_HEADER_LENGTH + 1;
+
+    private final CompressionSettings settings;
+    private final CompressionStats stats;
+    private byte[] pending = new byte[1024];
+    private int pendingLength;
+    private int pendingFrames;
+    private byte[] output = new byte[1024];
+    private int outputLength;
+    private Deflater deflater;
+    private boolean closed;
+
+    public FrameCompressor(CompressionSettings settings) {
+        this.settings = settings;
+        this.stats = settings.getStats();
+    }
+
+    /**
+     * Adds an encoded frame to the current batch.
+     */
+    public void add(Frame frame) {
+        if (pendingLength + frame.length() > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + frame.length()));
+        }
+        frame.copyTo(pending, pendingLength);
+        pendingLength += frame.length();
+        pendingFrames++;
+    }
+
+    public boolean isFull() {
+        return pendingLength >= MAX_BATCH_BYTES;
+    }
+
+    public boolean isEmpty() {
+        return pendingLength == 0;
+    }
+
+    /**
+     * Moves queued frames into a batch until it is full and writes the
+     * batch into the buffer, which must have room for MAX_BATCH_BYTES plus
+     * the largest frame.
+     *
+     * @return the number of frames taken from the queue
+     */
+    int fill(OutboundQueue queue, ByteBuffer target) throws IOException {
+        int frames = 0;
+        Frame frame;
+        while (!isFull() && (frame = queue.poll()) != null) {
+            add(frame);
+            frames++;
+        }
+        writeTo(target);
+        return frames;
+    }
+
+    /**
+     * Writes the current batch, compressed if it reaches the threshold.
+     */
+    public void writeTo(ByteBuffer target) throws IOException {
+        if (encode()) {
+            target.put(output, 0, outputLength);
+        } else {
+            target.put(pending, 0, pendingLength);
+        }
+        reset();
+    }
+
+    /**
+     * Writes the current batch, compressed if it reaches the threshold.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (encode()) {
+            out.write(output, 0, outputLength);
+        } else {
+            out.write(pending, 0, pendingLength);
+        }
+        reset();
+    }
+
+    /**
+     * Releases the Deflater. Safe to call more than once and concurrently
+     * with a write, which then fails.
+     */
+    public synchronized void close() {
+        closed = true;
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+    }
+
+    /**
+     * @return true if the batch has been compressed into the output
+     */
+    private synchronized boolean encode() throws IOException {
+        if (pendingLength < settings.getThreshold() || pendingLength == 0) {
+            if (pendingLength > 0) {
+                stats.batchUncompressed(pendingLength);
+            }
+            return false;
+        }
+        if (closed) {
+            throw new IOException("Compressor is closed");
+        }
+        if (deflater == null) {
+            deflater = new Deflater(settings.getLevel(), true);
+        }
+
+        long start = System.nanoTime();
+        deflater.setInput(pending, 0, pendingLength);
+        int compressedLength = 0;
+        ensureOutputCapacity(COMPRESSED_HEADER_LENGTH + pendingLength / 2);
+        while (true) {
+            int offset = COMPRESSED_HEADER_LENGTH + compressedLength;
+            compressedLength += deflater.deflate(output, offset, output.length - offset, Deflater.SYNC_FLUSH);
+            if (COMPRESSED_HEADER_LENGTH + compressedLength < output.length) {
+                break;
+            }
+            ensureOutputCapacity(output.length * 2);
+        }
+
+        // The header is written right before the compressed bytes, its length depends on theirs
+        int bodyLength = 1 + compressedLength;
+        int headerStart = COMPRESSED_HEADER_LENGTH - 1 - BinaryProtocol.varintSize(bodyLength);
+        BinaryProtocol.putVarint(output, headerStart, bodyLength);
+        output[COMPRESSED_HEADER_LENGTH - 1] = (byte) BinaryFrameType.COMPRESSED.code();
+        if (headerStart > 0) {
+            System.arraycopy(output, headerStart, output, 0, COMPRESSED_HEADER_LENGTH + compressedLength - headerStart);
+        }
+        outputLength = COMPRESSED_HEADER_LENGTH + compressedLength - headerStart;
+        stats.batchCompressed(pendingFrames, pendingLength, outputLength, System.nanoTime() - start);
+        return true;
+    }
+
+    private void ensureOutputCapacity(int capacity) {
+        if (output.length < capacity) {
+            output = Arrays.copyOf(output, capacity);
+        }
+    }
+
+    private void reset() {
+        pendingLength = 0;
+        pendingFrames = 0;
+        outputLength = 0;
+    }
+}
@@ -0,0 +1,66 @@
+package ru.gordeev.chat.network;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A decoded binary protocol frame sent by a client: its type and string
+ * fields, in the order listed in BinaryFrameType.
+ */
+public final class InboundFrame {
+
+    private final BinaryFrameType type;
+    private final String[] fields;
+
+    private InboundFrame(BinaryFrameType type, String[] fields) {
+        this.type = type;
+        this.fields = fields;
+    }
+
+    public BinaryFrameType getType() {
+        return type;
+    }
+
+    public String getField(int index) {
+        return fields[index];
+    }
+
+    /**
+     * Decodes a frame body (without the length header).
+     *
+     * @throws ProtocolException if the type is not a client frame type or the fields are malformed
+     */
+    public static InboundFrame decode(byte[] bytes, int offset, int length) throws ProtocolException {
+        int end = offset + length;
+        BinaryFrameType type = BinaryFrameType.fromCode(bytes[offset] & 0xFF);
+        if (type == null || type.inboundFields() < 0) {
+            throw new ProtocolException("Unexpected frame type: " + (bytes[offset] & 0xFF));
+        }
+
+        String[] fields = new String[type.inboundFields()];
+        int position = offset + 1;
+        for (int i = 0; i < fields.length; i++) {
+            int fieldLength = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (position >= end || shift > 28) {
+                    throw new ProtocolException("Malformed " + type + " frame");
+                }
+                b = bytes[position++];
+                fieldLength |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            if (fieldLength < 0 || fieldLength > end - position) {
+                throw new ProtocolException("Malformed " + type + " frame");
+            }
+            // Malformed UTF-8 is replaced rather than rejected, as String does
+            fields[i] = new String(bytes, position, fieldLength, StandardCharsets.UTF_8);
+            position += fieldLength;
+        }
+        if (position != end) {
+            throw new ProtocolException("Trailing bytes in " + type + " frame");
+        }
+        return new InboundFrame(type, fields);
+    }
+}
@@ -0,0 +1,59 @@
+package ru.gordeev.chat.network;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Interns user and room names into small numeric ids for the binary
+ * protocol, so a chat frame carries a varint instead of the sender name.
+ *
+ * Names come from users, so the table is bounded: a direct-mapped array
+ * of recently used names. A name pushed out of its slot gets a new id the
+ * next time it is used; ids are not handed out twice (short of 2^31
+ * assignments), so a connection that still knows the old id is simply
+ * sent a definition of the new one.
+ * A renamed user gets a new id for the new name as well.
+ */
+public final class NameIds {
+
+    public static final NameIds USERS = new NameIds(4096);
+    public static final NameIds ROOMS = new NameIds(1024);
+
+    private final AtomicReferenceArray<Assignment> slots;
+    private final AtomicInteger lastId = new AtomicInteger();
+
+    /**
+     * @param slots the number of names kept, a power of two
+     */
+    NameIds(int slots) {
+        if (Integer.bitCount(slots) != 1) {
+            throw new IllegalArgumentException("Name id slots must be a power of two: " + slots);
+        }
+        this.slots = new AtomicReferenceArray<>(slots);
+    }
+
+    /**
+     * @return the id of the name, assigning one if the name is not in the table
+     */
+    public int idOf(String name) {
+        int slot = (name.hashCode() * 0x9E3779B9 >>> 16) & (slots.length() - 1);
+        Assignment assignment = slots.get(slot);
+        if (assignment != null && assignment.name.equals(name)) {
+            return assignment.id;
+        }
+        // Two threads may both assign an id to the same name; either one is correct
+        int id = lastId.updateAndGet(last -> last == Integer.MAX_VALUE ? 1 : last + 1);
+        slots.set(slot, new Assignment(name, id));
+        return id;
+    }
+
+    private static final class Assignment {
+        private final String name;
+        private final int id;
+
+        private Assignment(String name, int id) {
+            this.name = name;
+            this.id = id;
+        }
+    }
+}
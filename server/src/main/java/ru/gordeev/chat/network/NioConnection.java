@@ -0,0 +1,404 @@
+package ru.gordeev.chat.network;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A non-blocking client connection. Bytes are read and written by the
+ * owning NioReactor; decoded frames are handed to the listener on a
+ * worker executor, one task at a time per connection, so the chat logic
+ * may block (e.g. on the database) without stalling the reactor.
+ *
+ * Outgoing frames wait in a bounded OutboundQueue; on flush the reactor
+ * packs as many of them as fit into its shared direct buffer and writes
+ * them with a single call. Only the unwritten tail of a partial write is
+ * copied into a buffer owned by the connection.
+ *
+ * The first bytes of the client pick the protocol, see BinaryProtocol. The
+ * write side switches to binary frames on the worker, after the greeting
+ * queued by onConnected, so the greeting always goes out in the legacy
+ * format the client expects before the acknowledgement. Binary clients may
+ * ask for compression, which the reactor then applies to every write batch
+ * after the acknowledgement.
+ */
+final class NioConnection implements ClientConnection {
+
+    private static final int INITIAL_READ_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_FRAME_SIZE = FrameCodec.HEADER_LENGTH + FrameCodec.MAX_PAYLOAD_LENGTH;
+    private static final int MAX_BINARY_FRAME_SIZE = BinaryProtocol.MAX_HEADER_LENGTH + BinaryProtocol.MAX_FRAME_LENGTH;
+
+    private final Logger logger;
+    private final SocketChannel channel;
+    private final NioReactor reactor;
+    private final Executor workers;
+    private final String remoteAddress;
+    private final String remoteHost;
+    private final OutboundQueue outboundQueue;
+    private final CompressionSettings compressionSettings;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean dispatching = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile boolean closeRequested;
+    private volatile boolean abortRequested;
+    private volatile BinarySession binarySession;
+    private volatile Frame compressionStart;
+    private volatile boolean heartbeatEnabled;
+    private volatile FrameCompressor compressor;
+    private ConnectionListener listener;
+
+    // Owned by the reactor thread
+    private SelectionKey key;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+    private ByteBuffer pendingWrite;
+    private Frame carriedFrame;
+    private ReadMode readMode = ReadMode.UNKNOWN;
+
+    NioConnection(SocketChannel channel, NioReactor reactor, Executor workers, OutboundSettings outboundSettings) {
+        this.logger = LogManager.getLogger(NioConnection.class);
+        this.channel = channel;
+        this.reactor = reactor;
+        this.workers = workers;
+        this.outboundQueue = new OutboundQueue(outboundSettings);
+        this.compressionSettings = outboundSettings.getCompression();
+        this.remoteAddress = String.valueOf(channel.socket().getRemoteSocketAddress());
+        this.remoteHost = channel.socket().getInetAddress().getHostAddress();
+    }
+
+    void setListener(ConnectionListener listener) {
+        this.listener = listener;
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    void registered(SelectionKey key) {
+        this.key = key;
+        dispatch(listener::onConnected);
+    }
+
+    @Override
+    public void send(Frame frame) {
+        if (closeRequested) {
+            return;
+        }
+        BinarySession session = binarySession;
+        boolean queued = session != null ? session.offer(outboundQueue, frame) : outboundQueue.offer(frame);
+        if (!queued) {
+            logger.warn("Client {} doesn't read its messages, disconnecting", remoteAddress);
+            abort();
+            return;
+        }
+        if (flushRequested.compareAndSet(false, true)) {
+            reactor.requestFlush(this);
+        }
+    }
+
+    /**
+     * Requests a graceful close: frames queued so far are written out
+     * first, then the channel is closed by the reactor.
+     */
+    @Override
+    public void close() {
+        if (!closeRequested) {
+            closeRequested = true;
+            reactor.requestFlush(this);
+        }
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public String getRemoteHost() {
+        return remoteHost;
+    }
+
+    @Override
+    public boolean isHeartbeatEnabled() {
+        return heartbeatEnabled;
+    }
+
+    @Override
+    public int getQueuedFrames() {
+        return outboundQueue.size();
+    }
+
+    /**
+     * Drops the queued frames and closes the channel without writing them.
+     * Like every close, it is carried out by the reactor.
+     */
+    @Override
+    public void abort() {
+        closeRequested = true;
+        abortRequested = true;
+        reactor.requestFlush(this);
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    void handleRead() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            closeNow();
+            return;
+        }
+
+        readBuffer.flip();
+        if (readMode == ReadMode.UNKNOWN) {
+            detectProtocol();
+        }
+        if (readMode == ReadMode.LEGACY) {
+            readLegacyFrames();
+        } else if (readMode == ReadMode.BINARY) {
+            readBinaryFrames();
+        } else if (readMode == ReadMode.REJECTED) {
+            readBuffer.position(readBuffer.limit());
+        }
+        readBuffer.compact();
+
+        if (!readBuffer.hasRemaining()) {
+            // A partial frame fills the whole buffer: grow it, frames are bounded by the protocol
+            int maxFrameSize = readMode == ReadMode.BINARY ? MAX_BINARY_FRAME_SIZE : MAX_FRAME_SIZE;
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, maxFrameSize));
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+    }
+
+    private void detectProtocol() {
+        Boolean binary = BinaryProtocol.startsWithMagic(readBuffer);
+        if (binary == null) {
+            return;
+        }
+        if (!binary) {
+            readMode = ReadMode.LEGACY;
+            return;
+        }
+        int position = readBuffer.position();
+        int clientVersion = readBuffer.get(position + BinaryProtocol.MAGIC.length) & 0xFF;
+        int handshakeLength = BinaryProtocol.handshakeLength(clientVersion);
+        if (readBuffer.remaining() < handshakeLength) {
+            return;
+        }
+        int clientFlags = clientVersion >= BinaryProtocol.FLAGS_VERSION
+                ? readBuffer.get(position + handshakeLength - 1) & 0xFF
+                : 0;
+        readBuffer.position(position + handshakeLength);
+
+        int version = BinaryProtocol.negotiate(clientVersion);
+        int flags = BinaryProtocol.negotiateFlags(clientFlags, compressionSettings);
+        readMode = version > 0 ? ReadMode.BINARY : ReadMode.REJECTED;
+        dispatch(() -> startBinaryProtocol(version, flags));
+    }
+
+    private void readLegacyFrames() throws IOException {
+        while (readBuffer.remaining() >= FrameCodec.HEADER_LENGTH) {
+            int position = readBuffer.position();
+            int length = readBuffer.getShort(position) & 0xffff;
+            if (readBuffer.remaining() < FrameCodec.HEADER_LENGTH + length) {
+                break;
+            }
+            String message = FrameCodec.decode(readBuffer.array(), position + FrameCodec.HEADER_LENGTH, length);
+            readBuffer.position(position + FrameCodec.HEADER_LENGTH + length);
+            dispatch(() -> deliver(message));
+        }
+    }
+
+    private void readBinaryFrames() throws IOException {
+        long header;
+        while ((header = BinaryProtocol.peekFrameLength(readBuffer)) >= 0) {
+            int headerLength = (int) (header >>> 32);
+            int length = (int) header;
+            if (readBuffer.remaining() < headerLength + length) {
+                break;
+            }
+            int position = readBuffer.position();
+            InboundFrame frame = InboundFrame.decode(readBuffer.array(), position + headerLength, length);
+            readBuffer.position(position + headerLength + length);
+            dispatch(() -> deliver(frame));
+        }
+    }
+
+    private void startBinaryProtocol(int version, int flags) {
+        Frame acknowledgement = BinaryProtocol.acknowledgement(version, flags);
+        if (version >= BinaryProtocol.FLAGS_VERSION && (flags & BinaryProtocol.FLAG_DEFLATE) != 0) {
+            compressionStart = acknowledgement;
+        }
+        heartbeatEnabled = BinaryProtocol.isHeartbeatEnabled(version, flags);
+        send(acknowledgement);
+        if (version > 0) {
+            binarySession = new BinarySession(version);
+            if (heartbeatEnabled) {
+                listener.onHeartbeatEnabled();
+            }
+        } else {
+            close();
+        }
+    }
+
+    void flush() throws IOException {
+        flushRequested.set(false);
+        if (abortRequested) {
+            closeNow();
+            return;
+        }
+        if (key == null || closed.get()) {
+            return;
+        }
+
+        if (pendingWrite != null) {
+            channel.write(pendingWrite);
+            if (pendingWrite.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            pendingWrite = null;
+        }
+
+        ByteBuffer buffer = reactor.writeBuffer();
+        while (carriedFrame != null || !outboundQueue.isEmpty()) {
+            buffer.clear();
+            FrameCompressor currentCompressor = compressor;
+            int frames = currentCompressor != null
+                    ? currentCompressor.fill(outboundQueue, buffer)
+                    : packFrames(buffer);
+            buffer.flip();
+            channel.write(buffer);
+            outboundQueue.batchWritten(frames);
+
+            if (buffer.hasRemaining()) {
+                pendingWrite = ByteBuffer.allocate(buffer.remaining());
+                pendingWrite.put(buffer).flip();
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        key.interestOps(SelectionKey.OP_READ);
+
+        if (closeRequested) {
+            closeNow();
+        }
+    }
+
+    /**
+     * Copies as many queued frames as fit into the buffer.
+     *
+     * @return the number of frames copied
+     */
+    private int packFrames(ByteBuffer buffer) {
+        int frames = 0;
+        Frame frame;
+        while ((frame = carriedFrame != null ? carriedFrame : outboundQueue.poll()) != null) {
+            if (frame.length() > buffer.remaining()) {
+                carriedFrame = frame;
+                break;
+            }
+            carriedFrame = null;
+            frame.writeTo(buffer);
+            frames++;
+            if (frame == compressionStart) {
+                // The client inflates everything after the acknowledgement of the handshake
+                compressor = new FrameCompressor(compressionSettings);
+                break;
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * Closes the channel at once. Only called on the reactor thread, which
+     * owns the key and the write state; other threads go through close()
+     * or abort().
+     */
+    void closeNow() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        closeRequested = true;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error(e);
+        }
+        outboundQueue.clear();
+        FrameCompressor currentCompressor = compressor;
+        if (currentCompressor != null) {
+            currentCompressor.close();
+        }
+        pendingWrite = null;
+        carriedFrame = null;
+        dispatch(listener::onDisconnected);
+    }
+
+    private void deliver(String message) {
+        if (closeRequested) {
+            return;
+        }
+        if (!listener.onMessage(message)) {
+            close();
+        }
+    }
+
+    private void deliver(InboundFrame frame) {
+        if (closeRequested) {
+            return;
+        }
+        if (!listener.onFrame(frame)) {
+            close();
+        }
+    }
+
+    private void dispatch(Runnable task) {
+        tasks.offer(task);
+        if (dispatching.compareAndSet(false, true)) {
+            try {
+                workers.execute(this::runTasks);
+            } catch (RejectedExecutionException e) {
+                logger.debug("Worker pool is shut down, dropping events of {}", remoteAddress);
+            }
+        }
+    }
+
+    private void runTasks() {
+        try {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.error("Error while handling client {}", remoteAddress, e);
+                }
+            }
+        } finally {
+            dispatching.set(false);
+            if (!tasks.isEmpty() && dispatching.compareAndSet(false, true)) {
+                workers.execute(this::runTasks);
+            }
+        }
+    }
+
+    private enum ReadMode {
+        UNKNOWN, LEGACY, BINARY, REJECTED
+    }
+}
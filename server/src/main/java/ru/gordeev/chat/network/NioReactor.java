@@ -0,0 +1,127 @@
+package ru.gordeev.chat.network;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single I/O thread owning a Selector. Every NioConnection is pinned to
+ * one reactor for its whole life; all channel reads, writes and interest
+ * changes happen on that reactor's thread.
+ */
+final class NioReactor implements Runnable {
+
+    // Large enough to hold the biggest possible frame
+    private static final int WRITE_BUFFER_SIZE = 128 * 1024;
+
+    private final Logger logger;
+    private final Selector selector;
+    private final Queue<NioConnection> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final Queue<NioConnection> pendingFlushes = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private volatile boolean running = true;
+
+    NioReactor() throws IOException {
+        this.logger = LogManager.getLogger(NioReactor.class);
+        this.selector = Selector.open();
+    }
+
+    void register(NioConnection connection) {
+        pendingRegistrations.offer(connection);
+        selector.wakeup();
+    }
+
+    void requestFlush(NioConnection connection) {
+        pendingFlushes.offer(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * The direct buffer used to coalesce outgoing frames. Only valid on the
+     * reactor thread, and only until the next flush.
+     */
+    ByteBuffer writeBuffer() {
+        return writeBuffer;
+    }
+
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select(this::processKey);
+                processRegistrations();
+                processFlushes();
+            } catch (IOException | RuntimeException e) {
+                logger.error("Error in selector loop", e);
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            ((NioConnection) key.attachment()).closeNow();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.error("Error closing selector", e);
+        }
+    }
+
+    private void processKey(SelectionKey key) {
+        NioConnection connection = (NioConnection) key.attachment();
+        try {
+            if (key.isValid() && key.isReadable()) {
+                connection.handleRead();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.flush();
+            }
+        } catch (IOException e) {
+            logger.debug("I/O error on {}", connection.getRemoteAddress(), e);
+            connection.closeNow();
+        } catch (RuntimeException e) {
+            logger.error("Unexpected error on {}", connection.getRemoteAddress(), e);
+            connection.closeNow();
+        }
+    }
+
+    private void processRegistrations() {
+        NioConnection connection;
+        while ((connection = pendingRegistrations.poll()) != null) {
+            try {
+                connection.registered(connection.channel().register(selector, SelectionKey.OP_READ, connection));
+            } catch (ClosedChannelException e) {
+                connection.closeNow();
+            } catch (RuntimeException e) {
+                logger.error("Unexpected error registering {}", connection.getRemoteAddress(), e);
+                connection.closeNow();
+            }
+        }
+    }
+
+    private void processFlushes() {
+        NioConnection connection;
+        while ((connection = pendingFlushes.poll()) != null) {
+            try {
+                connection.flush();
+            } catch (IOException e) {
+                logger.debug("I/O error on {}", connection.getRemoteAddress(), e);
+                connection.closeNow();
+            } catch (RuntimeException e) {
+                logger.error("Unexpected error on {}", connection.getRemoteAddress(), e);
+                connection.closeNow();
+            }
+        }
+    }
+}
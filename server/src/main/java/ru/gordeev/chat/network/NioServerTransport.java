@@ -0,0 +1,120 @@
+package ru.gordeev.chat.network;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Non-blocking transport: the accept loop runs on the calling thread and
+ * spreads accepted channels round-robin over a fixed set of NioReactor
+ * threads. Chat logic runs on a separate worker pool.
+ */
+public class NioServerTransport implements ServerTransport {
+
+    private final Logger logger;
+    private final int port;
+    private final int backlog;
+    private final int reactorCount;
+    private final int workerCount;
+    private final OutboundSettings outboundSettings;
+    private final Function<ClientConnection, ConnectionListener> listenerFactory;
+    private NioReactor[] reactors;
+    private ExecutorService workers;
+    private volatile ServerSocketChannel serverChannel;
+
+    /**
+     * @param backlog the length of the queue of connections not accepted yet
+     */
+    public NioServerTransport(int port,
+                              int backlog,
+                              int reactorCount,
+                              int workerCount,
+                              OutboundSettings outboundSettings,
+                              Function<ClientConnection, ConnectionListener> listenerFactory) {
+        this.logger = LogManager.getLogger(NioServerTransport.class);
+        this.port = port;
+        this.backlog = backlog;
+        this.reactorCount = reactorCount;
+        this.workerCount = workerCount;
+        this.outboundSettings = outboundSettings;
+        this.listenerFactory = listenerFactory;
+    }
+
+    @Override
+    public void start() throws IOException {
+        workers = Executors.newFixedThreadPool(workerCount, namedThreads("nio-worker-"));
+        reactors = new NioReactor[reactorCount];
+        for (int i = 0; i < reactorCount; i++) {
+            reactors[i] = new NioReactor();
+            Thread thread = new Thread(reactors[i], "nio-reactor-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), backlog);
+        logger.info("NIO transport is listening at port {} with {} reactors and {} workers",
+                port, reactorCount, workerCount);
+
+        int next = 0;
+        while (serverChannel.isOpen()) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                break;
+            }
+            channel.configureBlocking(false);
+
+            NioReactor reactor = reactors[next];
+            next = (next + 1) % reactors.length;
+
+            NioConnection connection = new NioConnection(channel, reactor, workers, outboundSettings);
+            connection.setListener(listenerFactory.apply(connection));
+            reactor.register(connection);
+        }
+    }
+
+    @Override
+    public void stopAccepting() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            logger.error("Error closing server channel", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        stopAccepting();
+        if (reactors != null) {
+            for (NioReactor reactor : reactors) {
+                reactor.stop();
+            }
+        }
+        if (workers != null) {
+            workers.shutdown();
+        }
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
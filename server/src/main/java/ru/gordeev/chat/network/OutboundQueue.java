@@ -0,0 +1,98 @@
+package ru.gordeev.chat.network;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue of frames waiting to be written to one client.
+ * Any thread may offer; a single writer (the connection's writer task or
+ * its reactor) polls.
+ */
+final class OutboundQueue {
+
+    private final ArrayBlockingQueue<Frame> frames;
+    private final OutboundSettings settings;
+    private final OutboundStats stats;
+
+    OutboundQueue(OutboundSettings settings) {
+        this.frames = new ArrayBlockingQueue<>(settings.getQueueCapacity());
+        this.settings = settings;
+        this.stats = settings.getStats();
+    }
+
+    /**
+     * Queues a frame, applying the slow consumer policy if the queue is full.
+     *
+     * @return false if the connection has to be closed because the client doesn't keep up
+     */
+    boolean offer(Frame frame) {
+        if (frames.offer(frame)) {
+            stats.frameQueued();
+            return true;
+        }
+
+        switch (settings.getPolicy()) {
+            case DROP_OLDEST:
+                while (!frames.offer(frame)) {
+                    if (frames.poll() != null) {
+                        stats.frameDropped();
+                    }
+                }
+                stats.frameQueued();
+                return true;
+            case BLOCK:
+                stats.senderBlocked();
+                try {
+                    if (frames.offer(frame, settings.getBlockTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+                        stats.frameQueued();
+                        return true;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                stats.slowConsumerDisconnected();
+                return false;
+            case DISCONNECT:
+            default:
+                stats.slowConsumerDisconnected();
+                return false;
+        }
+    }
+
+    /**
+     * Under the DROP_OLDEST policy, drops the oldest frame if the queue is
+     * full, so that the next offer finds room without dropping anything.
+     *
+     * @return true if a frame was dropped
+     */
+    boolean dropOldestIfFull() {
+        if (settings.getPolicy() != SlowConsumerPolicy.DROP_OLDEST || frames.remainingCapacity() > 0) {
+            return false;
+        }
+        if (frames.poll() == null) {
+            return false;
+        }
+        stats.frameDropped();
+        return true;
+    }
+
+    Frame poll() {
+        return frames.poll();
+    }
+
+    boolean isEmpty() {
+        return frames.isEmpty();
+    }
+
+    int size() {
+        return frames.size();
+    }
+
+    void clear() {
+        frames.clear();
+    }
+
+    void batchWritten(int frameCount) {
+        stats.batchWritten(frameCount);
+    }
+}
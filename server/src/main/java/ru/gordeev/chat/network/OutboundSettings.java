@@ -0,0 +1,68 @@
+package ru.gordeev.chat.network;
+
+import ru.gordeev.chat.config.ServerConfig;
+
+import java.util.zip.Deflater;
+
+/**
+ * Limits applied to the outbound queue of every client connection.
+ */
+public class OutboundSettings {
+
+    private final int queueCapacity;
+    private final SlowConsumerPolicy policy;
+    private final long blockTimeoutMillis;
+    private final CompressionSettings compression;
+    private final OutboundStats stats = new OutboundStats();
+
+    public OutboundSettings(int queueCapacity, SlowConsumerPolicy policy, long blockTimeoutMillis) {
+        this(queueCapacity, policy, blockTimeoutMillis, new CompressionSettings(false, Integer.MAX_VALUE, Deflater.BEST_SPEED));
+    }
+
+    public OutboundSettings(int queueCapacity, SlowConsumerPolicy policy, long blockTimeoutMillis,
+                            CompressionSettings compression) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Outbound queue capacity must be positive: " + queueCapacity);
+        }
+        this.queueCapacity = queueCapacity;
+        this.policy = policy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.compression = compression;
+    }
+
+    /**
+     * Reads the settings from the chat.outbound.capacity, chat.outbound.policy
+     * and chat.outbound.blockTimeoutMillis keys, and the compression settings
+     * from theirs.
+     */
+    public static OutboundSettings fromConfig(ServerConfig config) {
+        return new OutboundSettings(
+                config.getInt("chat.outbound.capacity", 1024),
+                config.getEnum("chat.outbound.policy", SlowConsumerPolicy.DISCONNECT),
+                config.getLong("chat.outbound.blockTimeoutMillis", 5000L),
+                CompressionSettings.fromConfig(config));
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public SlowConsumerPolicy getPolicy() {
+        return policy;
+    }
+
+    public long getBlockTimeoutMillis() {
+        return blockTimeoutMillis;
+    }
+
+    public CompressionSettings getCompression() {
+        return compression;
+    }
+
+    /**
+     * Counters shared by all connections created with these settings.
+     */
+    public OutboundStats getStats() {
+        return stats;
+    }
+}
@@ -0,0 +1,75 @@
+package ru.gordeev.chat.network;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-wide counters of the outbound path.
+ */
+public class OutboundStats {
+
+    private final LongAdder framesQueued = new LongAdder();
+    private final LongAdder framesWritten = new LongAdder();
+    private final LongAdder writeBatches = new LongAdder();
+    private final LongAdder framesDropped = new LongAdder();
+    private final LongAdder sendersBlocked = new LongAdder();
+    private final LongAdder slowConsumersDisconnected = new LongAdder();
+
+    void frameQueued() {
+        framesQueued.increment();
+    }
+
+    void batchWritten(int frames) {
+        framesWritten.add(frames);
+        writeBatches.increment();
+    }
+
+    void frameDropped() {
+        framesDropped.increment();
+    }
+
+    void senderBlocked() {
+        sendersBlocked.increment();
+    }
+
+    void slowConsumerDisconnected() {
+        slowConsumersDisconnected.increment();
+    }
+
+    public long getFramesQueued() {
+        return framesQueued.sum();
+    }
+
+    public long getFramesWritten() {
+        return framesWritten.sum();
+    }
+
+    /**
+     * Number of socket writes; framesWritten / writeBatches is the average
+     * number of frames coalesced into one write.
+     */
+    public long getWriteBatches() {
+        return writeBatches.sum();
+    }
+
+    public long getFramesDropped() {
+        return framesDropped.sum();
+    }
+
+    public long getSendersBlocked() {
+        return sendersBlocked.sum();
+    }
+
+    public long getSlowConsumersDisconnected() {
+        return slowConsumersDisconnected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "OutboundStats{queued=" + getFramesQueued()
+                + ", written=" + getFramesWritten()
+                + ", batches=" + getWriteBatches()
+                + ", dropped=" + getFramesDropped()
+                + ", blocked=" + getSendersBlocked()
+                + ", disconnected=" + getSlowConsumersDisconnected() + "}";
+    }
+}
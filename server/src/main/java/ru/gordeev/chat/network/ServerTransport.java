@@ -0,0 +1,28 @@
+package ru.gordeev.chat.network;
+
+import java.io.IOException;
+
+/**
+ * Accepts client connections and hands them over to the chat logic.
+ */
+public interface ServerTransport {
+
+    /**
+     * Binds the listening socket and accepts connections until {@link #stop()}
+     * is called. Blocks the calling thread.
+     *
+     * @throws IOException if the socket cannot be bound or accepting fails
+     */
+    void start() throws IOException;
+
+    /**
+     * Stops accepting new connections. The connections already accepted are
+     * still served, so they can be drained.
+     */
+    void stopAccepting();
+
+    /**
+     * Stops accepting new connections and releases transport threads.
+     */
+    void stop();
+}
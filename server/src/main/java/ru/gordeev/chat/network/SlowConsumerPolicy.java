@@ -0,0 +1,21 @@
+package ru.gordeev.chat.network;
+
+/**
+ * What a connection does when its outbound queue is full, i.e. when the
+ * client reads slower than the server produces messages for it.
+ */
+public enum SlowConsumerPolicy {
+    /**
+     * Discard the oldest queued frames to make room for the new one.
+     */
+    DROP_OLDEST,
+    /**
+     * Close the connection.
+     */
+    DISCONNECT,
+    /**
+     * Block the sender until there is room, up to the configured timeout,
+     * then close the connection.
+     */
+    BLOCK
+}
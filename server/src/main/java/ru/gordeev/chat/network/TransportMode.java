@@ -0,0 +1,21 @@
+package ru.gordeev.chat.network;
+
+/**
+ * Selects how client connections are served.
+ */
+public enum TransportMode {
+    /**
+     * One platform thread per connection blocking on the socket streams.
+     */
+    BLOCKING,
+    /**
+     * Same as BLOCKING, but every connection gets a virtual thread, so the
+     * reader loop, authentication and the JDBC calls made on behalf of the
+     * client park instead of holding an OS thread.
+     */
+    VIRTUAL,
+    /**
+     * A small pool of selector threads multiplexing non-blocking channels.
+     */
+    NIO
+}
@@ -0,0 +1,11 @@
+CREATE TABLE IF NOT EXISTS messages
+(
+    id         BIGSERIAL PRIMARY KEY,
+    created_at TIMESTAMP    NOT NULL,
+    sender     VARCHAR(255) NOT NULL,
+    recipient  VARCHAR(255),
+    body       TEXT         NOT NULL
+);
+
+-- Public history is paged by id, newest first
+CREATE INDEX IF NOT EXISTS messages_broadcast_id_idx ON messages (id) WHERE recipient IS NULL;
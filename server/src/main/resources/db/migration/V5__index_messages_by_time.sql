@@ -0,0 +1,3 @@
+-- Public history is paged by (created_at, id), newest first
+DROP INDEX IF EXISTS messages_broadcast_id_idx;
+CREATE INDEX IF NOT EXISTS messages_broadcast_created_at_idx ON messages (created_at, id) WHERE recipient IS NULL;
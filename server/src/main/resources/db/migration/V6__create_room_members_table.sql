@@ -0,0 +1,14 @@
+CREATE TABLE IF NOT EXISTS room_members
+(
+    login     VARCHAR(255) NOT NULL,
+    room      VARCHAR(64)  NOT NULL,
+    joined_at TIMESTAMP    NOT NULL DEFAULT NOW(),
+    PRIMARY KEY (login, room)
+);
+
+ALTER TABLE messages ADD COLUMN IF NOT EXISTS room VARCHAR(64);
+UPDATE messages SET room = 'general' WHERE recipient IS NULL AND room IS NULL;
+
+-- Public history is paged per room by (created_at, id), newest first
+DROP INDEX IF EXISTS messages_broadcast_created_at_idx;
+CREATE INDEX IF NOT EXISTS messages_room_created_at_idx ON messages (room, created_at, id) WHERE recipient IS NULL;
@@ -0,0 +1,25 @@
+-- Nodes of the cluster and their last heartbeat
+CREATE TABLE IF NOT EXISTS cluster_nodes
+(
+    node_id      VARCHAR(64) PRIMARY KEY,
+    heartbeat_at TIMESTAMP   NOT NULL DEFAULT NOW()
+);
+
+-- Users online on any node: a login or username can be claimed only once
+CREATE TABLE IF NOT EXISTS online_sessions
+(
+    login    VARCHAR(255) PRIMARY KEY,
+    username VARCHAR(255) NOT NULL UNIQUE,
+    node_id  VARCHAR(64)  NOT NULL,
+    since    TIMESTAMP    NOT NULL DEFAULT NOW()
+);
+
+CREATE INDEX IF NOT EXISTS online_sessions_node_id_idx ON online_sessions (node_id);
+
+-- Bus events too big for a NOTIFY payload, kept for a few minutes
+CREATE TABLE IF NOT EXISTS cluster_events
+(
+    id         BIGSERIAL PRIMARY KEY,
+    payload    TEXT      NOT NULL,
+    created_at TIMESTAMP NOT NULL DEFAULT NOW()
+);
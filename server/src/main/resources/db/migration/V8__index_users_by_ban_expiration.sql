@@ -0,0 +1,2 @@
+-- Only banned users are indexed; the server scans them once at startup
+CREATE INDEX IF NOT EXISTS users_ban_expiration_idx ON users (ban_expiration) WHERE is_banned = TRUE;
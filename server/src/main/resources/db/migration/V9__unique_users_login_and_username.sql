@@ -0,0 +1,6 @@
+-- Every lookup of a user is by login or username, and both must be unique:
+-- registration relies on these indexes with INSERT ... ON CONFLICT DO NOTHING.
+-- The migration fails if the table already holds duplicates; they have to be
+-- renamed or removed by hand first.
+CREATE UNIQUE INDEX IF NOT EXISTS users_login_key ON users (login);
+CREATE UNIQUE INDEX IF NOT EXISTS users_username_key ON users (username);